@@ -0,0 +1,143 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Attenuation to register mapping, from the if chain SamplePlaybackActivity used to run on every
+ * button press (legacyIfChain) to the memory-mapped calibration table with prebuilt packets.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttenuationBenchmark
+{
+    private static final int[] FREQUENCIES = {125, 250, 500, 750, 1000, 1500, 2000, 3000, 4000, 6000, 8000};
+
+    private final CountingTransport transport = new CountingTransport();
+    private final CP2615PacketEncoder encoder = new CP2615PacketEncoder();
+    private File tableFile;
+    private CalibrationTable table;
+    private int attenuation;
+    private int frequency;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException
+    {
+        int levels = DacAttenuation.MAX_ATTENUATION + 1;
+        int[][] reg10 = new int[FREQUENCIES.length][levels];
+        int[][] reg1 = new int[FREQUENCIES.length][levels];
+        for(int f=0; f<FREQUENCIES.length; f++)
+        {
+            for(int level=0; level<levels; level++)
+            {
+                reg10[f][level] = DacAttenuation.reg10(level);
+                reg1[f][level] = DacAttenuation.reg1(level);
+            }
+        }
+        tableFile = File.createTempFile("calibration", ".cal");
+        CalibrationTable.write(tableFile, FREQUENCIES, reg10, reg1);
+        table = CalibrationTable.load(tableFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        tableFile.delete();
+    }
+
+    @Benchmark
+    public int legacyIfChain()
+    {
+        int level = nextAttenuation();
+        int reg10;
+        int reg1;
+        if(level < 10)
+        {
+            reg10 = 224;
+            reg1 = 208 + level;
+        }else if(level < 20)
+        {
+            reg10 = 225;
+            reg1 = 208 + (level - 10);
+        }else if(level < 30)
+        {
+            reg10 = 226;
+            reg1 = 208 + (level - 20);
+        }else if(level < 40)
+        {
+            reg10 = 227;
+            reg1 = 208 + (level - 30);
+        }else if(level < 50)
+        {
+            reg10 = 228;
+            reg1 = 208 + (level - 40);
+        }else if(level < 60)
+        {
+            reg10 = 229;
+            reg1 = 208 + (level - 50);
+        }else if(level < 70)
+        {
+            reg10 = 230;
+            reg1 = 208 + (level - 60);
+        }else
+        {
+            reg10 = 231;
+            reg1 = 208 + (level - 70);
+        }
+        return reg10 << 8 | reg1;
+    }
+
+    @Benchmark
+    public int dacAttenuation()
+    {
+        int level = nextAttenuation();
+        return DacAttenuation.reg10(level) << 8 | DacAttenuation.reg1(level);
+    }
+
+    @Benchmark
+    public int calibrationLookup()
+    {
+        int level = nextAttenuation();
+        int index = table.frequencyIndex(nextFrequency());
+        return table.reg10(index, level) << 8 | table.reg1(index, level);
+    }
+
+    @Benchmark
+    public int calibrationPacketToTransport()
+    {
+        int level = nextAttenuation();
+        encoder.reset();
+        table.copyPacket(table.frequencyIndex(nextFrequency()), level, encoder);
+        return transport.bulkWrite(encoder.getBuffer(), encoder.getLength(), CP2615Link.I2C_WRITE_TIMEOUT);
+    }
+
+    private int nextAttenuation()
+    {
+        attenuation = (attenuation + 7) % (DacAttenuation.MAX_ATTENUATION + 1);
+        return attenuation;
+    }
+
+    private int nextFrequency()
+    {
+        frequency = (frequency + 1) % FREQUENCIES.length;
+        return FREQUENCIES[frequency];
+    }
+}
@@ -0,0 +1,90 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Control;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * I2CCommandQueue enqueue/dequeue, uncontended and with two producers against the single
+ * consumer the writer worker is. The consumer hands each command to a counting transport.
+ *
+ * In the contended group every operation is one command through the queue: a producer that finds
+ * the queue full spins until the consumer frees a slot, and the consumer spins until a command
+ * arrives, so neither times failed attempts. Both give up when the iteration ends.
+ *
+ * Compare runs with ./gradlew :app:jmh -Pjmh.include=CommandQueueBenchmark before and after a
+ * change; build/reports/jmh/results.json keeps the numbers.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CommandQueueBenchmark
+{
+    private final I2CCommandQueue queue = new I2CCommandQueue();
+    private final CountingTransport transport = new CountingTransport();
+
+    @Benchmark
+    @Group("uncontended")
+    public int claimSubmitPeekRelease()
+    {
+        I2CCommand command = queue.claim();
+        CP2615Commands.encodeVolume(command.frame, 224, 208);
+        queue.submit(command);
+        return drainOne();
+    }
+
+    @Benchmark
+    @Group("producersConsumer")
+    @GroupThreads(2)
+    public boolean produce(Control control)
+    {
+        I2CCommand command;
+        while((command = queue.claim()) == null)
+        {
+            if(control.stopMeasurement)
+                return false;
+        }
+        CP2615Commands.encodeVolume(command.frame, 224, 208);
+        queue.submit(command);
+        return true;
+    }
+
+    @Benchmark
+    @Group("producersConsumer")
+    @GroupThreads(1)
+    public int consume(Control control)
+    {
+        int result;
+        while((result = drainOne()) == 0)
+        {
+            if(control.stopMeasurement)
+                return 0;
+        }
+        return result;
+    }
+
+    private int drainOne()
+    {
+        I2CCommand command = queue.peek();
+        if(command == null)
+            return 0;
+        CP2615PacketEncoder frame = command.frame;
+        int result = transport.bulkWrite(frame.getBuffer(), frame.getLength(), CP2615Link.I2C_WRITE_TIMEOUT);
+        queue.release(command);
+        return result;
+    }
+}
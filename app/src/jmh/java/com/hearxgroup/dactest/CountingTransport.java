@@ -0,0 +1,46 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Transport that accepts every write at once and only counts it, so benchmarks measure the
+ * host side of the pipeline and nothing of the bus.
+ */
+class CountingTransport implements CP2615Transport
+{
+    private long bytesWritten;
+    private long writeCount;
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        return CP2615PacketEncoder.PACKET_SIZE;
+    }
+
+    @Override
+    public int bulkWrite(byte[] buffer, int length, int timeoutMs)
+    {
+        bytesWritten += length;
+        writeCount++;
+        return length;
+    }
+
+    @Override
+    public boolean startReceiving(Receiver receiver)
+    {
+        return true;
+    }
+
+    @Override
+    public void stopReceiving()
+    {
+    }
+
+    long getBytesWritten()
+    {
+        return bytesWritten;
+    }
+
+    long getWriteCount()
+    {
+        return writeCount;
+    }
+}
@@ -0,0 +1,94 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.UnsupportedEncodingException;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Parsing one 64 byte IN packet holding four I2C transfer results: the String conversion the
+ * read callback used to do (legacyStringDecode), the read tracker alone, and the reassembler fed
+ * whole packets or 7 byte pieces.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameParsingBenchmark
+{
+    private final byte[] packet = new byte[CP2615PacketEncoder.PACKET_SIZE];
+    private final I2CReadTracker tracker = new I2CReadTracker();
+    private int frames;
+    private final IOPFrameAssembler assembler = new IOPFrameAssembler(new IOPFrameAssembler.FrameListener()
+    {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length)
+        {
+            frames++;
+            tracker.dispatch(buffer, offset, length);
+        }
+    });
+
+    @Setup
+    public void setUp()
+    {
+        CP2615PacketEncoder encoder = new CP2615PacketEncoder(packet.length);
+        for(int tag=2; tag<6; tag++)
+        {
+            // Result layout: 10 byte header, then 4 bytes read
+            int length = CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH + 4;
+            encoder.put(CP2615PacketEncoder.IOP_PREAMBLE >> 8);
+            encoder.put(CP2615PacketEncoder.IOP_PREAMBLE);
+            encoder.put(length >> 8);
+            encoder.put(length);
+            encoder.put(CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT >> 8);
+            encoder.put(CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT);
+            encoder.put(tag);
+            encoder.put(CP2615Commands.DAC_SLAVE);
+            encoder.put(I2CReadCallback.STATUS_SUCCESS);
+            encoder.put(4);
+            for(int i=0; i<4; i++)
+                encoder.put(i);
+        }
+        System.arraycopy(encoder.getBuffer(), 0, packet, 0, encoder.getLength());
+    }
+
+    @Benchmark
+    public void legacyStringDecode(Blackhole blackhole) throws UnsupportedEncodingException
+    {
+        blackhole.consume(new String(packet, "UTF-8"));
+    }
+
+    @Benchmark
+    public void trackerDispatch()
+    {
+        tracker.dispatch(packet, 0, packet.length);
+    }
+
+    @Benchmark
+    public int assembleWholePacket()
+    {
+        assembler.feed(packet, 0, packet.length);
+        return frames;
+    }
+
+    @Benchmark
+    public int assembleSplitPacket()
+    {
+        for(int offset = 0; offset < packet.length; offset += 7)
+            assembler.feed(packet, offset, Math.min(7, packet.length - offset));
+        return frames;
+    }
+}
@@ -0,0 +1,102 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Round trip through CP2615Link: a command is queued on the calling thread, the writer worker is
+ * woken, sends it through the transport and completes the callback. The transport answers at once,
+ * so this is the cost of the handoff between threads plus the pipeline itself. readRoundTrip adds
+ * the response path through the simulated board, reassembler and read tracker.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LinkDispatchBenchmark
+{
+    private SimulatedCP2615 device;
+    private CP2615Link link;
+    private VolumeWriter volumeWriter;
+    private final Completion completion = new Completion();
+    private final byte[] register = {(byte) CP2615Commands.LED_COLOUR_REGISTER};
+    private int attenuation;
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        device = new SimulatedCP2615();
+        link = new CP2615Link(device);
+        link.start();
+        volumeWriter = new VolumeWriter(link);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        link.stop();
+    }
+
+    @Benchmark
+    public int volumeWriteRoundTrip()
+    {
+        attenuation = (attenuation + 1) % (DacAttenuation.MAX_ATTENUATION + 1);
+        completion.reset();
+        volumeWriter.write(DacAttenuation.reg10(attenuation), DacAttenuation.reg1(attenuation), completion);
+        return completion.await();
+    }
+
+    @Benchmark
+    public int readRoundTrip()
+    {
+        completion.reset();
+        link.readI2C(CP2615Commands.LED_SLAVE, register, 0, 1, 1, completion);
+        return completion.await();
+    }
+
+    private static final class Completion implements I2CCommandCallback, I2CReadCallback
+    {
+        private volatile boolean done;
+        private volatile int result;
+
+        void reset()
+        {
+            done = false;
+        }
+
+        int await()
+        {
+            while(!done)
+                Thread.yield();
+            return result;
+        }
+
+        @Override
+        public void onCommandComplete(int result)
+        {
+            this.result = result;
+            done = true;
+        }
+
+        @Override
+        public void onReadComplete(int status, byte[] data, int offset, int length)
+        {
+            result = status;
+            done = true;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Building and sending a DAC volume command. legacyBuildI2CCommand is the int[] literal plus
+ * buildI2CCommand() path UsbService used before the packet encoder, kept as the baseline.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PacketEncodingBenchmark
+{
+    private final CountingTransport transport = new CountingTransport();
+    private final CP2615PacketEncoder encoder = new CP2615PacketEncoder();
+    private int attenuation;
+
+    @Benchmark
+    public int legacyBuildI2CCommand()
+    {
+        int reg10 = nextReg10();
+        int reg1 = nextReg1();
+        int[] command = new int[]{42, 42, 0, 15, 212, 0, 1, 136, 0, 5, 136, 240, 116, reg10, reg1, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+        byte[] buffer1 = buildI2CCommand(command);
+        int[] blankInts = new int[command.length];
+        Arrays.fill(blankInts, 0);
+        byte[] buffer2 = buildI2CCommand(blankInts);
+        return transport.bulkWrite(buffer1, 15, CP2615Link.I2C_WRITE_TIMEOUT)
+                + transport.bulkWrite(buffer2, 64, CP2615Link.I2C_WRITE_TIMEOUT);
+    }
+
+    @Benchmark
+    public int encodeVolume()
+    {
+        encoder.reset();
+        CP2615Commands.encodeVolume(encoder, nextReg10(), nextReg1());
+        return transport.bulkWrite(encoder.getBuffer(), encoder.getLength(), CP2615Link.I2C_WRITE_TIMEOUT)
+                + transport.bulkWrite(CP2615PacketEncoder.BLANK_PACKET, CP2615Commands.VOLUME_BLANK_LENGTH, CP2615Link.I2C_WRITE_TIMEOUT);
+    }
+
+    @Benchmark
+    public int encodeVolumeAndLedBatch()
+    {
+        encoder.reset();
+        CP2615Commands.encodeVolume(encoder, nextReg10(), nextReg1());
+        CP2615Commands.encodeLedColour(encoder, CP2615Commands.LED_GREEN);
+        return transport.bulkWrite(encoder.getBuffer(), encoder.getLength(), CP2615Link.I2C_WRITE_TIMEOUT);
+    }
+
+    private int nextReg10()
+    {
+        attenuation = (attenuation + 1) % (DacAttenuation.MAX_ATTENUATION + 1);
+        return DacAttenuation.reg10(attenuation);
+    }
+
+    private int nextReg1()
+    {
+        return DacAttenuation.reg1(attenuation);
+    }
+
+    private static byte[] buildI2CCommand(int[] command)
+    {
+        byte[] commandBytes = new byte[command.length];
+        for(int k=0; k<commandBytes.length; k++)
+            commandBytes[k] = (byte) (command[k] & 0xFF);
+        return commandBytes;
+    }
+}
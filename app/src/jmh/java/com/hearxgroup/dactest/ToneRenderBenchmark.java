@@ -0,0 +1,43 @@
+package com.hearxgroup.dactest;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/*
+ * Rendering one 256 frame burst at 48 kHz, about 5.3 ms of audio. gc.alloc.rate.norm must be 0.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ToneRenderBenchmark
+{
+    private final ToneRenderer renderer = new ToneRenderer(48000);
+    private final short[] buffer = new short[256];
+
+    @Setup
+    public void setUp()
+    {
+        renderer.setTone(1000, TonePlayer.AMPLITUDE_HIGH);
+        renderer.start();
+    }
+
+    @Benchmark
+    public short[] renderBurst()
+    {
+        renderer.render(buffer, 0, buffer.length);
+        return buffer;
+    }
+}
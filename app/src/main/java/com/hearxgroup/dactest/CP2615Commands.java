@@ -0,0 +1,51 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Encodings of the I2C commands understood by the boards behind the CP2615, declared as one
+ * I2CRegisterMap per slave and compiled into PacketTemplates when the class loads.
+ */
+final class CP2615Commands
+{
+    // I2C slaves (8 bit address form)
+    static final int LED_SLAVE = 0x10;
+    static final int DAC_SLAVE = 0x88;
+
+    // First byte of each write, the register as far as RegisterShadow is concerned
+    static final int DAC_VOLUME_REGISTER = 0x88;
+    static final int LED_COLOUR_REGISTER = 1;
+
+    static final int LED_RED = 1;
+    static final int LED_GREEN = 2;
+    static final int LED_BLUE = 3;
+
+    // Length of the zero flush packet historically sent after each single command
+    static final int VOLUME_BLANK_LENGTH = CP2615PacketEncoder.PACKET_SIZE;
+    static final int LED_BLANK_LENGTH = 13;
+
+    static final I2CRegisterMap DAC = new I2CRegisterMap("dac", DAC_SLAVE,
+            // reg10 selects the 10 dB step (224..231), reg1 the 1 dB step (208..217)
+            I2CRegisterMap.write("volume", DAC_VOLUME_REGISTER, 240, 116, I2CRegisterMap.FIELD, I2CRegisterMap.FIELD));
+
+    static final I2CRegisterMap LED = new I2CRegisterMap("led", LED_SLAVE,
+            I2CRegisterMap.write("colour", LED_COLOUR_REGISTER, I2CRegisterMap.FIELD, 23));
+
+    static final PacketTemplate VOLUME = DAC.get("volume");
+    static final PacketTemplate LED_COLOUR = LED.get("colour");
+
+    private CP2615Commands()
+    {
+    }
+
+    /*
+     * DAC attenuation, see VOLUME. Returns false if the command does not fit in the encoder.
+     */
+    static boolean encodeVolume(CP2615PacketEncoder encoder, int reg10, int reg1)
+    {
+        return VOLUME.encode(encoder, reg10, reg1);
+    }
+
+    static boolean encodeLedColour(CP2615PacketEncoder encoder, int colour)
+    {
+        return LED_COLOUR.encode(encoder, colour);
+    }
+}
@@ -0,0 +1,406 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+/*
+ * The I2C command pipeline of one CP2615, independent of how bytes reach the board.
+ *
+ * Commands are queued by any thread into the preallocated I2CCommandQueue and sent by a single
+ * writer worker through the transport. Inbound bytes from the transport are reassembled into IOP
+ * messages; I2C read results are matched to their request by tag, then every message goes to the
+ * optional frame listener. Reads whose result does not arrive in time are failed by the writer.
+ * Successful register writes are mirrored in the RegisterShadow so that repeats can be skipped.
+ * Transfer timeouts follow the observed latency (TransferTimeoutPolicy) and failed transfers are
+ * retried a few times before the command reports the failure.
+ */
+class CP2615Link
+{
+    private static final String TAG = CP2615Link.class.getSimpleName();
+    static final int I2C_WRITE_TIMEOUT = 1500;
+
+    private final CP2615Transport transport;
+
+    // I2C commands are queued by any thread and sent by a single writer thread
+    private final I2CCommandQueue commandQueue = new I2CCommandQueue();
+    private WriterWorker writerWorker;
+    // Held while consuming a command, so that stop() can drain the queue without a second consumer
+    private final ReentrantLock consumerLock = new ReentrantLock();
+    // Set by stop(): commands submitted afterwards are cancelled at once, no writer would send them
+    private volatile boolean stopped;
+    // Bumped by every cancelAllQueued(), so that the holder of consumerLock drains again for it
+    private final AtomicInteger cancelRequests = new AtomicInteger();
+    // Commands claimed before this queue position complete as superseded without being sent
+    private volatile long supersededBefore;
+
+    // Latency of every transfer, by command type and stage
+    private final TransferStats transferStats = new TransferStats();
+    private final TransferTimeoutPolicy timeoutPolicy = new TransferTimeoutPolicy(transferStats);
+    // Recent commands and results, dumped on demand
+    private final TraceRing trace = new TraceRing();
+
+    // Responses to I2C reads are matched to their request by tag
+    private final I2CReadTracker readTracker = new I2CReadTracker(transferStats);
+    // Reassembles inbound messages split across reads; results go to readTracker, then frameListener
+    private final IOPFrameAssembler frameAssembler = new IOPFrameAssembler(new IOPFrameAssembler.FrameListener()
+    {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length)
+        {
+            if(length >= CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH
+                    && CP2615PacketEncoder.messageType(buffer, offset) == CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT)
+                trace.record(TraceRing.EVENT_RESULT, buffer[offset + 7], buffer[offset + 6], buffer[offset + 8]);
+            readTracker.dispatch(buffer, offset, length);
+            IOPFrameAssembler.FrameListener listener = frameListener;
+            if(listener != null)
+                listener.onFrame(buffer, offset, length);
+        }
+    });
+    private volatile IOPFrameAssembler.FrameListener frameListener;
+    private volatile boolean receiving;
+
+    // Last known register values, used to skip writes that would not change anything
+    private final RegisterShadow registerShadow = new RegisterShadow();
+
+    CP2615Link(CP2615Transport transport)
+    {
+        this.transport = transport;
+    }
+
+    /*
+     * Starts the writer and inbound delivery. Returns false, with neither left running, if either
+     * cannot be started, e.g. because the I/O pool has no thread left.
+     */
+    synchronized boolean start()
+    {
+        stopped = false;
+        // Also restarts a writer whose loop was ended by an exception
+        WriterWorker writer = writerWorker != null ? writerWorker : new WriterWorker();
+        if(!writer.start())
+        {
+            writerWorker = null;
+            return false;
+        }
+        writerWorker = writer;
+        if(!receiving)
+        {
+            frameAssembler.reset();
+            receiving = transport.startReceiving(new CP2615Transport.Receiver()
+            {
+                @Override
+                public void onReceived(byte[] buffer, int offset, int length)
+                {
+                    frameAssembler.feed(buffer, offset, length);
+                }
+            });
+            if(!receiving)
+            {
+                stop();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Stops the writer and inbound delivery, cancels pending reads and forgets the register shadow.
+     * Commands still queued complete with RESULT_CANCELLED, on the calling thread or on the
+     * writer's as it finishes, as do commands submitted until the next start(). Waits for a
+     * transfer in progress, at most its timeout.
+     */
+    synchronized void stop()
+    {
+        stopped = true;
+        if(writerWorker != null)
+        {
+            writerWorker.cancel();
+            writerWorker = null;
+        }
+        cancelAllQueued();
+        if(receiving)
+        {
+            receiving = false;
+            transport.stopReceiving();
+        }
+        readTracker.cancelAll(I2CReadCallback.STATUS_CANCELLED);
+        registerShadow.clear();
+    }
+
+    /*
+     * Largest transfer the writer sends in one write: the transport packet size, capped by the
+     * size of a command slot.
+     */
+    int getMaxPacketSize()
+    {
+        return Math.min(transport.getMaxPacketSize(), CP2615PacketEncoder.PACKET_SIZE);
+    }
+
+    RegisterShadow getRegisterShadow()
+    {
+        return registerShadow;
+    }
+
+    TransferStats getTransferStats()
+    {
+        return transferStats;
+    }
+
+    TraceRing getTrace()
+    {
+        return trace;
+    }
+
+    /*
+     * Claims a preallocated command slot without blocking. Returns null if the command queue is
+     * full. The caller encodes the command into the slot and hands it back with submitCommand().
+     */
+    I2CCommand claimCommand()
+    {
+        return commandQueue.claim();
+    }
+
+    /*
+     * Hands back a claimed slot that could not be encoded. The writer skips it without a callback.
+     */
+    void abandonCommand(I2CCommand command)
+    {
+        command.clear();
+        submitCommand(command);
+    }
+
+    /*
+     * Every command claimed so far that has not been sent yet completes with RESULT_SUPERSEDED
+     * instead, e.g. because newer commands replace what they would write.
+     */
+    void cancelQueued()
+    {
+        supersededBefore = commandQueue.getClaimPosition();
+        WriterWorker writer = writerWorker;
+        if(writer != null)
+            writer.wake();
+    }
+
+    /*
+     * Publishes a claimed command to the writer. While stopped the command completes with
+     * RESULT_CANCELLED on the calling thread instead.
+     */
+    void submitCommand(I2CCommand command)
+    {
+        command.submittedNanos = System.nanoTime();
+        commandQueue.submit(command);
+        // Checked after publishing: either stop() drains this command or this sees stopped
+        if(stopped)
+        {
+            cancelAllQueued();
+            return;
+        }
+        WriterWorker writer = writerWorker;
+        if(writer != null)
+            writer.wake();
+    }
+
+    /*
+     * Queues an I2C write-then-read transaction: the write bytes (usually a register address) are
+     * sent to the slave, then readLength bytes are read back. Returns false without calling the
+     * callback if the link is not receiving, every tag is in use or the command queue is full.
+     */
+    boolean readI2C(int slave, byte[] write, int writeOffset, int writeLength, int readLength, I2CReadCallback callback)
+    {
+        if(writeLength > CP2615PacketEncoder.PACKET_SIZE - CP2615PacketEncoder.IOP_HEADER_LENGTH - CP2615PacketEncoder.I2C_HEADER_LENGTH)
+            throw new IllegalArgumentException("I2C write of " + writeLength + " bytes does not fit in a packet");
+        if(!receiving)
+            return false;
+        int tag = readTracker.register(callback);
+        if(tag < 0)
+            return false;
+        I2CCommand command = claimCommand();
+        if(command == null)
+        {
+            readTracker.release(tag);
+            return false;
+        }
+        command.frame.beginI2CTransfer(tag, slave, readLength, writeLength);
+        for(int i=0; i<writeLength; i++)
+            command.frame.put(write[writeOffset + i]);
+        command.callback = readTracker.writeCallback(tag);
+        trace.record(TraceRing.EVENT_READ, slave, writeLength > 0 ? write[writeOffset] : 0, readLength);
+        submitCommand(command);
+        return true;
+    }
+
+    /*
+     * Receives every complete inbound message on the transport thread, after I2C read results
+     * have been delivered to their callbacks.
+     */
+    void setFrameListener(IOPFrameAssembler.FrameListener listener)
+    {
+        frameListener = listener;
+    }
+
+    /*
+     * Completes every published command with RESULT_CANCELLED, as the consumer. Never waits for
+     * consumerLock: the writer runs callbacks while holding it, and a submitter may hold a lock of
+     * its own that such a callback needs. Whoever holds it drains again after releasing it.
+     */
+    private void cancelAllQueued()
+    {
+        cancelRequests.incrementAndGet();
+        while(consumerLock.tryLock())
+        {
+            int requests = cancelRequests.get();
+            try
+            {
+                for(I2CCommand command = commandQueue.peek(); command != null; command = commandQueue.peek())
+                    drop(command, I2CCommandCallback.RESULT_CANCELLED);
+            }finally
+            {
+                consumerLock.unlock();
+            }
+            // Nobody asked while the lock was held, or what they published was drained above
+            if(cancelRequests.get() == requests)
+                return;
+        }
+    }
+
+    /*
+     * Consumer side: completes the command returned by the last peek() without sending it.
+     */
+    private void drop(I2CCommand command, int result)
+    {
+        trace.record(TraceRing.EVENT_DROPPED, command.frame.getBuffer()[7], 0, result);
+        I2CCommandCallback callback = command.callback;
+        commandQueue.release(command);
+        if(callback != null)
+            callback.onCommandComplete(result);
+    }
+
+    /*
+        Worker that drains the command queue and performs the blocking writes, so callers
+        (usually the UI thread) only ever enqueue
+    */
+    private class WriterWorker extends LocalAbstractWorker
+    {
+        WriterWorker()
+        {
+            super(TAG + "-writer");
+        }
+
+        @Override
+        void doRun()
+        {
+            boolean sent;
+            consumerLock.lock();
+            try
+            {
+                sent = !isCancelled() && sendNext();
+            }finally
+            {
+                consumerLock.unlock();
+            }
+            // A cancelAllQueued() may have found the lock taken
+            if(stopped)
+                cancelAllQueued();
+            if(isCancelled())
+                return;
+            if(sent)
+                readTracker.expire(System.nanoTime());
+            else
+                idle();
+        }
+
+        /*
+         * Parks until woken, or until the next read deadline while reads await their result.
+         */
+        private void idle()
+        {
+            long untilDeadline = readTracker.expire(System.nanoTime());
+            if(untilDeadline < 0)
+                LockSupport.park(this);
+            else if(untilDeadline > 0)
+                LockSupport.parkNanos(this, untilDeadline);
+        }
+
+        /*
+         * Sends the next queued command, or returns false if there is none.
+         */
+        private boolean sendNext()
+        {
+            I2CCommand command = commandQueue.peek();
+            if(command == null)
+                return false;
+            if(command.position < supersededBefore)
+            {
+                drop(command, I2CCommandCallback.RESULT_SUPERSEDED);
+                return true;
+            }
+            if(command.frame.getLength() == 0)
+            {
+                drop(command, I2CCommandCallback.RESULT_INVALID);
+                return true;
+            }
+
+            CP2615PacketEncoder frame = command.frame;
+            int type = TransferStats.commandType(frame.getBuffer(), frame.getLength());
+            long start = System.nanoTime();
+            transferStats.record(type, TransferStats.STAGE_QUEUE, start - command.submittedNanos);
+            int slave = frame.getBuffer()[7];
+            int register = frame.getLength() > CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH
+                    ? frame.getBuffer()[CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH] : 0;
+            int result;
+            if(registerShadow.matches(frame.getBuffer(), frame.getLength()))
+            {
+                result = I2CCommandCallback.RESULT_CACHED;
+                trace.record(TraceRing.EVENT_CACHED, slave, register, result);
+            }else
+            {
+                if(type == TransferStats.TYPE_READ)
+                {
+                    // Armed before writing, so a result arriving at once cannot precede its
+                    // deadline. Room for every attempt of the write; a failed write cancels the
+                    // read instead.
+                    long timeoutMs = (long) timeoutPolicy.getTimeoutMs(type) * TransferTimeoutPolicy.MAX_ATTEMPTS
+                            + timeoutPolicy.getResponseTimeoutMs();
+                    readTracker.markSent(frame.getBuffer()[6] & 0xFF, start, start + TimeUnit.MILLISECONDS.toNanos(timeoutMs));
+                }
+                result = write(type, frame.getBuffer(), frame.getLength(), slave, register);
+                trace.record(TraceRing.EVENT_SENT, slave, register, result);
+                if(result == frame.getLength())
+                    registerShadow.update(frame.getBuffer(), frame.getLength());
+                else
+                    registerShadow.invalidate(frame.getBuffer(), frame.getLength());
+                if(command.blankLength > 0 && result >= 0)
+                {
+                    int blankResult = write(TransferStats.TYPE_BLANK, CP2615PacketEncoder.BLANK_PACKET, command.blankLength, slave, register);
+                    trace.record(TraceRing.EVENT_BLANK, slave, register, blankResult);
+                }
+            }
+
+            // Recycle the slot before the callback so the callback may queue a follow-up command
+            I2CCommandCallback callback = command.callback;
+            commandQueue.release(command);
+            if(callback != null)
+                callback.onCommandComplete(result);
+            return true;
+        }
+
+        /*
+         * One bulk transfer with the adaptive timeout, retried with backoff while it fails. Short
+         * writes are not retried: part of the message may already have reached the board.
+         */
+        private int write(int type, byte[] buffer, int length, int slave, int register)
+        {
+            for(int attempt = 1; ; attempt++)
+            {
+                long start = System.nanoTime();
+                int result = transport.bulkWrite(buffer, length, timeoutPolicy.getTimeoutMs(type));
+                transferStats.recordTransfer(type, System.nanoTime() - start, result, length);
+                if(result >= 0 || attempt == TransferTimeoutPolicy.MAX_ATTEMPTS || isCancelled())
+                    return result;
+                trace.record(TraceRing.EVENT_RETRY, slave, register, result);
+                LockSupport.parkNanos(TransferTimeoutPolicy.backoffNanos(attempt));
+            }
+        }
+    }
+}
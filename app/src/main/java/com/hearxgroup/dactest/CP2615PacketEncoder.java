@@ -0,0 +1,158 @@
+package com.hearxgroup.dactest;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Encodes CP2615 I/O protocol (IOP) messages straight into a preallocated buffer.
+ * Encoders are preallocated with the I2CCommandQueue slots and reused for every send, so the
+ * command hot path does not allocate.
+ *
+ * IOP message layout (big endian):
+ *  [0..1] preamble 0x2A2A
+ *  [2..3] total message length, header included
+ *  [4..5] message type (0xD400 = I2C transfer request)
+ *  I2C transfer request payload:
+ *  [6] tag, [7] slave address (8 bit form), [8] read length, [9] write length, [10..] write data
+ *  The device answers with an I2C transfer result (0xD401):
+ *  [6] tag, [7] slave address, [8] status, [9] read length, [10..] read data
+ */
+class CP2615PacketEncoder
+{
+    static final int PACKET_SIZE = 64;
+
+    static final int IOP_PREAMBLE = 0x2A2A;
+    static final int IOP_I2C_TRANSFER = 0xD400;
+    static final int IOP_I2C_TRANSFER_RESULT = 0xD401;
+    static final int IOP_HEADER_LENGTH = 6;
+    static final int I2C_HEADER_LENGTH = 4;
+    static final int DEFAULT_TAG = 1;
+    // Longest I2C write that still fits one packet as a single message
+    static final int MAX_WRITE_LENGTH = PACKET_SIZE - IOP_HEADER_LENGTH - I2C_HEADER_LENGTH;
+
+    // Zero filled packet sent after some commands to flush the device side buffer. Never written.
+    static final byte[] BLANK_PACKET = new byte[PACKET_SIZE];
+
+    private final byte[] buffer;
+    private int position;
+
+    CP2615PacketEncoder()
+    {
+        this(PACKET_SIZE);
+    }
+
+    CP2615PacketEncoder(int capacity)
+    {
+        buffer = new byte[capacity];
+    }
+
+    /*
+     * Discard whatever has been encoded so far. The buffer contents are not cleared, only the
+     * first getLength() bytes are ever sent.
+     */
+    void reset()
+    {
+        position = 0;
+    }
+
+    /*
+     * Start an I2C write message. The caller must follow up with exactly writeLength put() calls.
+     * Returns false, and leaves the buffer untouched, if the message does not fit.
+     */
+    boolean beginI2CWrite(int slave, int writeLength)
+    {
+        return beginI2CTransfer(DEFAULT_TAG, slave, 0, writeLength);
+    }
+
+    boolean beginI2CTransfer(int tag, int slave, int readLength, int writeLength)
+    {
+        int length = IOP_HEADER_LENGTH + I2C_HEADER_LENGTH + writeLength;
+        if(position + length > buffer.length)
+            return false;
+
+        put16(IOP_PREAMBLE);
+        put16(length);
+        put16(IOP_I2C_TRANSFER);
+        put(tag);
+        put(slave);
+        put(readLength);
+        put(writeLength);
+        return true;
+    }
+
+    /*
+     * Appends an already encoded message, e.g. one staged by an I2CBatch. Returns false, and leaves
+     * the buffer untouched, if it does not fit.
+     */
+    boolean putMessage(byte[] source, int offset, int length)
+    {
+        if(position + length > buffer.length)
+            return false;
+        System.arraycopy(source, offset, buffer, position, length);
+        position += length;
+        return true;
+    }
+
+    boolean putMessage(ByteBuffer source, int offset, int length)
+    {
+        if(position + length > buffer.length)
+            return false;
+        for(int i=0; i<length; i++)
+            buffer[position++] = source.get(offset + i);
+        return true;
+    }
+
+    void put(int value)
+    {
+        buffer[position++] = (byte) (value & 0xFF);
+    }
+
+    /*
+     * Overwrites an already encoded byte, e.g. a field of a message copied from a PacketTemplate.
+     */
+    void set(int position, int value)
+    {
+        buffer[position] = (byte) (value & 0xFF);
+    }
+
+    private void put16(int value)
+    {
+        buffer[position++] = (byte) (value >> 8 & 0xFF);
+        buffer[position++] = (byte) (value & 0xFF);
+    }
+
+    byte[] getBuffer()
+    {
+        return buffer;
+    }
+
+    int getLength()
+    {
+        return position;
+    }
+
+    int getCapacity()
+    {
+        return buffer.length;
+    }
+
+    /*
+     * Total length of the IOP message starting at offset, as stored in its header.
+     */
+    static int messageLength(byte[] buffer, int offset)
+    {
+        return (buffer[offset + 2] & 0xFF) << 8 | (buffer[offset + 3] & 0xFF);
+    }
+
+    /*
+     * Type of the IOP message starting at offset, e.g. IOP_I2C_TRANSFER_RESULT.
+     */
+    static int messageType(byte[] buffer, int offset)
+    {
+        return (buffer[offset + 4] & 0xFF) << 8 | (buffer[offset + 5] & 0xFF);
+    }
+
+    static int messageLength(ByteBuffer buffer, int offset)
+    {
+        return (buffer.get(offset + 2) & 0xFF) << 8 | (buffer.get(offset + 3) & 0xFF);
+    }
+}
@@ -14,7 +14,13 @@ import com.felhr.usbserial.UsbSerialDevice;
 import com.felhr.usbserial.UsbSerialInterface;
 import com.felhr.utils.SafeUsbRequest;
 
-public class CP2615SerialDevice extends UsbSerialDevice
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+public class CP2615SerialDevice extends UsbSerialDevice implements CP2615Transport
 {
 
     private static final String TAG = CP2615SerialDevice.class.getSimpleName();
@@ -67,6 +73,7 @@ public class CP2615SerialDevice extends UsbSerialDevice
     private static final int CP210x_XOFF = 0x0000;
     private static final int DEFAULT_BAUDRATE = 9600;
 
+
     /**
      * Flow control variables
      */
@@ -78,12 +85,34 @@ public class CP2615SerialDevice extends UsbSerialDevice
     private UsbCTSCallback ctsCallback;
     private UsbDSRCallback dsrCallback;
 
+    private final int interfaceIndex;
     private final UsbInterface mInterface;
     private UsbInterface zeroInterface;
     private UsbEndpoint inEndpoint;
     private UsbEndpoint outEndpoint;
+    private UsbEndpoint interruptEndpoint;
+
+    private FlowControlTask flowControlTask;
+
+    // Endpoint layout from the last session, if any, and whether open() could use it
+    private DeviceLayout cachedLayout;
+    private boolean layoutReused;
+
+    // The I2C command pipeline, writing through this device and fed by its reader
+    private final CP2615Link link = new CP2615Link(this);
 
-    private FlowControlThread flowControlThread;
+    // Inbound data from inEndpoint is handed to the receiver by the reader worker
+    private volatile Receiver receiver;
+    private UsbRequest requestIN;
+    private ReaderWorker readerWorker;
+    // Held while the reader queues its requests and while stopping it cancels them, so that a
+    // request can never be queued after the cancel and leave the reader blocked in requestWait()
+    private final Object requestLock = new Object();
+
+    // Line and error status reports, delivered by the interrupt endpoint when the device has one
+    private UsbRequest requestStatus;
+    private final byte[] modemStatus = new byte[1];
+    private final byte[] commStatus = new byte[19];
 
     // COMM_STATUS callbacks
     private UsbSerialInterface.UsbParityCallback parityCallback;
@@ -97,6 +126,16 @@ public class CP2615SerialDevice extends UsbSerialDevice
     }
 
     public CP2615SerialDevice(UsbDevice device, UsbDeviceConnection connection, int iface)
+    {
+        this(device, connection, iface, null);
+    }
+
+    /*
+     * With a layout cached from a previous session the interface and endpoints are taken from it,
+     * skipping the interface dump and endpoint scan. A layout that no longer fits the device is
+     * ignored and the endpoints are scanned as usual.
+     */
+    CP2615SerialDevice(UsbDevice device, UsbDeviceConnection connection, int iface, DeviceLayout layout)
     {
         super(device, connection);
         rtsCtsEnabled = false;
@@ -104,12 +143,22 @@ public class CP2615SerialDevice extends UsbSerialDevice
         ctsState = true;
         dsrState = true;
 
+        if(layout != null && layout.interfaceIndex < device.getInterfaceCount())
+        {
+            cachedLayout = layout;
+            interfaceIndex = layout.interfaceIndex;
+            mInterface = device.getInterface(interfaceIndex);
+            zeroInterface = device.getInterface(0);
+            return;
+        }
+
         for(int h=0; h<device.getInterfaceCount(); h++) {
             Log.d(TAG, "Ïnterface h ="+device.getInterface(h));
         }
 
 
-        mInterface = device.getInterface(iface >= 0 ? iface : 0);
+        interfaceIndex = iface >= 0 ? iface : 0;
+        mInterface = device.getInterface(interfaceIndex);
         zeroInterface = device.getInterface(0);
 
         Log.d(TAG, "Chosen Interface="+mInterface);
@@ -124,6 +173,56 @@ public class CP2615SerialDevice extends UsbSerialDevice
         return inEndpoint;
     }
 
+    UsbEndpoint getInterruptEndpoint() {
+        return interruptEndpoint;
+    }
+
+    int getInterfaceIndex() {
+        return interfaceIndex;
+    }
+
+    /*
+     * True if the last open() took its endpoints from the cached layout.
+     */
+    boolean isLayoutReused() {
+        return layoutReused;
+    }
+
+    CP2615Link getLink() {
+        return link;
+    }
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        UsbEndpoint endpoint = outEndpoint;
+        if(endpoint == null)
+            return CP2615PacketEncoder.PACKET_SIZE;
+        return endpoint.getMaxPacketSize();
+    }
+
+    @Override
+    public int bulkWrite(byte[] buffer, int length, int timeoutMs)
+    {
+        return connection.bulkTransfer(outEndpoint, buffer, length, timeoutMs);
+    }
+
+    @Override
+    public boolean startReceiving(Receiver receiver)
+    {
+        if(inEndpoint == null)
+            return false;
+        this.receiver = receiver;
+        return startReaderWorker();
+    }
+
+    @Override
+    public void stopReceiving()
+    {
+        stopReaderWorker();
+        receiver = null;
+    }
+
     @Override
     public boolean open()
     {
@@ -132,8 +231,13 @@ public class CP2615SerialDevice extends UsbSerialDevice
         if(ret)
         {
             // Initialize UsbRequest
-            UsbRequest requestIN = new SafeUsbRequest();
+            requestIN = new SafeUsbRequest();
             requestIN.initialize(connection, inEndpoint);
+            if(interruptEndpoint != null)
+            {
+                requestStatus = new SafeUsbRequest();
+                requestStatus.initialize(connection, interruptEndpoint);
+            }
 
             // Restart the working thread if it has been killed before and  get and claim interface
             //restartWorkingThread();
@@ -145,6 +249,14 @@ public class CP2615SerialDevice extends UsbSerialDevice
             // Pass references to the threads
             //setThreadsParams(requestIN, outEndpoint);
 
+            if(!link.start())
+            {
+                Log.w(CLASS_ID, "Could not start the I/O workers");
+                connection.releaseInterface(mInterface);
+                isOpen = false;
+                return false;
+            }
+
             asyncMode = true;
             isOpen = true;
 
@@ -163,7 +275,8 @@ public class CP2615SerialDevice extends UsbSerialDevice
         //setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
         killWorkingThread();
         killWriteThread();
-        stopFlowControlThread();
+        link.stop();
+        stopFlowControlTask();
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -199,7 +312,7 @@ public class CP2615SerialDevice extends UsbSerialDevice
         Log.d(TAG, "syncOpen()");
         //setControlCommand(CP210x_PURGE, CP210x_PURGE_ALL, null);
         //setControlCommand(CP210x_IFC_ENABLE, CP210x_UART_DISABLE, null);
-        stopFlowControlThread();
+        stopFlowControlTask();
         connection.releaseInterface(mInterface);
         isOpen = false;
     }
@@ -320,7 +433,7 @@ public class CP2615SerialDevice extends UsbSerialDevice
                 //setControlCommand(CP210x_SET_MHS, CP210x_MHS_RTS_ON, null);
                 byte[] commStatusCTS = getCommStatus();
                 ctsState = (commStatusCTS[4] & 0x01) == 0x00;
-                startFlowControlThread();
+                startFlowControlTask();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_DSR_DTR:
                 byte[] dataDSRDTR = new byte[]{
@@ -335,7 +448,7 @@ public class CP2615SerialDevice extends UsbSerialDevice
                 //setControlCommand(CP210x_SET_MHS, CP210x_MHS_DTR_ON, null);
                 byte[] commStatusDSR = getCommStatus();
                 dsrState = (commStatusDSR[4] & 0x02) == 0x00;
-                startFlowControlThread();
+                startFlowControlTask();
                 break;
             case UsbSerialInterface.FLOW_CONTROL_XON_XOFF:
                 byte[] dataXONXOFF = new byte[]{
@@ -425,84 +538,109 @@ public class CP2615SerialDevice extends UsbSerialDevice
     public void getParity(UsbParityCallback parityCallback)
     {
         this.parityCallback = parityCallback;
-        startFlowControlThread();
+        startFlowControlTask();
     }
 
     /*
-        Thread to check every X time if flow signals CTS or DSR have been raised
-    */
-    private class FlowControlThread extends LocalAbstractWorkerThread
+     * Applies a status report: fires the CTS/DSR callbacks when a line changed and the error
+     * callbacks for every error bit set. modem is the modem status byte, errors the first comm
+     * status byte. Returns true if anything was reported.
+     */
+    private boolean processStatus(int modem, int errors)
     {
-        private final long time = 40; // 40ms
+        boolean changed = false;
 
-        @Override
-        public void doRun()
+        // Check CTS status
+        if(rtsCtsEnabled && ctsState != ((modem & 0x10) == 0x10))
         {
-            if(!firstTime) // Only execute the callback when the status change
-            {
-                byte[] modemState = pollLines();
-                byte[] commStatus = getCommStatus();
+            ctsState = !ctsState;
+            changed = true;
+            if (ctsCallback != null)
+                ctsCallback.onCTSChanged(ctsState);
+        }
 
-                // Check CTS status
-                if(rtsCtsEnabled)
-                {
-                    if(ctsState != ((modemState[0] & 0x10) == 0x10))
-                    {
-                        ctsState = !ctsState;
-                        if (ctsCallback != null)
-                            ctsCallback.onCTSChanged(ctsState);
-                    }
-                }
+        // Check DSR status
+        if(dtrDsrEnabled && dsrState != ((modem & 0x20) == 0x20))
+        {
+            dsrState = !dsrState;
+            changed = true;
+            if (dsrCallback != null)
+                dsrCallback.onDSRChanged(dsrState);
+        }
 
-                // Check DSR status
-                if(dtrDsrEnabled)
-                {
-                    if(dsrState != ((modemState[0] & 0x20) == 0x20))
-                    {
-                        dsrState = !dsrState;
-                        if (dsrCallback != null)
-                            dsrCallback.onDSRChanged(dsrState);
-                    }
-                }
+        //Check Parity Errors
+        if(parityCallback != null && (errors & 0x10) == 0x10)
+        {
+            changed = true;
+            parityCallback.onParityError();
+        }
 
-                //Check Parity Errors
-                if(parityCallback != null)
-                {
-                    if((commStatus[0] & 0x10) == 0x10)
-                    {
-                        parityCallback.onParityError();
-                    }
-                }
+        // Check frame error
+        if(frameCallback != null && (errors & 0x02) == 0x02)
+        {
+            changed = true;
+            frameCallback.onFramingError();
+        }
 
-                // Check frame error
-                if(frameCallback != null)
-                {
-                    if((commStatus[0] & 0x02) == 0x02)
-                    {
-                        frameCallback.onFramingError();
-                    }
-                }
+        // Check break interrupt
+        if(breakCallback != null && (errors & 0x01) == 0x01)
+        {
+            changed = true;
+            breakCallback.onBreakInterrupt();
+        }
 
-                // Check break interrupt
-                if(breakCallback != null)
-                {
-                    if((commStatus[0] & 0x01) == 0x01)
-                    {
-                        breakCallback.onBreakInterrupt();
-                    }
-                }
+        // Check Overrun error
+        if(overrunCallback != null && ((errors & 0x04) == 0x04 || (errors & 0x8) == 0x08))
+        {
+            changed = true;
+            overrunCallback.onOverrunError();
+        }
+        return changed;
+    }
 
-                // Check Overrun error
+    /*
+        Fallback for devices without an interrupt endpoint: a periodic task polling the flow
+        signals and error status, backing off while nothing changes
+    */
+    private class FlowControlTask implements Runnable
+    {
+        private static final long MIN_INTERVAL = 40; // 40ms
+        private static final long MAX_INTERVAL = 1000;
 
-                if(overrunCallback != null)
-                {
-                    if((commStatus[0] & 0x04) == 0x04
-                            || (commStatus[0] & 0x8) == 0x08)
-                    {
-                        overrunCallback.onOverrunError();
-                    }
+        private long interval = MIN_INTERVAL;
+        private boolean firstTime = true;
+        private boolean cancelled;
+        private Future<?> future;
 
-                }
+        synchronized void start()
+        {
+            if(future == null && !cancelled)
+                future = WorkerScheduler.get().schedule(this, 0, TimeUnit.MILLISECONDS);
+        }
+
+        synchronized void cancel()
+        {
+            cancelled = true;
+            if(future != null)
+                future.cancel(false);
+        }
+
+        synchronized boolean isStarted()
+        {
+            return future != null;
+        }
+
+        @Override
+        public void run()
+        {
+            if(!firstTime) // Only execute the callback when the status change
+            {
+                byte[] modemState = getModemState();
+                byte[] commStatus = getCommStatus();
+                if(processStatus(modemState[0], commStatus[0]))
+                    interval = MIN_INTERVAL;
+                else
+                    interval = Math.min(interval * 2, MAX_INTERVAL);
             }else // Execute the callback always the first time
             {
                 if(rtsCtsEnabled && ctsCallback != null)
@@ -513,22 +651,78 @@ public class CP2615SerialDevice extends UsbSerialDevice
 
                 firstTime = false;
             }
+
+            synchronized(this)
+            {
+                if(!cancelled)
+                    future = WorkerScheduler.get().schedule(this, interval, TimeUnit.MILLISECONDS);
+            }
         }
+    }
 
-        private byte[] pollLines()
+    /*
+        Worker that keeps the IN request queued and hands inbound data to the receiver as it
+        arrives, so reads never block the writer
+    */
+    private class ReaderWorker extends LocalAbstractWorker
+    {
+        private final byte[] readBytes = new byte[Math.max(inEndpoint.getMaxPacketSize(), CP2615PacketEncoder.PACKET_SIZE)];
+        private final ByteBuffer readBuffer = ByteBuffer.wrap(readBytes);
+        private final byte[] statusBytes = new byte[interruptEndpoint != null ? interruptEndpoint.getMaxPacketSize() : 0];
+        private final ByteBuffer statusBuffer = ByteBuffer.wrap(statusBytes);
+        private boolean readQueued;
+        private boolean statusQueued;
+
+        ReaderWorker()
         {
-            synchronized(this)
+            super(CLASS_ID + "-reader");
+        }
+
+        @Override
+        void doRun()
+        {
+            synchronized(requestLock)
             {
-                try
+                if(isCancelled())
+                    return;
+                if(!readQueued)
                 {
-                    wait(time);
-                } catch(InterruptedException e)
+                    readBuffer.clear();
+                    // Where the received length is not reported the unused tail stays zero, which the
+                    // assembler skips as padding
+                    Arrays.fill(readBytes, (byte) 0);
+                    readQueued = requestIN.queue(readBuffer, readBytes.length);
+                }
+                if(requestStatus != null && !statusQueued)
                 {
-                    e.printStackTrace();
+                    statusBuffer.clear();
+                    statusQueued = requestStatus.queue(statusBuffer, statusBytes.length);
                 }
             }
+            if(!readQueued && !statusQueued)
+            {
+                // Device gone or requests closed, avoid spinning until we are stopped
+                LockSupport.parkNanos(this, 40000000L);
+                return;
+            }
 
-            return getModemState();
+            // Both requests complete through the same connection, only one thread may wait on it
+            UsbRequest completed = connection.requestWait();
+            if(completed == requestIN)
+            {
+                readQueued = false;
+                // Only newer platforms report the received length through the buffer position
+                int length = readBuffer.position() > 0 ? readBuffer.position() : readBytes.length;
+                Receiver target = receiver;
+                if(target != null)
+                    target.onReceived(readBytes, 0, length);
+            }else if(completed != null && completed == requestStatus)
+            {
+                statusQueued = false;
+                // Status report: modem status byte followed by the comm status error byte
+                if(statusBytes.length >= 2)
+                    processStatus(statusBytes[0], statusBytes[1]);
+            }
         }
     }
 
@@ -537,34 +731,38 @@ public class CP2615SerialDevice extends UsbSerialDevice
         if(connection.claimInterface(mInterface, true))
         {
             connection.setInterface(mInterface);
-            Log.i(CLASS_ID, "mInterface succesfully claimed");
-            Log.i(CLASS_ID, "mInterface = "+mInterface.toString());
+            if(cachedLayout == null)
+            {
+                Log.i(CLASS_ID, "mInterface succesfully claimed");
+                Log.i(CLASS_ID, "mInterface = "+mInterface.toString());
+            }
         }else
         {
             Log.i(CLASS_ID, "mInterface could not be claimed");
             return false;
         }
 
+        layoutReused = useCachedLayout();
+        if(layoutReused)
+            return true;
+
         // Assign endpoints
         int numberEndpoints = mInterface.getEndpointCount();
         for(int i=0;i<=numberEndpoints-1;i++)
         {
-
-
-            int altSetting = mInterface.getAlternateSetting();
-            Log.i(CLASS_ID, "mInterface altSetting="+altSetting);
-
             UsbEndpoint endpoint = mInterface.getEndpoint(i);
-
-
             if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_BULK
                     && endpoint.getDirection() == UsbConstants.USB_DIR_IN)
             {
                 inEndpoint = endpoint;
                 Log.i(CLASS_ID, "inEndpoint add = "+inEndpoint.getAddress());
+            }else if(endpoint.getType() == UsbConstants.USB_ENDPOINT_XFER_INT
+                    && endpoint.getDirection() == UsbConstants.USB_DIR_IN)
+            {
+                interruptEndpoint = endpoint;
+                Log.i(CLASS_ID, "interruptEndpoint add = "+interruptEndpoint.getAddress());
             }else
             {
-
                 outEndpoint = endpoint;
                 Log.i(CLASS_ID, "outEndpoint type = "+outEndpoint.getType());
                 Log.i(CLASS_ID, "outEndpoint add = "+outEndpoint.getAddress());
@@ -593,23 +791,83 @@ public class CP2615SerialDevice extends UsbSerialDevice
             return false;*/
     }
 
-    private void createFlowControlThread()
+    /*
+     * Takes the endpoints straight from the cached layout. Returns false if there is no layout or
+     * the interface no longer has the endpoints it names.
+     */
+    private boolean useCachedLayout()
     {
-        flowControlThread = new FlowControlThread();
+        DeviceLayout layout = cachedLayout;
+        if(layout == null)
+            return false;
+        UsbEndpoint in = DeviceLayout.findEndpoint(mInterface, layout.inAddress);
+        UsbEndpoint out = DeviceLayout.findEndpoint(mInterface, layout.outAddress);
+        UsbEndpoint interrupt = DeviceLayout.findEndpoint(mInterface, layout.interruptAddress);
+        if(in == null || out == null || (interrupt == null) != (layout.interruptAddress == DeviceLayout.NO_ENDPOINT))
+        {
+            Log.i(CLASS_ID, "Cached endpoint layout does not match, scanning endpoints");
+            return false;
+        }
+        inEndpoint = in;
+        outEndpoint = out;
+        interruptEndpoint = interrupt;
+        return true;
+    }
+
+    private void createFlowControlTask()
+    {
+        flowControlTask = new FlowControlTask();
+    }
+
+    private void startFlowControlTask()
+    {
+        // Status reports arrive on the interrupt endpoint, no need to poll
+        if(interruptEndpoint != null)
+            return;
+        if(flowControlTask == null)
+            createFlowControlTask();
+        if(!flowControlTask.isStarted())
+            flowControlTask.start();
+    }
+
+    private boolean startReaderWorker()
+    {
+        if(inEndpoint == null)
+            return false;
+        // Also restarts a reader whose loop was ended by an exception
+        ReaderWorker reader = readerWorker != null ? readerWorker : new ReaderWorker();
+        if(!reader.start())
+        {
+            readerWorker = null;
+            return false;
+        }
+        readerWorker = reader;
+        return true;
     }
 
-    private void startFlowControlThread()
+    private void stopReaderWorker()
     {
-        if(!flowControlThread.isAlive())
-            flowControlThread.start();
+        if(readerWorker != null)
+        {
+            synchronized(requestLock)
+            {
+                // The reader queues nothing more once cancelled; cancelling what it has queued
+                // wakes it out of requestWait()
+                readerWorker.cancel();
+                readerWorker = null;
+                requestIN.cancel();
+                if(requestStatus != null)
+                    requestStatus.cancel();
+            }
+        }
     }
 
-    private void stopFlowControlThread()
+    private void stopFlowControlTask()
     {
-        if(flowControlThread != null)
+        if(flowControlTask != null)
         {
-            flowControlThread.stopThread();
-            flowControlThread = null;
+            flowControlTask.cancel();
+            flowControlTask = null;
         }
     }
 
@@ -625,16 +883,17 @@ public class CP2615SerialDevice extends UsbSerialDevice
         return response;
     }
 
+    // Both return a buffer reused by every call
     private byte[] getModemState()
     {
-        byte[] data = new byte[1];
+        byte[] data = modemStatus;
         //connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_MDMSTS, 0, zeroInterface.getId(), data, 1, USB_TIMEOUT);
         return data;
     }
 
     private byte[] getCommStatus()
     {
-        byte[] data = new byte[19];
+        byte[] data = commStatus;
         //int response = connection.controlTransfer(CP210x_REQTYPE_DEVICE2HOST, CP210x_GET_COMM_STATUS, 0, zeroInterface.getId(), data, 19, USB_TIMEOUT);
         //Log.i(CLASS_ID, "Control Transfer Response (Comm status): " + String.valueOf(response));
         return data;
@@ -0,0 +1,41 @@
+package com.hearxgroup.dactest;
+
+/*
+ * The raw byte path to a CP2615: bulk writes to the OUT endpoint and a stream of whatever arrives
+ * on the IN endpoint. CP2615Link runs the command pipeline on top of it. CP2615SerialDevice
+ * implements it over a UsbDeviceConnection and SimulatedCP2615 in process, so the pipeline can
+ * run without a board.
+ */
+interface CP2615Transport
+{
+    interface Receiver
+    {
+        /*
+         * Inbound bytes, delivered on a single transport owned thread. The bytes are only valid
+         * for the duration of the call.
+         */
+        void onReceived(byte[] buffer, int offset, int length);
+    }
+
+    /*
+     * Largest write the transport accepts as one packet.
+     */
+    int getMaxPacketSize();
+
+    /*
+     * Blocking write. Returns the number of bytes written, or a negative value on failure or
+     * timeout, like UsbDeviceConnection.bulkTransfer().
+     */
+    int bulkWrite(byte[] buffer, int length, int timeoutMs);
+
+    /*
+     * Starts delivering inbound data to the receiver. Returns false if the transport cannot read.
+     */
+    boolean startReceiving(Receiver receiver);
+
+    /*
+     * Stops delivery. A read already completing may still reach the receiver while the reading
+     * thread winds down.
+     */
+    void stopReceiving();
+}
@@ -0,0 +1,257 @@
+package com.hearxgroup.dactest;
+
+import android.content.Context;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/*
+ * Per device attenuation calibration: maps (frequency, attenuation) to the DAC register pair and
+ * the prebuilt I2C packet that sets it. Tables are stored one file per device serial number and
+ * memory mapped on load, so loading costs no parsing and a lookup is a single index into the map.
+ * The nearest calibrated frequency is found through a per Hz lookup array built on load.
+ *
+ * File layout (big endian):
+ *  int    magic 'DACC'
+ *  short  version
+ *  short  frequency count F (a single frequency 0 means frequency independent)
+ *  short  level count L (attenuation 0..L-1 dB)
+ *  short  reserved
+ *  int[F] frequencies in Hz
+ *  F * L  records of RECORD_SIZE bytes: the encoded volume packet, zero padded
+ */
+class CalibrationTable
+{
+    static final int MAGIC = 0x44414343;
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 12;
+    static final int RECORD_SIZE = 16;
+
+    // Highest frequency resolved through the lookup array; above it the frequencies are scanned
+    static final int MAX_LOOKUP_HZ = 24000;
+
+    private static final String DIRECTORY = "calibration";
+    private static final String EXTENSION = ".cal";
+    // Offsets of the register values inside a volume packet
+    private static final int REG10_OFFSET = CP2615Commands.VOLUME.getFieldOffset(0);
+    private static final int REG1_OFFSET = CP2615Commands.VOLUME.getFieldOffset(1);
+
+    private final ByteBuffer table;
+    private final int[] frequencies;
+    // Index of the nearest calibrated frequency, per Hz from 0 to the highest calibrated frequency
+    private final short[] nearestIndex;
+    private final int levelCount;
+    private final int recordsOffset;
+
+    private CalibrationTable(ByteBuffer table) throws IOException
+    {
+        this.table = table;
+        if(table.capacity() < HEADER_SIZE || table.getInt(0) != MAGIC)
+            throw new IOException("Not a calibration table");
+        if(table.getShort(4) != VERSION)
+            throw new IOException("Unsupported calibration table version " + table.getShort(4));
+        int frequencyCount = table.getShort(6);
+        levelCount = table.getShort(8);
+        recordsOffset = HEADER_SIZE + frequencyCount * 4;
+        if(frequencyCount < 1 || frequencyCount > Short.MAX_VALUE || levelCount < 1
+                || table.capacity() < recordsOffset + frequencyCount * levelCount * RECORD_SIZE)
+            throw new IOException("Truncated calibration table");
+        frequencies = new int[frequencyCount];
+        for(int i=0; i<frequencyCount; i++)
+        {
+            frequencies[i] = table.getInt(HEADER_SIZE + i * 4);
+            if(frequencies[i] < 0)
+                throw new IOException("Negative calibration frequency " + frequencies[i]);
+        }
+        // Checked once here, so that copyPacket() never hands out a malformed message
+        for(int record=0; record<frequencyCount * levelCount; record++)
+        {
+            int length = CP2615PacketEncoder.messageLength(table, recordsOffset + record * RECORD_SIZE);
+            if(length != CP2615Commands.VOLUME.getLength())
+                throw new IOException("Corrupt calibration record " + record);
+        }
+        nearestIndex = buildNearestIndex(frequencies);
+    }
+
+    private static short[] buildNearestIndex(int[] frequencies)
+    {
+        int highest = 0;
+        for(int frequency : frequencies)
+            highest = Math.max(highest, frequency);
+        short[] nearest = new short[Math.min(highest, MAX_LOOKUP_HZ) + 1];
+        for(int hz=0; hz<nearest.length; hz++)
+            nearest[hz] = (short) scanNearest(frequencies, hz);
+        return nearest;
+    }
+
+    private static int scanNearest(int[] frequencies, int frequencyHz)
+    {
+        int best = 0;
+        for(int i=1; i<frequencies.length; i++)
+        {
+            if(Math.abs(frequencies[i] - frequencyHz) < Math.abs(frequencies[best] - frequencyHz))
+                best = i;
+        }
+        return best;
+    }
+
+    /*
+     * Memory maps a table file.
+     */
+    static CalibrationTable load(File file) throws IOException
+    {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try
+        {
+            FileChannel channel = input.getChannel();
+            // The mapping stays valid after the channel is closed
+            return new CalibrationTable(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }finally
+        {
+            input.close();
+        }
+    }
+
+    /*
+     * The table of the device with the given serial number. A device without a table gets one
+     * written with the default mapping, so the next start only maps it.
+     */
+    static CalibrationTable loadForDevice(Context context, String serial) throws IOException
+    {
+        if(serial == null || serial.isEmpty())
+            return createDefault();
+        File file = fileFor(context, serial);
+        if(!file.exists())
+            writeDefault(file);
+        return load(file);
+    }
+
+    static File fileFor(Context context, String serial)
+    {
+        return new File(new File(context.getFilesDir(), DIRECTORY), serial.replaceAll("[^A-Za-z0-9_-]", "_") + EXTENSION);
+    }
+
+    /*
+     * In memory table with the DacAttenuation mapping for every frequency.
+     */
+    static CalibrationTable createDefault()
+    {
+        try
+        {
+            return new CalibrationTable(encode(new int[]{0}, defaultRegisters(10), defaultRegisters(1)));
+        } catch(IOException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static void writeDefault(File file) throws IOException
+    {
+        write(file, new int[]{0}, defaultRegisters(10), defaultRegisters(1));
+    }
+
+    /*
+     * Writes a table. reg10 and reg1 are indexed [frequency][attenuation].
+     */
+    static void write(File file, int[] frequencies, int[][] reg10, int[][] reg1) throws IOException
+    {
+        ByteBuffer encoded = encode(frequencies, reg10, reg1);
+        File directory = file.getParentFile();
+        if(directory != null && !directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create " + directory);
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile output = new RandomAccessFile(temp, "rw");
+        try
+        {
+            output.setLength(0);
+            output.write(encoded.array(), 0, encoded.capacity());
+        }finally
+        {
+            output.close();
+        }
+        if(!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+
+    private static ByteBuffer encode(int[] frequencies, int[][] reg10, int[][] reg1)
+    {
+        int levelCount = reg10[0].length;
+        int recordsOffset = HEADER_SIZE + frequencies.length * 4;
+        ByteBuffer buffer = ByteBuffer.allocate(recordsOffset + frequencies.length * levelCount * RECORD_SIZE);
+        buffer.putInt(MAGIC);
+        buffer.putShort((short) VERSION);
+        buffer.putShort((short) frequencies.length);
+        buffer.putShort((short) levelCount);
+        buffer.putShort((short) 0);
+        for(int frequency : frequencies)
+            buffer.putInt(frequency);
+
+        CP2615PacketEncoder encoder = new CP2615PacketEncoder(RECORD_SIZE);
+        for(int f=0; f<frequencies.length; f++)
+        {
+            for(int level=0; level<levelCount; level++)
+            {
+                encoder.reset();
+                CP2615Commands.encodeVolume(encoder, reg10[f][level], reg1[f][level]);
+                buffer.position(recordsOffset + (f * levelCount + level) * RECORD_SIZE);
+                buffer.put(encoder.getBuffer(), 0, encoder.getLength());
+            }
+        }
+        return buffer;
+    }
+
+    private static int[][] defaultRegisters(int step)
+    {
+        int levelCount = DacAttenuation.MAX_ATTENUATION + 1;
+        int[][] registers = new int[1][levelCount];
+        for(int level=0; level<levelCount; level++)
+            registers[0][level] = step == 10 ? DacAttenuation.reg10(level) : DacAttenuation.reg1(level);
+        return registers;
+    }
+
+    int getLevelCount()
+    {
+        return levelCount;
+    }
+
+    /*
+     * Index of the calibrated frequency closest to frequencyHz.
+     */
+    int frequencyIndex(int frequencyHz)
+    {
+        if(frequencyHz < 0)
+            return nearestIndex[0];
+        if(frequencyHz < nearestIndex.length)
+            return nearestIndex[frequencyHz];
+        // Past the highest calibrated frequency, unless that is beyond the lookup range
+        return nearestIndex.length <= MAX_LOOKUP_HZ ? nearestIndex[nearestIndex.length - 1] : scanNearest(frequencies, frequencyHz);
+    }
+
+    int reg10(int frequencyIndex, int attenuation)
+    {
+        return table.get(recordOffset(frequencyIndex, attenuation) + REG10_OFFSET) & 0xFF;
+    }
+
+    int reg1(int frequencyIndex, int attenuation)
+    {
+        return table.get(recordOffset(frequencyIndex, attenuation) + REG1_OFFSET) & 0xFF;
+    }
+
+    /*
+     * Appends the prebuilt volume packet to the encoder. Returns false if it does not fit.
+     */
+    boolean copyPacket(int frequencyIndex, int attenuation, CP2615PacketEncoder encoder)
+    {
+        int offset = recordOffset(frequencyIndex, attenuation);
+        return encoder.putMessage(table, offset, CP2615PacketEncoder.messageLength(table, offset));
+    }
+
+    private int recordOffset(int frequencyIndex, int attenuation)
+    {
+        int level = Math.max(0, Math.min(levelCount - 1, attenuation));
+        return recordsOffset + (frequencyIndex * levelCount + level) * RECORD_SIZE;
+    }
+}
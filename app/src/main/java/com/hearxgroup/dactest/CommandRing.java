@@ -0,0 +1,132 @@
+package com.hearxgroup.dactest;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Parcel;
+import android.os.Parcelable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Fixed size command slots in shared memory, through which a client in another process hands I2C
+ * writes to UsbService in bulk, see IDacCommandService. The client writes commands into the slots
+ * of consecutive sequence numbers and publishes them with one commit(); the service reports
+ * progress through ICommandRingListener. A slot may be written again once its sequence has been
+ * reported complete.
+ *
+ * Slot layout: [0] slave address (8 bit form), [1] write length, [2..] write data.
+ *
+ * Only the service creates rings, and only on Android 8.1 (API 27) and later.
+ */
+@TargetApi(Build.VERSION_CODES.O_MR1)
+public final class CommandRing implements Parcelable
+{
+    public static final int SLOT_SIZE = 64;
+    public static final int MAX_SLOTS = 4096;
+    public static final int MAX_WRITE_LENGTH = CP2615PacketEncoder.MAX_WRITE_LENGTH;
+
+    private final int id;
+    private final int slotCount;
+    private final SharedMemory memory;
+
+    CommandRing(int id, int slotCount, SharedMemory memory)
+    {
+        this.id = id;
+        this.slotCount = slotCount;
+        this.memory = memory;
+    }
+
+    static SharedMemory createMemory(int slotCount) throws ErrnoException
+    {
+        return SharedMemory.create("dactest-commands", slotCount * SLOT_SIZE);
+    }
+
+    static boolean isValidSlotCount(int slotCount)
+    {
+        return slotCount > 0 && slotCount <= MAX_SLOTS && (slotCount & (slotCount - 1)) == 0;
+    }
+
+    public int getId()
+    {
+        return id;
+    }
+
+    public int getSlotCount()
+    {
+        return slotCount;
+    }
+
+    /*
+     * Maps the slots for the client to write commands into. Release with SharedMemory.unmap().
+     */
+    public ByteBuffer mapForWriting() throws ErrnoException
+    {
+        return memory.mapReadWrite();
+    }
+
+    ByteBuffer mapForReading() throws ErrnoException
+    {
+        return memory.mapReadOnly();
+    }
+
+    /*
+     * Closes this process's handle to the shared memory. Mappings stay valid until unmapped.
+     */
+    public void close()
+    {
+        memory.close();
+    }
+
+    static int slotOffset(int sequence, int slotCount)
+    {
+        return (sequence & (slotCount - 1)) * SLOT_SIZE;
+    }
+
+    /*
+     * Writes an I2C write command into the slot of the given sequence, client side.
+     */
+    public static void putWrite(ByteBuffer slots, int slotCount, int sequence, int slave, byte[] data, int offset, int length)
+    {
+        if(length < 0 || length > MAX_WRITE_LENGTH)
+            throw new IllegalArgumentException("Write of " + length + " bytes, at most " + MAX_WRITE_LENGTH + " fit a slot");
+        int position = slotOffset(sequence, slotCount);
+        slots.put(position, (byte) slave);
+        slots.put(position + 1, (byte) length);
+        for(int i=0; i<length; i++)
+            slots.put(position + 2 + i, data[offset + i]);
+    }
+
+    @Override
+    public int describeContents()
+    {
+        return CONTENTS_FILE_DESCRIPTOR;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags)
+    {
+        dest.writeInt(id);
+        dest.writeInt(slotCount);
+        dest.writeParcelable(memory, flags);
+    }
+
+    public static final Creator<CommandRing> CREATOR = new Creator<CommandRing>()
+    {
+        @Override
+        public CommandRing createFromParcel(Parcel source)
+        {
+            int id = source.readInt();
+            int slotCount = source.readInt();
+            SharedMemory memory = source.readParcelable(SharedMemory.class.getClassLoader());
+            return new CommandRing(id, slotCount, memory);
+        }
+
+        @Override
+        public CommandRing[] newArray(int size)
+        {
+            return new CommandRing[size];
+        }
+    };
+}
@@ -0,0 +1,187 @@
+package com.hearxgroup.dactest;
+
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+
+/*
+ * Service side state of one CommandRing, over its mapped slots: which sequences are committed,
+ * which are in flight, and the staging of committed commands into an I2CBatch, as many as the
+ * batch holds at a time. The next batch is staged as soon as the previous one completes.
+ *
+ * Commits and completions may arrive on any thread; the state is guarded by this object's
+ * monitor. Batches that complete while being submitted are handled in a loop rather than by
+ * recursing, so a client committing faster than a failing device completes keeps a flat stack.
+ */
+class CommandRingConsumer implements I2CCommandCallback
+{
+    private static final String TAG = CommandRingConsumer.class.getSimpleName();
+
+    interface Target
+    {
+        /*
+         * Queues the batch. The callback must fire exactly once, possibly before this returns,
+         * also when the batch could not be queued.
+         */
+        boolean submitBatch(I2CBatch batch, I2CCommandCallback callback);
+
+        /*
+         * Every sequence before the given one is complete, the last batch with the given result.
+         * Called with the monitor held, must not block.
+         */
+        void onCommandsComplete(int sequence, int result);
+    }
+
+    private final ByteBuffer slots;
+    private final int slotCount;
+    private final Target target;
+
+    // Guarded by this. Sequences are compared by difference so that they may wrap.
+    private I2CBatch batch = new I2CBatch();
+    private int committed;
+    private int consumed;
+    private int inFlightEnd;
+    private boolean inFlight;
+    private boolean closed;
+    // Failure of the batch in flight found while staging it, reported in place of success
+    private int failure;
+    // Set while target.submitBatch() runs; a completion it makes on this thread waits in submitResult
+    private boolean submitting;
+    private boolean submitCompleted;
+    private int submitResult;
+
+    CommandRingConsumer(ByteBuffer slots, int slotCount, Target target)
+    {
+        this.slots = slots;
+        this.slotCount = slotCount;
+        this.target = target;
+    }
+
+    /*
+     * Makes the commands before sequence available and sends them. Returns false if sequence does
+     * not move the commit point forward, or would commit slots not yet reported complete.
+     */
+    synchronized boolean commit(int sequence)
+    {
+        if(sequence - committed <= 0 || sequence - consumed > slotCount)
+            return false;
+        committed = sequence;
+        drain();
+        return true;
+    }
+
+    synchronized int getConsumed()
+    {
+        return consumed;
+    }
+
+    /*
+     * Stops staging commands; a batch in flight completes without being reported. Returns false
+     * if closed already. The slots are not read once this returns.
+     */
+    synchronized boolean close()
+    {
+        if(closed)
+            return false;
+        closed = true;
+        return true;
+    }
+
+    /*
+     * Completion of the batch in flight, usually called on the device writer thread.
+     */
+    @Override
+    public void onCommandComplete(int result)
+    {
+        synchronized(this)
+        {
+            if(submitting)
+            {
+                submitCompleted = true;
+                submitResult = result;
+                return;
+            }
+            if(!inFlight)
+                return;
+            complete(result);
+            drain();
+        }
+    }
+
+    /*
+     * Stages and submits batches until one is in flight or nothing is committed.
+     */
+    private void drain()
+    {
+        while(!inFlight && !closed && committed != consumed)
+        {
+            stage();
+            if(batch.getEncoder().getLength() == 0)
+                complete(RESULT_INVALID);
+            else
+                submit();
+        }
+    }
+
+    private void stage()
+    {
+        batch.reset();
+        CP2615PacketEncoder encoder = batch.getEncoder();
+        int sequence = consumed;
+        while(sequence != committed)
+        {
+            int position = CommandRing.slotOffset(sequence, slotCount);
+            int length = slots.get(position + 1) & 0xFF;
+            if(length > CommandRing.MAX_WRITE_LENGTH)
+            {
+                // Malformed slot, skipped and reported with the batch
+                failure = RESULT_INVALID;
+                sequence++;
+                continue;
+            }
+            if(!encoder.beginI2CWrite(slots.get(position) & 0xFF, length))
+                break;
+            for(int i=0; i<length; i++)
+                encoder.put(slots.get(position + 2 + i));
+            sequence++;
+        }
+        inFlightEnd = sequence;
+        inFlight = true;
+    }
+
+    private void submit()
+    {
+        submitting = true;
+        submitCompleted = false;
+        try
+        {
+            target.submitBatch(batch, this);
+        }catch(RuntimeException e)
+        {
+            Log.w(TAG, "Could not submit commands up to " + inFlightEnd, e);
+            if(!submitCompleted)
+            {
+                // The batch may be left busy with a callback that never fires
+                batch = new I2CBatch();
+                submitCompleted = true;
+                submitResult = RESULT_INVALID;
+            }
+        }finally
+        {
+            submitting = false;
+        }
+        if(submitCompleted)
+            complete(submitResult);
+    }
+
+    private void complete(int result)
+    {
+        if(failure != 0 && result >= 0)
+            result = failure;
+        failure = 0;
+        inFlight = false;
+        consumed = inFlightEnd;
+        if(!closed)
+            target.onCommandsComplete(consumed, result);
+    }
+}
@@ -0,0 +1,175 @@
+package com.hearxgroup.dactest;
+
+import android.annotation.TargetApi;
+import android.os.Binder;
+import android.os.Build;
+import android.os.IBinder;
+import android.os.RemoteException;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Service side of IDacCommandService. Each CommandRing is drained into an I2CBatch by its
+ * CommandRingConsumer, as many committed commands as the batch holds at a time, and the next
+ * batch is staged as soon as the device writer completes the previous one. A commit therefore
+ * costs one one-way Binder transaction however many commands it covers, and completions are
+ * reported once per batch.
+ *
+ * Commits arrive on Binder threads and completions on the device writer thread; each ring is
+ * guarded by its consumer's monitor. Rings are closed when their client dies.
+ */
+class CommandRingServer extends IDacCommandService.Stub
+{
+    private static final String TAG = CommandRingServer.class.getSimpleName();
+
+    private final UsbService service;
+    private final AtomicInteger nextRingId = new AtomicInteger(1);
+    private final ConcurrentHashMap<Integer, Ring> rings = new ConcurrentHashMap<>();
+
+    CommandRingServer(UsbService service)
+    {
+        this.service = service;
+    }
+
+    @Override
+    public CommandRing openCommandRing(int slotCount, ICommandRingListener listener)
+    {
+        if(Build.VERSION.SDK_INT < Build.VERSION_CODES.O_MR1)
+            return null;
+        if(!CommandRing.isValidSlotCount(slotCount))
+            throw new IllegalArgumentException("Slot count must be a power of two up to " + CommandRing.MAX_SLOTS + ": " + slotCount);
+        if(listener == null)
+            throw new IllegalArgumentException("No listener");
+        return open(slotCount, listener);
+    }
+
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private CommandRing open(int slotCount, ICommandRingListener listener)
+    {
+        Ring ring;
+        try
+        {
+            SharedMemory memory = CommandRing.createMemory(slotCount);
+            CommandRing handle = new CommandRing(nextRingId.getAndIncrement(), slotCount, memory);
+            ring = new Ring(handle, handle.mapForReading(), listener, Binder.getCallingUid());
+        } catch(ErrnoException e)
+        {
+            throw new IllegalStateException("Could not create the command ring", e);
+        }
+        try
+        {
+            listener.asBinder().linkToDeath(ring, 0);
+        } catch(RemoteException e)
+        {
+            // The client died already
+            ring.close();
+            return null;
+        }
+        rings.put(ring.handle.getId(), ring);
+        return ring.handle;
+    }
+
+    @Override
+    public void commit(int ringId, int sequence)
+    {
+        Ring ring = callersRing(ringId);
+        if(ring != null)
+            ring.commit(sequence);
+    }
+
+    @Override
+    public void closeCommandRing(int ringId)
+    {
+        Ring ring = callersRing(ringId);
+        if(ring != null && rings.remove(ringId, ring))
+            ring.close();
+    }
+
+    /*
+     * Closes every ring, when the service goes away.
+     */
+    void closeAll()
+    {
+        for(Ring ring : new ArrayList<>(rings.values()))
+        {
+            if(rings.remove(ring.handle.getId(), ring))
+                ring.close();
+        }
+    }
+
+    // Ring ids are easy to guess, so a client may only touch its own rings
+    private Ring callersRing(int ringId)
+    {
+        Ring ring = rings.get(ringId);
+        if(ring == null || ring.uid != Binder.getCallingUid())
+            return null;
+        return ring;
+    }
+
+    @TargetApi(Build.VERSION_CODES.O_MR1)
+    private class Ring implements CommandRingConsumer.Target, IBinder.DeathRecipient
+    {
+        final CommandRing handle;
+        final int uid;
+        private final ByteBuffer slots;
+        private final ICommandRingListener listener;
+        private final CommandRingConsumer consumer;
+
+        Ring(CommandRing handle, ByteBuffer slots, ICommandRingListener listener, int uid)
+        {
+            this.handle = handle;
+            this.slots = slots;
+            this.listener = listener;
+            this.uid = uid;
+            consumer = new CommandRingConsumer(slots, handle.getSlotCount(), this);
+        }
+
+        void commit(int sequence)
+        {
+            if(!consumer.commit(sequence))
+                Log.w(TAG, "Ignoring commit of ring " + handle.getId() + " up to " + sequence);
+        }
+
+        @Override
+        public boolean submitBatch(I2CBatch batch, I2CCommandCallback callback)
+        {
+            return service.submitBatch(batch, callback);
+        }
+
+        @Override
+        public void onCommandsComplete(int sequence, int result)
+        {
+            try
+            {
+                // One-way, does not wait for the client
+                listener.onCommandsComplete(handle.getId(), sequence, result);
+            } catch(RemoteException e)
+            {
+                Log.w(TAG, "Could not notify the client of ring " + handle.getId(), e);
+            }
+        }
+
+        @Override
+        public void binderDied()
+        {
+            if(rings.remove(handle.getId(), this))
+                close();
+        }
+
+        void close()
+        {
+            // The consumer no longer reads the slots once closed
+            if(!consumer.close())
+                return;
+            listener.asBinder().unlinkToDeath(this, 0);
+            SharedMemory.unmap(slots);
+            handle.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Default mapping of DAC attenuation, in 1 dB steps from 0 to 79 dB, to the two attenuation
+ * registers: reg10 selects the 10 dB step (224..231), reg1 the 1 dB step within it (208..217).
+ */
+final class DacAttenuation
+{
+    static final int MIN_ATTENUATION = 0;
+    static final int MAX_ATTENUATION = 79;
+
+    private DacAttenuation()
+    {
+    }
+
+    static int reg10(int attenuation)
+    {
+        return 224 + clamp(attenuation) / 10;
+    }
+
+    static int reg1(int attenuation)
+    {
+        return 208 + clamp(attenuation) % 10;
+    }
+
+    static int clamp(int attenuation)
+    {
+        return Math.max(MIN_ATTENUATION, Math.min(MAX_ATTENUATION, attenuation));
+    }
+}
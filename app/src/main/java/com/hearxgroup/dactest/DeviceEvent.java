@@ -0,0 +1,60 @@
+package com.hearxgroup.dactest;
+
+/*
+ * A connection or line state change published by UsbService on the DeviceEventBus. Immutable.
+ */
+final class DeviceEvent
+{
+    // A board was opened and is ready for commands
+    static final int USB_READY = 1;
+    // An open board was detached
+    static final int USB_DISCONNECTED = 2;
+    // No CP2615 board is attached
+    static final int NO_USB = 3;
+    static final int PERMISSION_GRANTED = 4;
+    static final int PERMISSION_NOT_GRANTED = 5;
+    // A board is attached but could not be opened
+    static final int DEVICE_NOT_WORKING = 6;
+    static final int CTS_CHANGED = 7;
+    static final int DSR_CHANGED = 8;
+
+    static final long NO_ATTACH_TIME = -1;
+
+    final int type;
+    // Device the event refers to, UsbDevice.getDeviceName(), or null
+    final String deviceName;
+    // New line level for CTS_CHANGED and DSR_CHANGED
+    final boolean lineState;
+    // For USB_READY after a reattach, milliseconds from attach to ready, else NO_ATTACH_TIME
+    final long attachToReadyMs;
+
+    private DeviceEvent(int type, String deviceName, boolean lineState, long attachToReadyMs)
+    {
+        this.type = type;
+        this.deviceName = deviceName;
+        this.lineState = lineState;
+        this.attachToReadyMs = attachToReadyMs;
+    }
+
+    static DeviceEvent of(int type, String deviceName)
+    {
+        return new DeviceEvent(type, deviceName, false, NO_ATTACH_TIME);
+    }
+
+    static DeviceEvent ready(String deviceName, long attachToReadyMs)
+    {
+        return new DeviceEvent(USB_READY, deviceName, false, attachToReadyMs);
+    }
+
+    static DeviceEvent line(int type, String deviceName, boolean lineState)
+    {
+        return new DeviceEvent(type, deviceName, lineState, NO_ATTACH_TIME);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeviceEvent{type=" + type + ", device=" + deviceName + ", line=" + lineState
+                + ", attachToReadyMs=" + attachToReadyMs + "}";
+    }
+}
@@ -0,0 +1,155 @@
+package com.hearxgroup.dactest;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/*
+ * In-process publish/subscribe for UsbService notifications, in place of global broadcasts and a
+ * single UI handler. Any number of subscribers may listen; each is told the current DeviceState
+ * as soon as it subscribes and then every change, in order, on its own handler thread. Nothing
+ * goes through the system server, and since the state is kept a subscriber that arrives late
+ * still sees where things stand.
+ *
+ * Inbound device frames are delivered separately, to frame subscribers on the main thread, once
+ * per display frame through the InboundFrameDispatcher.
+ *
+ * The bus is a process wide singleton, so that activities can subscribe before the service is
+ * bound.
+ */
+class DeviceEventBus
+{
+    interface Subscriber
+    {
+        /*
+         * state is the snapshot after cause, which is null for the snapshot delivered on subscribe.
+         */
+        void onDeviceStateChanged(DeviceState state, DeviceEvent cause);
+    }
+
+    interface FrameSubscriber
+    {
+        /*
+         * Called on the main thread. The batch and its frames are reused once this returns.
+         */
+        void onFrames(IOPFrameBatch batch);
+    }
+
+    private static DeviceEventBus instance;
+
+    private final Object lock = new Object();
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private final CopyOnWriteArrayList<FrameSubscriber> frameSubscribers = new CopyOnWriteArrayList<>();
+    private volatile DeviceState state = DeviceState.INITIAL;
+
+    static synchronized DeviceEventBus get()
+    {
+        if(instance == null)
+            instance = new DeviceEventBus();
+        return instance;
+    }
+
+    DeviceState getState()
+    {
+        return state;
+    }
+
+    /*
+     * Subscribes on the main thread.
+     */
+    void subscribe(Subscriber subscriber)
+    {
+        subscribe(subscriber, new Handler(Looper.getMainLooper()));
+    }
+
+    void subscribe(Subscriber subscriber, Handler handler)
+    {
+        Subscription subscription = new Subscription(subscriber, handler);
+        // Under the lock so that the snapshot is delivered before any later change
+        synchronized(lock)
+        {
+            subscriptions.add(subscription);
+            subscription.deliver(state, null);
+        }
+    }
+
+    /*
+     * No delivery reaches the subscriber after this returns, if called on its handler thread.
+     */
+    void unsubscribe(Subscriber subscriber)
+    {
+        for(Subscription subscription : subscriptions)
+        {
+            if(subscription.subscriber == subscriber)
+            {
+                subscription.active = false;
+                subscriptions.remove(subscription);
+            }
+        }
+    }
+
+    /*
+     * Applies the event to the state and queues it to every subscriber. Any thread.
+     */
+    void post(DeviceEvent event)
+    {
+        synchronized(lock)
+        {
+            DeviceState next = state.apply(event);
+            state = next;
+            for(Subscription subscription : subscriptions)
+                subscription.deliver(next, event);
+        }
+    }
+
+    void subscribeFrames(FrameSubscriber subscriber)
+    {
+        frameSubscribers.addIfAbsent(subscriber);
+    }
+
+    void unsubscribeFrames(FrameSubscriber subscriber)
+    {
+        frameSubscribers.remove(subscriber);
+    }
+
+    boolean hasFrameSubscribers()
+    {
+        return !frameSubscribers.isEmpty();
+    }
+
+    /*
+     * Hands a batch to every frame subscriber, on the main thread.
+     */
+    void deliverFrames(IOPFrameBatch batch)
+    {
+        for(FrameSubscriber subscriber : frameSubscribers)
+            subscriber.onFrames(batch);
+    }
+
+    private static class Subscription
+    {
+        final Subscriber subscriber;
+        final Handler handler;
+        volatile boolean active = true;
+
+        Subscription(Subscriber subscriber, Handler handler)
+        {
+            this.subscriber = subscriber;
+            this.handler = handler;
+        }
+
+        void deliver(final DeviceState state, final DeviceEvent cause)
+        {
+            handler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if(active)
+                        subscriber.onDeviceStateChanged(state, cause);
+                }
+            });
+        }
+    }
+}
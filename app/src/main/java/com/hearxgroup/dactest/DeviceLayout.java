@@ -0,0 +1,105 @@
+package com.hearxgroup.dactest;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbInterface;
+
+/*
+ * Identity and endpoint layout of a CP2615 board, remembered from the last time it was opened.
+ * On reattach the endpoints are picked by address straight from the cached layout instead of
+ * classifying every endpoint of the interface again.
+ *
+ * Layouts are kept in the "cp2615_devices" shared preferences, one entry per board keyed by
+ * vid:pid:serial, stored as "interface,in,out,interrupt" endpoint addresses (-1 = none).
+ */
+class DeviceLayout
+{
+    private static final String PREFERENCES = "cp2615_devices";
+    static final int NO_ENDPOINT = -1;
+
+    final int vendorId;
+    final int productId;
+    final String serial;
+    final int interfaceIndex;
+    final int inAddress;
+    final int outAddress;
+    final int interruptAddress;
+
+    DeviceLayout(int vendorId, int productId, String serial, int interfaceIndex, int inAddress, int outAddress, int interruptAddress)
+    {
+        this.vendorId = vendorId;
+        this.productId = productId;
+        this.serial = serial;
+        this.interfaceIndex = interfaceIndex;
+        this.inAddress = inAddress;
+        this.outAddress = outAddress;
+        this.interruptAddress = interruptAddress;
+    }
+
+    static DeviceLayout load(Context context, int vendorId, int productId, String serial)
+    {
+        String value = preferences(context).getString(key(vendorId, productId, serial), null);
+        if(value == null)
+            return null;
+        String[] fields = value.split(",");
+        if(fields.length != 4)
+            return null;
+        try
+        {
+            return new DeviceLayout(vendorId, productId, serial, Integer.parseInt(fields[0]),
+                    Integer.parseInt(fields[1]), Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+        }catch(NumberFormatException e)
+        {
+            return null;
+        }
+    }
+
+    void save(Context context)
+    {
+        String value = interfaceIndex + "," + inAddress + "," + outAddress + "," + interruptAddress;
+        preferences(context).edit().putString(key(vendorId, productId, serial), value).apply();
+    }
+
+    static void forget(Context context, int vendorId, int productId, String serial)
+    {
+        preferences(context).edit().remove(key(vendorId, productId, serial)).apply();
+    }
+
+    boolean sameAs(DeviceLayout other)
+    {
+        return other != null && interfaceIndex == other.interfaceIndex && inAddress == other.inAddress
+                && outAddress == other.outAddress && interruptAddress == other.interruptAddress;
+    }
+
+    /*
+     * The endpoint of the interface with the given address, or null if there is none.
+     */
+    static UsbEndpoint findEndpoint(UsbInterface usbInterface, int address)
+    {
+        if(address == NO_ENDPOINT)
+            return null;
+        for(int i=0; i<usbInterface.getEndpointCount(); i++)
+        {
+            UsbEndpoint endpoint = usbInterface.getEndpoint(i);
+            if(endpoint.getAddress() == address)
+                return endpoint;
+        }
+        return null;
+    }
+
+    static int address(UsbEndpoint endpoint)
+    {
+        return endpoint != null ? endpoint.getAddress() : NO_ENDPOINT;
+    }
+
+    private static String key(int vendorId, int productId, String serial)
+    {
+        return Integer.toHexString(vendorId) + ":" + Integer.toHexString(productId) + ":" + (serial != null ? serial : "");
+    }
+
+    private static SharedPreferences preferences(Context context)
+    {
+        return context.getSharedPreferences(PREFERENCES, Context.MODE_PRIVATE);
+    }
+}
@@ -0,0 +1,299 @@
+package com.hearxgroup.dactest;
+
+import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
+import android.util.Log;
+
+/*
+ * One open CP2615 board: its connection, serial device with its own command queue and I/O
+ * workers, volume writer and calibration. UsbService keeps one session per attached board, and
+ * commands sent through different sessions proceed in parallel.
+ *
+ * Command methods only queue and return at once; they return false if the session is closed or
+ * its command queue is full. Callbacks run on the session's writer or reader worker.
+ */
+public class DeviceSession {
+
+    private static final String TAG = DeviceSession.class.getSimpleName();
+
+    // The CP2615 I/O protocol lives on interface 3
+    static final int IOP_INTERFACE = 3;
+
+    private final UsbDevice device;
+    private final UsbDeviceConnection connection;
+    private final CP2615SerialDevice serialPort;
+    private final CP2615Link link;
+    private final VolumeWriter volumeWriter;
+    // Reused by every writeVolumeAndLedColour(), one combined write at a time
+    private final I2CBatch volumeAndLedBatch = new I2CBatch(CP2615PacketEncoder.PACKET_SIZE);
+    private final String serial;
+    private volatile CalibrationTable calibration = CalibrationTable.createDefault();
+    private volatile int currentFrequencyHz;
+    private volatile boolean open;
+    private volatile long attachToReadyNanos = -1;
+
+    /*
+     * layout is the endpoint layout cached from the last session with this board, or null.
+     */
+    DeviceSession(UsbDevice device, UsbDeviceConnection connection, String serial, DeviceLayout layout) {
+        this.device = device;
+        this.connection = connection;
+        this.serialPort = new CP2615SerialDevice(device, connection, IOP_INTERFACE, layout);
+        this.link = serialPort.getLink();
+        this.volumeWriter = new VolumeWriter(link);
+        this.serial = serial;
+    }
+
+    boolean open() {
+        try {
+            open = serialPort.open();
+        } catch (RuntimeException e) {
+            // Undo whatever part of the open succeeded before passing the failure on
+            try {
+                serialPort.close();
+            } catch (RuntimeException closeFailure) {
+                Log.w(TAG, "Cleanup after failed open", closeFailure);
+            }
+            throw e;
+        }
+        return open;
+    }
+
+    void close() {
+        if (open) {
+            open = false;
+            serialPort.close();
+        }
+        connection.close();
+    }
+
+    boolean isOpen() {
+        return open;
+    }
+
+    /*
+     * The device path, e.g. /dev/bus/usb/001/004. Unique while the board stays attached.
+     */
+    public String getName() {
+        return device.getDeviceName();
+    }
+
+    /*
+     * USB serial number, or null if the board has none.
+     */
+    public String getSerial() {
+        return serial;
+    }
+
+    /*
+     * Identity and endpoint layout of the open board, to be cached for the next session.
+     */
+    DeviceLayout getLayout() {
+        return new DeviceLayout(device.getVendorId(), device.getProductId(), serial, serialPort.getInterfaceIndex(),
+                DeviceLayout.address(serialPort.getInEndpoint()), DeviceLayout.address(serialPort.getOutEndpoint()),
+                DeviceLayout.address(serialPort.getInterruptEndpoint()));
+    }
+
+    /*
+     * True if the endpoints were taken from the layout cached by a previous session.
+     */
+    public boolean isFastReconnect() {
+        return serialPort.isLayoutReused();
+    }
+
+    void setAttachToReadyNanos(long nanos) {
+        attachToReadyNanos = nanos;
+    }
+
+    /*
+     * Time from the ACTION_USB_ATTACHED broadcast to the board being ready for commands, in
+     * milliseconds, or -1 if the board was already attached when the service started.
+     */
+    public long getAttachToReadyMillis() {
+        return attachToReadyNanos < 0 ? -1 : attachToReadyNanos / 1000000;
+    }
+
+    UsbDevice getDevice() {
+        return device;
+    }
+
+    CP2615SerialDevice getSerialPort() {
+        return serialPort;
+    }
+
+    /*
+     * Forwards every inbound frame of this board to the dispatcher, tagged with the device name.
+     */
+    void setFrameDispatcher(final InboundFrameDispatcher dispatcher) {
+        final String name = getName();
+        link.setFrameListener(new IOPFrameAssembler.FrameListener() {
+            @Override
+            public void onFrame(byte[] buffer, int offset, int length) {
+                dispatcher.onFrame(name, buffer, offset, length);
+            }
+        });
+    }
+
+    void setCalibration(CalibrationTable calibration) {
+        this.calibration = calibration;
+    }
+
+    /*
+     * When enabled (the default) a volume write issued while another one is still pending replaces
+     * it, so bursts of gain changes only send the latest value.
+     */
+    public void setVolumeCoalescing(boolean enabled) {
+        volumeWriter.setCoalescing(enabled);
+    }
+
+    public boolean writeVolumeCommand(int reg10, int reg1, I2CCommandCallback callback) {
+        if (!open)
+            return false;
+        link.getTrace().record(TraceRing.EVENT_VOLUME, CP2615Commands.DAC_SLAVE, reg10, reg1);
+        return volumeWriter.write(reg10, reg1, callback);
+    }
+
+    /*
+     * Sets the DAC attenuation in dB, using the calibration of the last frequency passed to
+     * writeAttenuation(int, int).
+     */
+    public boolean writeAttenuation(int attenuation) {
+        return writeAttenuation(currentFrequencyHz, attenuation);
+    }
+
+    /*
+     * Sets the DAC attenuation in dB using the device calibration for the given frequency.
+     */
+    public boolean writeAttenuation(int frequencyHz, int attenuation) {
+        return writeAttenuation(frequencyHz, attenuation, null);
+    }
+
+    /*
+     * As writeAttenuation(int, int), with the transfer result delivered to the callback.
+     */
+    public boolean writeAttenuation(int frequencyHz, int attenuation, I2CCommandCallback callback) {
+        CalibrationTable table = calibration;
+        int index = table.frequencyIndex(frequencyHz);
+        currentFrequencyHz = frequencyHz;
+        if (!open)
+            return false;
+        link.getTrace().record(TraceRing.EVENT_VOLUME, CP2615Commands.DAC_SLAVE, table.reg10(index, attenuation), table.reg1(index, attenuation));
+        // Both paths send the table's prebuilt packet; coalescing only decides when
+        return volumeWriter.write(table, index, attenuation, callback);
+    }
+
+    public boolean writeLedColour(int colour, int blankLength, I2CCommandCallback callback) {
+        I2CCommand command = claimCommand();
+        if (command == null)
+            return false;
+        link.getTrace().record(TraceRing.EVENT_LED, CP2615Commands.LED_SLAVE, CP2615Commands.LED_COLOUR_REGISTER, colour);
+        CP2615Commands.encodeLedColour(command.frame, colour);
+        command.blankLength = blankLength;
+        command.callback = callback;
+        link.submitCommand(command);
+        return true;
+    }
+
+    /*
+     * Sets the DAC attenuation and the LED colour in a single bulk transfer, bypassing volume
+     * coalescing. Also returns false while the previous combined write is still in progress.
+     */
+    public boolean writeVolumeAndLedColour(int reg10, int reg1, int colour, I2CCommandCallback callback) {
+        if (!open)
+            return false;
+        synchronized (volumeAndLedBatch) {
+            if (volumeAndLedBatch.isBusy())
+                return false;
+            volumeAndLedBatch.reset();
+            CP2615Commands.encodeVolume(volumeAndLedBatch.getEncoder(), reg10, reg1);
+            CP2615Commands.encodeLedColour(volumeAndLedBatch.getEncoder(), colour);
+            return volumeAndLedBatch.submit(link, callback);
+        }
+    }
+
+    /*
+     * Queues every message staged in the batch, packed into as few transfers as possible. The
+     * callback fires exactly once even when false is returned, with RESULT_CANCELLED if the
+     * session is closed.
+     */
+    boolean submitBatch(I2CBatch batch, I2CCommandCallback callback) {
+        if (!open) {
+            if (callback != null)
+                callback.onCommandComplete(I2CCommandCallback.RESULT_CANCELLED);
+            return false;
+        }
+        return batch.submit(link, callback);
+    }
+
+    public boolean doI2cTransfer(int slave, int readLength, byte[] data, I2CReadCallback callback) {
+        if (!open)
+            return false;
+        return link.readI2C(slave, data, 0, data.length, readLength, callback);
+    }
+
+    /*
+     * Last DAC attenuation registers written successfully, as {reg10, reg1}, or null if unknown.
+     * Answered from the register shadow, no USB traffic.
+     */
+    public int[] getCachedVolumeRegisters() {
+        byte[] value = new byte[8];
+        if (link.getRegisterShadow().get(CP2615Commands.DAC_SLAVE, CP2615Commands.DAC_VOLUME_REGISTER, value, 0) != 4)
+            return null;
+        return new int[]{value[2] & 0xFF, value[3] & 0xFF};
+    }
+
+    /*
+     * Last LED colour written successfully, or -1 if unknown.
+     */
+    public int getCachedLedColour() {
+        byte[] value = new byte[8];
+        if (link.getRegisterShadow().get(CP2615Commands.LED_SLAVE, CP2615Commands.LED_COLOUR_REGISTER, value, 0) != 2)
+            return -1;
+        return value[0] & 0xFF;
+    }
+
+    TraceRing getTrace() {
+        return link.getTrace();
+    }
+
+    /*
+     * The most recent commands sent to this device and their results, one per line, oldest first.
+     */
+    public String dumpTrace() {
+        return link.getTrace().dump();
+    }
+
+    /*
+     * Latency histograms and error counts of every transfer to this device since it was opened.
+     */
+    public TransferStats getTransferStats() {
+        return link.getTransferStats();
+    }
+
+    /*
+     * Drops every command issued so far that has not reached the bus yet, e.g. when new settings
+     * make them pointless. They complete with RESULT_SUPERSEDED. A transfer already in progress
+     * finishes normally.
+     */
+    public void cancelQueuedCommands() {
+        volumeWriter.cancelPending();
+        link.cancelQueued();
+    }
+
+    /*
+     * Forget the cached register state, e.g. after the board was reset behind our back. The next
+     * write of every register is sent even if it repeats the previous value.
+     */
+    public void invalidateRegisterCache() {
+        link.getRegisterShadow().clear();
+    }
+
+    private I2CCommand claimCommand() {
+        if (!open)
+            return null;
+        I2CCommand command = link.claimCommand();
+        if (command == null)
+            Log.w(TAG, "I2C command queue full, command dropped");
+        return command;
+    }
+}
@@ -0,0 +1,84 @@
+package com.hearxgroup.dactest;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/*
+ * Immutable snapshot of the USB state as last published on the DeviceEventBus: the open boards,
+ * the outcome of the last connection event and the serial line levels.
+ * Every event produces a new snapshot through apply(), so a snapshot can be read from any
+ * thread and kept for as long as needed.
+ */
+final class DeviceState
+{
+    static final DeviceState INITIAL = new DeviceState(Collections.<String>emptyList(), 0, false, false, DeviceEvent.NO_ATTACH_TIME);
+
+    // Names of the open boards, in the order they became ready
+    final List<String> openDevices;
+    // Type of the last connection event, not a line change, or 0 before the first one
+    final int lastConnectionEvent;
+    final boolean cts;
+    final boolean dsr;
+    // attachToReadyMs of the last USB_READY
+    final long attachToReadyMs;
+
+    private DeviceState(List<String> openDevices, int lastConnectionEvent, boolean cts, boolean dsr, long attachToReadyMs)
+    {
+        this.openDevices = openDevices;
+        this.lastConnectionEvent = lastConnectionEvent;
+        this.cts = cts;
+        this.dsr = dsr;
+        this.attachToReadyMs = attachToReadyMs;
+    }
+
+    boolean isConnected()
+    {
+        return !openDevices.isEmpty();
+    }
+
+    /*
+     * The state after the event.
+     */
+    DeviceState apply(DeviceEvent event)
+    {
+        switch(event.type)
+        {
+            case DeviceEvent.CTS_CHANGED:
+                return new DeviceState(openDevices, lastConnectionEvent, event.lineState, dsr, attachToReadyMs);
+            case DeviceEvent.DSR_CHANGED:
+                return new DeviceState(openDevices, lastConnectionEvent, cts, event.lineState, attachToReadyMs);
+            case DeviceEvent.USB_READY:
+                return new DeviceState(with(event.deviceName), event.type, cts, dsr, event.attachToReadyMs);
+            case DeviceEvent.USB_DISCONNECTED:
+                return new DeviceState(without(event.deviceName), event.type, cts, dsr, attachToReadyMs);
+            default:
+                return new DeviceState(openDevices, event.type, cts, dsr, attachToReadyMs);
+        }
+    }
+
+    private List<String> with(String deviceName)
+    {
+        if(deviceName == null || openDevices.contains(deviceName))
+            return openDevices;
+        List<String> devices = new ArrayList<>(openDevices);
+        devices.add(deviceName);
+        return Collections.unmodifiableList(devices);
+    }
+
+    private List<String> without(String deviceName)
+    {
+        if(!openDevices.contains(deviceName))
+            return openDevices;
+        List<String> devices = new ArrayList<>(openDevices);
+        devices.remove(deviceName);
+        return Collections.unmodifiableList(devices);
+    }
+
+    @Override
+    public String toString()
+    {
+        return "DeviceState{open=" + openDevices + ", last=" + lastConnectionEvent + ", cts=" + cts
+                + ", dsr=" + dsr + ", attachToReadyMs=" + attachToReadyMs + "}";
+    }
+}
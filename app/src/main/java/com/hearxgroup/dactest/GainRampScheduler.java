@@ -0,0 +1,241 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * Runs DAC gain ramps on the high priority WorkerScheduler timing thread. A ramp moves from a start to a target
+ * attenuation over a duration, one write per step at fixed intervals measured against absolute
+ * deadlines, so late steps do not push the following ones back. The actual time of every step
+ * is recorded so the jitter of a ramp can be inspected once it has finished.
+ */
+class GainRampScheduler
+{
+    /*
+     * Applies one ramp step. Called on the ramp thread, must not block.
+     */
+    interface LevelWriter
+    {
+        void writeLevel(int attenuation);
+    }
+
+    interface Listener
+    {
+        /*
+         * Called once per start(). completed is false if the ramp was cancelled or replaced. Called
+         * on the ramp thread, or on the thread calling start(), cancel() or shutdown() if the ramp
+         * had not begun yet.
+         */
+        void onRampFinished(boolean completed);
+    }
+
+    static final long MIN_STEP_INTERVAL_NANOS = 5000000L; // 5ms
+    private static final int MAX_STEPS = DacAttenuation.MAX_ATTENUATION - DacAttenuation.MIN_ATTENUATION;
+
+    private final LevelWriter levelWriter;
+    private final Object lock = new Object();
+
+    // Next ramp to run, guarded by lock
+    private boolean requested;
+    private int requestedStart;
+    private int requestedTarget;
+    private long requestedDurationNanos;
+    private Listener requestedListener;
+
+    private volatile boolean cancelled;
+    private volatile RampWorker rampWorker;
+
+    // Results of the current or last ramp, written by the ramp thread only
+    private final long[] stepTimes = new long[MAX_STEPS + 1];
+    private final int[] stepLevels = new int[MAX_STEPS + 1];
+    private volatile int stepCount;
+    private long rampStartNanos;
+    private long stepIntervalNanos;
+
+    GainRampScheduler(LevelWriter levelWriter)
+    {
+        this.levelWriter = levelWriter;
+    }
+
+    /*
+     * Starts a ramp, replacing any ramp in progress. Attenuations are clamped to the DAC range.
+     */
+    void start(int startAttenuation, int targetAttenuation, long durationMs, Listener listener)
+    {
+        Listener replaced;
+        synchronized(lock)
+        {
+            replaced = takeRequestedListener();
+            requested = true;
+            requestedStart = DacAttenuation.clamp(startAttenuation);
+            requestedTarget = DacAttenuation.clamp(targetAttenuation);
+            requestedDurationNanos = Math.max(0, durationMs) * 1000000L;
+            requestedListener = listener;
+            cancelled = true;
+            if(rampWorker == null)
+                rampWorker = new RampWorker();
+            // Running already, unless a LevelWriter exception ended the loop
+            rampWorker.start(WorkerScheduler.get().getTimingExecutor());
+            lock.notifyAll();
+            rampWorker.wake();
+        }
+        if(replaced != null)
+            replaced.onRampFinished(false);
+    }
+
+    /*
+     * Stops the ramp in progress and drops a ramp that has been started but not begun yet.
+     */
+    void cancel()
+    {
+        Listener dropped;
+        synchronized(lock)
+        {
+            dropped = takeRequestedListener();
+            cancelled = true;
+            if(rampWorker != null)
+                rampWorker.wake();
+        }
+        if(dropped != null)
+            dropped.onRampFinished(false);
+    }
+
+    void shutdown()
+    {
+        Listener dropped;
+        synchronized(lock)
+        {
+            dropped = takeRequestedListener();
+            cancelled = true;
+            if(rampWorker != null)
+            {
+                rampWorker.cancel();
+                rampWorker = null;
+            }
+        }
+        if(dropped != null)
+            dropped.onRampFinished(false);
+    }
+
+    /*
+     * Withdraws the requested ramp, if the ramp thread has not taken it yet. Called with lock held.
+     */
+    private Listener takeRequestedListener()
+    {
+        Listener listener = requestedListener;
+        requested = false;
+        requestedListener = null;
+        return listener;
+    }
+
+    int getStepCount()
+    {
+        return stepCount;
+    }
+
+    int getStepLevel(int step)
+    {
+        return stepLevels[step];
+    }
+
+    /*
+     * System.nanoTime() at which the step was issued.
+     */
+    long getStepTimestamp(int step)
+    {
+        return stepTimes[step];
+    }
+
+    /*
+     * How late the step was issued compared to its deadline.
+     */
+    long getStepJitterNanos(int step)
+    {
+        return stepTimes[step] - (rampStartNanos + step * stepIntervalNanos);
+    }
+
+    long getMaxJitterNanos()
+    {
+        long max = 0;
+        int count = stepCount;
+        for(int i=0; i<count; i++)
+            max = Math.max(max, getStepJitterNanos(i));
+        return max;
+    }
+
+    private class RampWorker extends LocalAbstractWorker
+    {
+        RampWorker()
+        {
+            super("GainRamp");
+        }
+
+        @Override
+        void doRun()
+        {
+            int start;
+            int target;
+            long durationNanos;
+            Listener listener;
+            synchronized(lock)
+            {
+                while(!requested)
+                {
+                    try
+                    {
+                        lock.wait();
+                    } catch(InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+                requested = false;
+                cancelled = false;
+                start = requestedStart;
+                target = requestedTarget;
+                durationNanos = requestedDurationNanos;
+                listener = requestedListener;
+                requestedListener = null;
+            }
+
+            boolean completed = runRamp(start, target, durationNanos);
+            if(listener != null)
+                listener.onRampFinished(completed);
+        }
+
+        private boolean runRamp(int start, int target, long durationNanos)
+        {
+            int delta = target - start;
+            int steps = Math.abs(delta);
+            if(steps > 0 && durationNanos / steps < MIN_STEP_INTERVAL_NANOS)
+                steps = (int) Math.max(1, durationNanos / MIN_STEP_INTERVAL_NANOS);
+            stepIntervalNanos = steps > 0 ? durationNanos / steps : 0;
+            stepCount = 0;
+            rampStartNanos = System.nanoTime();
+
+            for(int step=0; step<=steps; step++)
+            {
+                if(!waitUntil(rampStartNanos + step * stepIntervalNanos))
+                    return false;
+                int level = steps > 0 ? start + delta * step / steps : target;
+                long now = System.nanoTime();
+                levelWriter.writeLevel(level);
+                stepTimes[step] = now;
+                stepLevels[step] = level;
+                stepCount = step + 1;
+            }
+            return true;
+        }
+
+        private boolean waitUntil(long deadline)
+        {
+            long remaining;
+            while((remaining = deadline - System.nanoTime()) > 0)
+            {
+                if(cancelled || isCancelled())
+                    return false;
+                LockSupport.parkNanos(this, remaining);
+            }
+            return !cancelled;
+        }
+    }
+}
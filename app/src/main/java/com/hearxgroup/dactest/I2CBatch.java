@@ -0,0 +1,177 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Several I2C writes, to one or more slaves, sent in as few bulk transfers as the device packet
+ * size allows. Messages are staged with the usual encoder calls on getEncoder() (or the
+ * CP2615Commands helpers) and packed whole into command slots on submit(), one bulk transfer
+ * per slot. A DAC write and an LED write fit in a single 64 byte transfer.
+ *
+ * A batch may be reused once its callback has fired; reset() clears the staged messages.
+ */
+class I2CBatch implements I2CCommandCallback
+{
+    static final int DEFAULT_CAPACITY = 8 * CP2615PacketEncoder.PACKET_SIZE;
+
+    private final CP2615PacketEncoder staging;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger bytesWritten = new AtomicInteger();
+    private volatile int failure;
+    private volatile I2CCommandCallback callback;
+    // From submit() until just before the callback fires
+    private volatile boolean busy;
+    private int blankLength;
+
+    I2CBatch()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    I2CBatch(int capacity)
+    {
+        staging = new CP2615PacketEncoder(capacity);
+    }
+
+    CP2615PacketEncoder getEncoder()
+    {
+        return staging;
+    }
+
+    /*
+     * Zero bytes sent after each transfer of the batch. Defaults to none.
+     */
+    void setBlankLength(int blankLength)
+    {
+        this.blankLength = blankLength;
+    }
+
+    /*
+     * True while a submitted batch has not completed; it must not be reset or submitted again.
+     */
+    boolean isBusy()
+    {
+        return busy;
+    }
+
+    void reset()
+    {
+        staging.reset();
+    }
+
+    /*
+     * Queues the staged messages on the device. The callback fires once, after the last transfer,
+     * with the total number of bytes written or the first failure result. Returns false if the
+     * queue filled up part way; the callback then reports RESULT_QUEUE_FULL once the part that
+     * was queued has been sent. If a staged message is malformed or larger than a packet nothing
+     * is queued, the callback reports RESULT_INVALID at once and false is returned.
+     */
+    boolean submit(CP2615Link link, I2CCommandCallback callback)
+    {
+        int maxPacketSize = link.getMaxPacketSize();
+        byte[] messages = staging.getBuffer();
+        int end = staging.getLength();
+
+        // Checked before claiming any slot, so that a bad message never leaves part of the batch queued
+        if(!isValid(messages, end, maxPacketSize))
+        {
+            if(callback != null)
+                callback.onCommandComplete(RESULT_INVALID);
+            return false;
+        }
+
+        this.callback = callback;
+        busy = true;
+        failure = 0;
+        bytesWritten.set(0);
+        outstanding.set(1); // held until every slot has been submitted
+
+        boolean queued = true;
+        I2CCommand command = null;
+        int offset = 0;
+        while(offset < end)
+        {
+            int length = CP2615PacketEncoder.messageLength(messages, offset);
+            if(command != null && command.frame.getLength() + length > maxPacketSize)
+            {
+                submitSlot(link, command);
+                command = null;
+            }
+            if(command == null)
+            {
+                command = link.claimCommand();
+                if(command == null)
+                {
+                    failure = RESULT_QUEUE_FULL;
+                    queued = false;
+                    break;
+                }
+            }
+            command.frame.putMessage(messages, offset, length);
+            offset += length;
+        }
+        if(command != null)
+            submitSlot(link, command);
+
+        completeOne();
+        return queued;
+    }
+
+    /*
+     * True if the staged bytes are whole messages, each with at least an I2C header and no larger
+     * than a packet.
+     */
+    private static boolean isValid(byte[] messages, int end, int maxPacketSize)
+    {
+        int minLength = CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH;
+        int offset = 0;
+        while(offset < end)
+        {
+            if(end - offset < minLength)
+                return false;
+            int length = CP2615PacketEncoder.messageLength(messages, offset);
+            if(length < minLength || length > maxPacketSize || length > end - offset)
+                return false;
+            offset += length;
+        }
+        return true;
+    }
+
+    private void submitSlot(CP2615Link link, I2CCommand command)
+    {
+        command.blankLength = blankLength;
+        command.callback = this;
+        outstanding.incrementAndGet();
+        link.submitCommand(command);
+    }
+
+    /*
+     * Completion of one transfer of the batch, called on the writer thread.
+     */
+    @Override
+    public void onCommandComplete(int result)
+    {
+        if(result < 0)
+        {
+            if(failure == 0)
+                failure = result;
+        }else
+        {
+            bytesWritten.addAndGet(result);
+        }
+        completeOne();
+    }
+
+    private void completeOne()
+    {
+        if(outstanding.decrementAndGet() != 0)
+            return;
+        I2CCommandCallback done = callback;
+        int result = failure != 0 ? failure : bytesWritten.get();
+        callback = null;
+        // Released before the callback, which may reuse the batch
+        busy = false;
+        if(done != null)
+            done.onCommandComplete(result);
+    }
+}
@@ -0,0 +1,27 @@
+package com.hearxgroup.dactest;
+
+/*
+ * A preallocated slot of the I2CCommandQueue. Producers claim a slot, encode the command into
+ * its frame and submit it; the writer thread sends it and recycles the slot. Slots must not be
+ * touched after they are submitted.
+ */
+class I2CCommand
+{
+    final CP2615PacketEncoder frame = new CP2615PacketEncoder();
+
+    // Number of zero bytes sent after the frame, 0 for none
+    int blankLength;
+    I2CCommandCallback callback;
+
+    // Queue position this slot was claimed for
+    long position;
+    // System.nanoTime() at submit, for the queue latency
+    long submittedNanos;
+
+    void clear()
+    {
+        frame.reset();
+        blankLength = 0;
+        callback = null;
+    }
+}
@@ -0,0 +1,28 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Receives the outcome of a queued I2C command. Called on the device writer thread, so
+ * implementations must not block and must hop to the UI thread themselves if needed.
+ */
+public interface I2CCommandCallback
+{
+    // The device already holds the written value, nothing was sent. A success: no bytes written.
+    int RESULT_CACHED = 0;
+
+    // Failures below are never returned by bulkTransfer, which only uses -1 for failures
+    // The command was replaced by a newer one before it was sent
+    int RESULT_SUPERSEDED = -1000;
+    // The command could not be queued
+    int RESULT_QUEUE_FULL = -1001;
+    // The device was closed before the command was sent
+    int RESULT_CANCELLED = -1003;
+    // The command was malformed and not sent
+    int RESULT_INVALID = -1004;
+
+    /*
+     * result is the bulkTransfer result of the command frame: the number of bytes written,
+     * RESULT_CACHED if nothing needed sending, or a negative value on failure, possibly one of
+     * the RESULT_ constants above.
+     */
+    void onCommandComplete(int result);
+}
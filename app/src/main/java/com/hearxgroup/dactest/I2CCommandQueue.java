@@ -0,0 +1,109 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Bounded lock-free queue of preallocated I2CCommand slots. Any number of threads may claim and
+ * submit, a single writer thread consumes. Based on the sequence-per-slot ring described by
+ * Dmitry Vyukov: a slot whose sequence equals a producer position is free, a slot whose sequence
+ * is position + 1 has been published for the consumer.
+ */
+class I2CCommandQueue
+{
+    static final int DEFAULT_CAPACITY = 32;
+
+    private final I2CCommand[] slots;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong enqueuePosition = new AtomicLong();
+    private long dequeuePosition; // writer thread only
+
+    I2CCommandQueue()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    I2CCommandQueue(int capacity)
+    {
+        if(Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        slots = new I2CCommand[capacity];
+        sequences = new AtomicLongArray(capacity);
+        mask = capacity - 1;
+        for(int i=0; i<capacity; i++)
+        {
+            slots[i] = new I2CCommand();
+            sequences.set(i, i);
+        }
+    }
+
+    /*
+     * Claims a free slot, or returns null at once if the queue is full. The returned slot is
+     * cleared and owned by the caller until submit().
+     */
+    I2CCommand claim()
+    {
+        long position = enqueuePosition.get();
+        while(true)
+        {
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0)
+            {
+                if(enqueuePosition.compareAndSet(position, position + 1))
+                {
+                    I2CCommand command = slots[index];
+                    command.clear();
+                    command.position = position;
+                    return command;
+                }
+                position = enqueuePosition.get();
+            }else if(difference < 0)
+            {
+                return null;
+            }else
+            {
+                position = enqueuePosition.get();
+            }
+        }
+    }
+
+    /*
+     * Position the next claimed slot will get. Every slot claimed so far has a lower position.
+     */
+    long getClaimPosition()
+    {
+        return enqueuePosition.get();
+    }
+
+    /*
+     * Publishes a claimed slot to the consumer.
+     */
+    void submit(I2CCommand command)
+    {
+        sequences.set((int) command.position & mask, command.position + 1);
+    }
+
+    /*
+     * Consumer side: the next published command, or null if there is none yet. Commands are
+     * returned in claim order; a claimed but unpublished slot holds back the ones behind it.
+     */
+    I2CCommand peek()
+    {
+        int index = (int) dequeuePosition & mask;
+        if(sequences.get(index) != dequeuePosition + 1)
+            return null;
+        return slots[index];
+    }
+
+    /*
+     * Consumer side: recycles the command returned by the last peek().
+     */
+    void release(I2CCommand command)
+    {
+        command.callback = null;
+        sequences.set((int) dequeuePosition & mask, dequeuePosition + slots.length);
+        dequeuePosition++;
+    }
+}
@@ -0,0 +1,19 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Receives the result of an I2C write-then-read transaction. Called on the device reader thread
+ * (or the writer thread if the request could not be sent). The data array is reused for the next
+ * response, so copy anything that must outlive the call.
+ */
+public interface I2CReadCallback
+{
+    // Status reported by the CP2615: 1 on success, negative I2C errors otherwise
+    int STATUS_SUCCESS = 1;
+    // Local failures, outside the range used by the device
+    int STATUS_WRITE_FAILED = -100;
+    int STATUS_CANCELLED = -101;
+    // No result arrived in time, e.g. the response was lost or the board was reset
+    int STATUS_TIMEOUT = -102;
+
+    void onReadComplete(int status, byte[] data, int offset, int length);
+}
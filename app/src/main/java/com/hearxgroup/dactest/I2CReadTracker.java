@@ -0,0 +1,215 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/*
+ * Matches CP2615 I2C transfer results to the read requests that caused them, using the tag byte
+ * of the IOP message. Tag 1 is used by plain writes, whose results are ignored; reads take
+ * tags 2..255.
+ *
+ * Once its request goes out a read has a deadline. The writer sweeps the tags with expire(),
+ * failing overdue reads with STATUS_TIMEOUT, so that a lost response does not hold its tag forever.
+ */
+class I2CReadTracker
+{
+    private static final int FIRST_READ_TAG = 2;
+    private static final int TAG_COUNT = 256;
+    private static final long NO_DEADLINE = 0;
+
+    private final AtomicReferenceArray<I2CReadCallback> pending = new AtomicReferenceArray<>(TAG_COUNT);
+    private final WriteFailure[] writeFailures = new WriteFailure[TAG_COUNT];
+    private final AtomicInteger nextTag = new AtomicInteger(FIRST_READ_TAG);
+    // System.nanoTime() at which each tag's request started going out, for the IN latency
+    private final AtomicLongArray sentNanos = new AtomicLongArray(TAG_COUNT);
+    // System.nanoTime() by which each tag's result must have arrived, NO_DEADLINE if not armed
+    private final AtomicLongArray deadlineNanos = new AtomicLongArray(TAG_COUNT);
+    private final AtomicInteger armedCount = new AtomicInteger();
+    // Earliest deadline as of the last sweep or markSent(), so that expire() rarely scans. Writer thread only.
+    private long nextDeadlineNanos;
+    private final TransferStats stats;
+
+    I2CReadTracker()
+    {
+        this(new TransferStats());
+    }
+
+    I2CReadTracker(TransferStats stats)
+    {
+        this.stats = stats;
+        for(int tag=FIRST_READ_TAG; tag<TAG_COUNT; tag++)
+            writeFailures[tag] = new WriteFailure(tag);
+    }
+
+    /*
+     * Reserves a free tag for the callback. Returns -1 if every tag is in use.
+     */
+    int register(I2CReadCallback callback)
+    {
+        for(int attempt=FIRST_READ_TAG; attempt<TAG_COUNT; attempt++)
+        {
+            int tag = nextTag.getAndIncrement() & (TAG_COUNT - 1);
+            if(tag < FIRST_READ_TAG)
+                continue;
+            if(pending.compareAndSet(tag, null, callback))
+                return tag;
+        }
+        return -1;
+    }
+
+    /*
+     * Callback for the command carrying the read request: fails the read if the request itself
+     * could not be written.
+     */
+    I2CCommandCallback writeCallback(int tag)
+    {
+        return writeFailures[tag];
+    }
+
+    /*
+     * Called by the writer as the request carrying the tag starts going out. The read fails with
+     * STATUS_TIMEOUT if its result has not arrived by deadlineNanos.
+     */
+    void markSent(int tag, long nanos, long deadlineNanos)
+    {
+        sentNanos.lazySet(tag, nanos);
+        if(deadlineNanos == NO_DEADLINE)
+            deadlineNanos++;
+        this.deadlineNanos.set(tag, deadlineNanos);
+        if(armedCount.getAndIncrement() == 0 || deadlineNanos - nextDeadlineNanos < 0)
+            nextDeadlineNanos = deadlineNanos;
+    }
+
+    /*
+     * Writer thread: fails every armed read whose deadline has passed and frees its tag. Returns
+     * the nanoseconds until the next deadline, or -1 if no read is waiting for its result.
+     */
+    long expire(long now)
+    {
+        if(armedCount.get() == 0)
+            return -1;
+        if(now - nextDeadlineNanos < 0)
+            return nextDeadlineNanos - now;
+        boolean waiting = false;
+        long next = 0;
+        for(int tag=FIRST_READ_TAG; tag<TAG_COUNT; tag++)
+        {
+            long deadline = deadlineNanos.get(tag);
+            if(deadline == NO_DEADLINE)
+                continue;
+            if(now - deadline >= 0)
+            {
+                // Whoever clears the deadline first, this or a result arriving, completes the read
+                if(deadlineNanos.compareAndSet(tag, deadline, NO_DEADLINE))
+                {
+                    armedCount.decrementAndGet();
+                    complete(tag, I2CReadCallback.STATUS_TIMEOUT);
+                }
+            }else if(!waiting || deadline - next < 0)
+            {
+                waiting = true;
+                next = deadline;
+            }
+        }
+        if(!waiting)
+            return -1;
+        nextDeadlineNanos = next;
+        return next - now;
+    }
+
+    /*
+     * Frees a tag whose request was never sent, without calling its callback.
+     */
+    void release(int tag)
+    {
+        disarm(tag);
+        pending.set(tag, null);
+    }
+
+    void cancel(int tag, int status)
+    {
+        disarm(tag);
+        complete(tag, status);
+    }
+
+    private void disarm(int tag)
+    {
+        if(deadlineNanos.getAndSet(tag, NO_DEADLINE) != NO_DEADLINE)
+            armedCount.decrementAndGet();
+    }
+
+    private void complete(int tag, int status)
+    {
+        I2CReadCallback callback = pending.getAndSet(tag, null);
+        if(callback != null)
+            callback.onReadComplete(status, null, 0, 0);
+    }
+
+    void cancelAll(int status)
+    {
+        for(int tag=FIRST_READ_TAG; tag<TAG_COUNT; tag++)
+            cancel(tag, status);
+    }
+
+    /*
+     * Delivers every I2C transfer result frame found in buffer[offset, offset + length).
+     */
+    void dispatch(byte[] buffer, int offset, int length)
+    {
+        int end = offset + length;
+        while(offset + CP2615PacketEncoder.IOP_HEADER_LENGTH <= end)
+        {
+            if(read16(buffer, offset) != CP2615PacketEncoder.IOP_PREAMBLE)
+                return;
+            int messageLength = CP2615PacketEncoder.messageLength(buffer, offset);
+            if(messageLength < CP2615PacketEncoder.IOP_HEADER_LENGTH || offset + messageLength > end)
+                return;
+            if(read16(buffer, offset + 4) == CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT
+                    && messageLength >= CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH)
+                deliver(buffer, offset, messageLength);
+            offset += messageLength;
+        }
+    }
+
+    /*
+     * I2C transfer result payload: [6] tag, [7] slave, [8] status (signed), [9] read length, [10..] data
+     */
+    private void deliver(byte[] buffer, int offset, int messageLength)
+    {
+        int tag = buffer[offset + 6] & 0xFF;
+        if(tag < FIRST_READ_TAG)
+            return;
+        disarm(tag);
+        I2CReadCallback callback = pending.getAndSet(tag, null);
+        if(callback == null)
+            return;
+        stats.record(TransferStats.TYPE_READ, TransferStats.STAGE_IN, System.nanoTime() - sentNanos.get(tag));
+        int status = buffer[offset + 8];
+        int dataOffset = offset + CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH;
+        int readLength = Math.min(buffer[offset + 9] & 0xFF, offset + messageLength - dataOffset);
+        callback.onReadComplete(status, buffer, dataOffset, readLength);
+    }
+
+    private static int read16(byte[] buffer, int offset)
+    {
+        return (buffer[offset] & 0xFF) << 8 | (buffer[offset + 1] & 0xFF);
+    }
+
+    private class WriteFailure implements I2CCommandCallback
+    {
+        private final int tag;
+
+        WriteFailure(int tag)
+        {
+            this.tag = tag;
+        }
+
+        @Override
+        public void onCommandComplete(int result)
+        {
+            if(result < 0)
+                cancel(tag, I2CReadCallback.STATUS_WRITE_FAILED);
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.hearxgroup.dactest;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/*
+ * Declarative description of the register writes one I2C slave understands. Each write is given
+ * as its byte sequence, with FIELD in place of the bytes that vary per call, and the whole map is
+ * compiled into PacketTemplates when it is constructed, so a malformed definition fails at
+ * startup rather than on first use. The maps of the boards behind the CP2615 are declared in
+ * CP2615Commands.
+ */
+final class I2CRegisterMap
+{
+    // Marks a byte of a write that is filled in per call
+    static final int FIELD = -1;
+
+    /*
+     * One register write of a map: its name and I2C write bytes.
+     */
+    static final class Write
+    {
+        final String name;
+        final int[] bytes;
+
+        private Write(String name, int[] bytes)
+        {
+            this.name = name;
+            this.bytes = bytes;
+        }
+    }
+
+    private final String device;
+    private final int slave;
+    private final Map<String, PacketTemplate> templates;
+
+    static Write write(String name, int... bytes)
+    {
+        return new Write(name, bytes.clone());
+    }
+
+    I2CRegisterMap(String device, int slave, Write... writes)
+    {
+        this.device = device;
+        this.slave = slave;
+        Map<String, PacketTemplate> compiled = new HashMap<>();
+        for(Write write : writes)
+        {
+            String name = device + "." + write.name;
+            if(compiled.put(write.name, new PacketTemplate(name, slave, write.bytes)) != null)
+                throw new IllegalArgumentException("Duplicate register write " + name);
+        }
+        templates = Collections.unmodifiableMap(compiled);
+    }
+
+    String getDevice()
+    {
+        return device;
+    }
+
+    int getSlave()
+    {
+        return slave;
+    }
+
+    /*
+     * The compiled template of a write. Meant to be looked up once, into a constant.
+     */
+    PacketTemplate get(String name)
+    {
+        PacketTemplate template = templates.get(name);
+        if(template == null)
+            throw new IllegalArgumentException("No register write " + device + "." + name);
+        return template;
+    }
+}
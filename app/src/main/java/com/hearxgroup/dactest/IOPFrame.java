@@ -0,0 +1,94 @@
+package com.hearxgroup.dactest;
+
+/*
+ * A complete inbound IOP message, copied out of the USB read buffer into a pooled frame for
+ * delivery to the UI. Frames are owned by the IOPFramePool they came from and only valid until
+ * they are recycled; consumers copy out whatever they want to keep.
+ */
+class IOPFrame
+{
+    // Largest IOP message reassembled, longer ones are treated as corrupt headers
+    static final int MAX_LENGTH = 512;
+
+    private final byte[] data = new byte[MAX_LENGTH];
+    private int length;
+    private String deviceName;
+    private long timestampNanos;
+
+    void set(String deviceName, byte[] buffer, int offset, int length, long timestampNanos)
+    {
+        System.arraycopy(buffer, offset, data, 0, length);
+        this.length = length;
+        this.deviceName = deviceName;
+        this.timestampNanos = timestampNanos;
+    }
+
+    /*
+     * The whole message, header included. Only the first getLength() bytes are valid.
+     */
+    byte[] getData()
+    {
+        return data;
+    }
+
+    int getLength()
+    {
+        return length;
+    }
+
+    /*
+     * Name of the device the frame was received from, or null if unknown.
+     */
+    String getDeviceName()
+    {
+        return deviceName;
+    }
+
+    /*
+     * System.nanoTime() at which the last byte of the frame was read.
+     */
+    long getTimestampNanos()
+    {
+        return timestampNanos;
+    }
+
+    int getMessageType()
+    {
+        return (data[4] & 0xFF) << 8 | (data[5] & 0xFF);
+    }
+
+    boolean isI2CResult()
+    {
+        return getMessageType() == CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT
+                && length >= CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH;
+    }
+
+    /*
+     * I2C transfer result fields, only meaningful if isI2CResult().
+     */
+    int getTag()
+    {
+        return data[6] & 0xFF;
+    }
+
+    int getSlave()
+    {
+        return data[7] & 0xFF;
+    }
+
+    int getStatus()
+    {
+        return data[8];
+    }
+
+    void appendHex(StringBuilder builder)
+    {
+        for(int i=0; i<length; i++)
+        {
+            if(i > 0)
+                builder.append(' ');
+            int value = data[i] & 0xFF;
+            builder.append(Character.forDigit(value >> 4, 16)).append(Character.forDigit(value & 0xF, 16));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Incremental parser for the inbound IOP byte stream. USB reads are fed in as they arrive and
+ * every complete message is handed to the listener, whether it arrived in one read or was split
+ * across several.
+ *
+ * Messages that lie wholly inside a read are passed straight from the read buffer, only the
+ * pieces of a split message are copied into the staging buffer. Zero bytes between messages are
+ * padding (flush packets, unused buffer space) and skipped silently. Any other byte that does not
+ * start a valid header is dropped, counted, and the parser resyncs on the next preamble.
+ *
+ * Not thread safe, each stream is fed by a single reader thread.
+ */
+class IOPFrameAssembler
+{
+    interface FrameListener
+    {
+        /*
+         * Called on the feeding thread for each complete message. The bytes are only valid for
+         * the duration of the call.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    private static final int HEADER_LENGTH = CP2615PacketEncoder.IOP_HEADER_LENGTH;
+    private static final byte PREAMBLE_BYTE = (byte) (CP2615PacketEncoder.IOP_PREAMBLE & 0xFF);
+
+    private final FrameListener listener;
+    private final byte[] staging = new byte[IOPFrame.MAX_LENGTH];
+    private int stagingLength;
+    // Length of the staged message, 0 while its header is incomplete
+    private int frameLength;
+    private final byte[] resync = new byte[HEADER_LENGTH];
+    private long discardedBytes;
+
+    IOPFrameAssembler(FrameListener listener)
+    {
+        this.listener = listener;
+    }
+
+    void feed(byte[] buffer, int offset, int length)
+    {
+        int end = offset + length;
+        while(offset < end)
+        {
+            if(stagingLength == 0)
+                offset = parseInPlace(buffer, offset, end);
+            else
+                offset = continueStaged(buffer, offset, end);
+        }
+    }
+
+    /*
+     * Drops any partially received message, e.g. after the device was reopened.
+     */
+    void reset()
+    {
+        stagingLength = 0;
+        frameLength = 0;
+    }
+
+    /*
+     * Non zero bytes dropped while looking for a message header.
+     */
+    long getDiscardedBytes()
+    {
+        return discardedBytes;
+    }
+
+    private int parseInPlace(byte[] buffer, int offset, int end)
+    {
+        int available = end - offset;
+        if(buffer[offset] != PREAMBLE_BYTE || (available > 1 && buffer[offset + 1] != PREAMBLE_BYTE))
+            return skip(buffer, offset);
+        if(available < HEADER_LENGTH)
+            return stage(buffer, offset, available);
+
+        int messageLength = CP2615PacketEncoder.messageLength(buffer, offset);
+        if(messageLength < HEADER_LENGTH || messageLength > IOPFrame.MAX_LENGTH)
+            return skip(buffer, offset);
+        if(messageLength <= available)
+        {
+            listener.onFrame(buffer, offset, messageLength);
+            return offset + messageLength;
+        }
+        frameLength = messageLength;
+        return stage(buffer, offset, available);
+    }
+
+    private int continueStaged(byte[] buffer, int offset, int end)
+    {
+        int needed = (frameLength == 0 ? HEADER_LENGTH : frameLength) - stagingLength;
+        int count = Math.min(needed, end - offset);
+        System.arraycopy(buffer, offset, staging, stagingLength, count);
+        stagingLength += count;
+        offset += count;
+
+        if(frameLength == 0 && stagingLength == HEADER_LENGTH)
+        {
+            int messageLength = CP2615PacketEncoder.messageLength(staging, 0);
+            if(staging[1] != PREAMBLE_BYTE || messageLength < HEADER_LENGTH || messageLength > IOPFrame.MAX_LENGTH)
+            {
+                resyncStaged();
+                return offset;
+            }
+            frameLength = messageLength;
+        }
+        if(frameLength != 0 && stagingLength == frameLength)
+        {
+            listener.onFrame(staging, 0, frameLength);
+            stagingLength = 0;
+            frameLength = 0;
+        }
+        return offset;
+    }
+
+    /*
+     * The staged header turned out to be invalid: drop its first byte and parse the rest again.
+     * Fewer than HEADER_LENGTH bytes are re-fed, so this cannot recurse any further.
+     */
+    private void resyncStaged()
+    {
+        int count = stagingLength - 1;
+        System.arraycopy(staging, 1, resync, 0, count);
+        discardedBytes++;
+        stagingLength = 0;
+        frameLength = 0;
+        feed(resync, 0, count);
+    }
+
+    private int stage(byte[] buffer, int offset, int count)
+    {
+        System.arraycopy(buffer, offset, staging, 0, count);
+        stagingLength = count;
+        return offset + count;
+    }
+
+    private int skip(byte[] buffer, int offset)
+    {
+        if(buffer[offset] != 0)
+            discardedBytes++;
+        return offset + 1;
+    }
+}
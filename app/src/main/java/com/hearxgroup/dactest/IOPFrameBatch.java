@@ -0,0 +1,75 @@
+package com.hearxgroup.dactest;
+
+/*
+ * The inbound frames collected during one display frame, delivered to the frame subscribers of
+ * the DeviceEventBus. The batch and its frames are reused once onFrames() returns.
+ */
+class IOPFrameBatch
+{
+    private final IOPFrame[] frames;
+    private int size;
+    private int droppedCount;
+
+    IOPFrameBatch(int capacity)
+    {
+        frames = new IOPFrame[capacity];
+    }
+
+    boolean add(IOPFrame frame)
+    {
+        if(size == frames.length)
+            return false;
+        frames[size++] = frame;
+        return true;
+    }
+
+    int size()
+    {
+        return size;
+    }
+
+    IOPFrame get(int index)
+    {
+        return frames[index];
+    }
+
+    /*
+     * Frames dropped since the previous batch because the pool or the batch was full.
+     */
+    int getDroppedCount()
+    {
+        return droppedCount;
+    }
+
+    void setDroppedCount(int droppedCount)
+    {
+        this.droppedCount = droppedCount;
+    }
+
+    /*
+     * One line of hex per frame, for display.
+     */
+    String toHexLines()
+    {
+        StringBuilder builder = new StringBuilder(size * 48);
+        for(int i=0; i<size; i++)
+        {
+            frames[i].appendHex(builder);
+            builder.append('\n');
+        }
+        if(droppedCount > 0)
+            builder.append("(").append(droppedCount).append(" frames dropped)\n");
+        return builder.toString();
+    }
+
+    void recycle(IOPFramePool pool)
+    {
+        for(int i=0; i<size; i++)
+        {
+            pool.recycle(frames[i]);
+            frames[i] = null;
+        }
+        size = 0;
+        droppedCount = 0;
+    }
+}
@@ -0,0 +1,38 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Fixed set of preallocated IOPFrames. obtain() returns null once every frame is in use, so a
+ * burst of inbound traffic is dropped instead of growing the heap.
+ */
+class IOPFramePool
+{
+    private final IOPFrame[] free;
+    private int freeCount;
+
+    IOPFramePool(int size)
+    {
+        free = new IOPFrame[size];
+        for(int i=0; i<size; i++)
+            free[i] = new IOPFrame();
+        freeCount = size;
+    }
+
+    synchronized IOPFrame obtain()
+    {
+        if(freeCount == 0)
+            return null;
+        IOPFrame frame = free[--freeCount];
+        free[freeCount] = null;
+        return frame;
+    }
+
+    synchronized void recycle(IOPFrame frame)
+    {
+        free[freeCount++] = frame;
+    }
+
+    int getSize()
+    {
+        return free.length;
+    }
+}
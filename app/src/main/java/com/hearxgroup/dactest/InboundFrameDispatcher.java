@@ -0,0 +1,82 @@
+package com.hearxgroup.dactest;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.view.Choreographer;
+
+/*
+ * Hands inbound frames from the device reader threads to the UI at most once per display frame.
+ * Frames are copied into pooled IOPFrames and collected into a batch; the first frame of a batch
+ * schedules a Choreographer callback, which delivers the whole batch to the target handler in a
+ * single call to the frame subscribers of the DeviceEventBus. Heavy traffic therefore costs the
+ * main looper one message per vsync, and once the pool runs dry further frames are dropped and
+ * counted rather than queued. Without frame subscribers inbound frames are discarded.
+ */
+class InboundFrameDispatcher implements Choreographer.FrameCallback {
+
+    static final int POOL_SIZE = 64;
+
+    private final DeviceEventBus bus;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final IOPFramePool pool = new IOPFramePool(POOL_SIZE);
+    private final Object lock = new Object();
+    private IOPFrameBatch pending = new IOPFrameBatch(POOL_SIZE);
+    private IOPFrameBatch delivering = new IOPFrameBatch(POOL_SIZE);
+    private int dropped;
+    private boolean scheduled;
+
+    private final Runnable scheduleFrame = new Runnable() {
+        @Override
+        public void run() {
+            Choreographer.getInstance().postFrameCallback(InboundFrameDispatcher.this);
+        }
+    };
+
+    InboundFrameDispatcher(DeviceEventBus bus) {
+        this.bus = bus;
+    }
+
+    /*
+     * Called on a reader thread for every complete frame.
+     */
+    void onFrame(String deviceName, byte[] buffer, int offset, int length) {
+        if (!bus.hasFrameSubscribers())
+            return;
+        IOPFrame frame = pool.obtain();
+        if (frame == null) {
+            synchronized (lock) {
+                dropped++;
+            }
+            return;
+        }
+        frame.set(deviceName, buffer, offset, length, System.nanoTime());
+        boolean schedule;
+        synchronized (lock) {
+            if (!pending.add(frame)) {
+                dropped++;
+                pool.recycle(frame);
+                return;
+            }
+            schedule = !scheduled;
+            scheduled = true;
+        }
+        if (schedule)
+            mainHandler.post(scheduleFrame);
+    }
+
+    @Override
+    public void doFrame(long frameTimeNanos) {
+        IOPFrameBatch batch;
+        synchronized (lock) {
+            batch = pending;
+            pending = delivering;
+            delivering = batch;
+            batch.setDroppedCount(dropped);
+            dropped = 0;
+            scheduled = false;
+        }
+        // Delivered synchronously, the batch is reused as soon as the subscribers return
+        bus.deliverFrames(batch);
+        batch.recycle(pool);
+    }
+}
@@ -0,0 +1,120 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Fixed-size log-linear latency histogram. Values are counted in 1.024 us units; each power of
+ * two is split into 8 buckets, so a percentile is reported within 12.5% of the true value, from
+ * 1 us up to about 34 s. Longer values land in the last bucket; the exact maximum is kept apart.
+ *
+ * Recording is wait-free and allocation free and may happen on any thread. Readers see a
+ * consistent enough view for monitoring, not an atomic snapshot.
+ */
+class LatencyHistogram
+{
+    private static final int UNIT_SHIFT = 10;
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    static final int BUCKET_COUNT = 23 * SUB_BUCKETS;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    void record(long nanos)
+    {
+        if(nanos < 0)
+            nanos = 0;
+        buckets.incrementAndGet(bucketOf(nanos));
+        count.incrementAndGet();
+        long current = max.get();
+        while(nanos > current && !max.compareAndSet(current, nanos))
+            current = max.get();
+    }
+
+    long getCount()
+    {
+        return count.get();
+    }
+
+    long getMaxNanos()
+    {
+        return max.get();
+    }
+
+    /*
+     * Upper bound of the bucket holding the given percentile (0 to 100), never more than the
+     * maximum recorded. 0 if nothing was recorded.
+     */
+    long getPercentileNanos(double percentile)
+    {
+        long total = count.get();
+        if(total == 0)
+            return 0;
+        long target = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+        long seen = 0;
+        for(int i=0; i<BUCKET_COUNT; i++)
+        {
+            seen += buckets.get(i);
+            if(seen >= target)
+                return Math.min(upperBoundNanos(i), max.get());
+        }
+        return max.get();
+    }
+
+    /*
+     * Halves every count, rounding down, so that older samples weigh less than the ones recorded
+     * after. The maximum is lowered to the top of the highest bucket still occupied.
+     */
+    void decay()
+    {
+        long removed = 0;
+        int highest = -1;
+        for(int i=0; i<BUCKET_COUNT; i++)
+        {
+            long value = buckets.get(i);
+            long drop = (value + 1) >> 1;
+            if(drop > 0)
+            {
+                // Relative, so that samples recorded meanwhile are kept
+                buckets.addAndGet(i, -drop);
+                removed += drop;
+            }
+            if(value - drop > 0)
+                highest = i;
+        }
+        count.addAndGet(-removed);
+        long bound = highest < 0 ? 0 : upperBoundNanos(highest);
+        long current = max.get();
+        while(current > bound && !max.compareAndSet(current, bound))
+            current = max.get();
+    }
+
+    void reset()
+    {
+        for(int i=0; i<BUCKET_COUNT; i++)
+            buckets.set(i, 0);
+        count.set(0);
+        max.set(0);
+    }
+
+    static int bucketOf(long nanos)
+    {
+        long units = nanos >> UNIT_SHIFT;
+        if(units < SUB_BUCKETS)
+            return (int) units;
+        int msb = 63 - Long.numberOfLeadingZeros(units);
+        int index = (msb - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + (int) ((units >> (msb - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return Math.min(index, BUCKET_COUNT - 1);
+    }
+
+    static long upperBoundNanos(int bucket)
+    {
+        if(bucket < SUB_BUCKETS)
+            return (long) (bucket + 1) << UNIT_SHIFT;
+        int msb = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        return (SUB_BUCKETS + sub + 1) << (msb - SUB_BUCKET_BITS) << UNIT_SHIFT;
+    }
+}
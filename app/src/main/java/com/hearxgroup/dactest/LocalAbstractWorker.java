@@ -0,0 +1,107 @@
+package com.hearxgroup.dactest;
+
+import android.util.Log;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * A loop calling doRun() until cancelled, run on a pooled WorkerScheduler thread instead of a
+ * thread of its own. cancel() stops the loop and interrupts it if it is blocked; the pool thread
+ * is then reused by the next worker. If doRun() throws, the exception is logged and the loop
+ * ends; start() then runs it again.
+ */
+abstract class LocalAbstractWorker implements Runnable {
+    private static final String TAG = LocalAbstractWorker.class.getSimpleName();
+
+    private final String name;
+    private volatile boolean keep = true;
+    // Guarded by this. Set from start() until run() returns
+    private boolean started;
+    // Written under this, read without it by wake()
+    private volatile Thread workingThread;
+
+    LocalAbstractWorker(String name) {
+        this.name = name;
+    }
+
+    /*
+     * Starts the loop on the shared per-device I/O pool. Returns false if the pool has no thread
+     * left; the worker is then cancelled.
+     */
+    boolean start() {
+        return start(WorkerScheduler.get().getIoExecutor());
+    }
+
+    synchronized boolean start(Executor executor) {
+        if (started) {
+            return true;
+        }
+        if (!keep) {
+            return false;
+        }
+        try {
+            // Not submit(): the loop's own exceptions must not end up in a Future nobody reads
+            executor.execute(this);
+            started = true;
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "No thread available for " + name);
+            keep = false;
+            return false;
+        }
+    }
+
+    synchronized void cancel() {
+        keep = false;
+        // Interrupts the pool thread only while it is still running this worker
+        if (workingThread != null) {
+            workingThread.interrupt();
+        }
+    }
+
+    boolean isCancelled() {
+        return !keep;
+    }
+
+    /*
+     * Unparks the loop if it is waiting in LockSupport.park().
+     */
+    void wake() {
+        Thread thread = workingThread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    public final void run() {
+        Thread thread = Thread.currentThread();
+        String poolName = thread.getName();
+        synchronized (this) {
+            if (!keep) {
+                started = false;
+                return;
+            }
+            workingThread = thread;
+        }
+        thread.setName(name);
+        try {
+            while (this.keep && (!thread.isInterrupted())) {
+                doRun();
+            }
+        } catch (Throwable e) {
+            Log.e(TAG, name + " stopped by an exception", e);
+        } finally {
+            synchronized (this) {
+                workingThread = null;
+                started = false;
+                // An interrupt from cancel() must not carry over to the pool's next task
+                Thread.interrupted();
+            }
+            thread.setName(poolName);
+        }
+    }
+
+    abstract void doRun();
+}
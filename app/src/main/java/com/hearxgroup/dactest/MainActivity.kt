@@ -5,44 +5,46 @@ import androidx.appcompat.app.AppCompatActivity
 
 import android.widget.Toast
 import android.content.*
-import android.os.Handler
 import android.widget.EditText
 import android.widget.TextView
 import android.os.IBinder
-import android.os.Message
 import kotlinx.android.synthetic.main.activity_main.*
-import java.lang.ref.WeakReference
 
 class MainActivity : AppCompatActivity() {
 
     /*
      * Notifications from UsbService will be received here.
      */
-    private val mUsbReceiver = object : BroadcastReceiver() {
-
-        override fun onReceive(context: Context, intent: Intent) {
-            when (intent.action) {
-                UsbService.ACTION_USB_PERMISSION_GRANTED // USB PERMISSION GRANTED
-                -> Toast.makeText(context, "USB Ready", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_PERMISSION_NOT_GRANTED // USB PERMISSION NOT GRANTED
-                -> Toast.makeText(context, "USB Permission not granted", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_NO_USB // NO USB CONNECTED
-                -> Toast.makeText(context, "No USB connected", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_DISCONNECTED // USB DISCONNECTED
-                -> Toast.makeText(context, "USB disconnected", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_NOT_SUPPORTED // USB NOT SUPPORTED
-                -> Toast.makeText(context, "USB device not supported", Toast.LENGTH_SHORT).show()
-            }
+    private val deviceSubscriber = DeviceEventBus.Subscriber { _, cause ->
+        when (cause?.type) {
+            DeviceEvent.PERMISSION_GRANTED // USB PERMISSION GRANTED
+            -> Toast.makeText(this, "USB Ready", Toast.LENGTH_SHORT).show()
+            DeviceEvent.PERMISSION_NOT_GRANTED // USB PERMISSION NOT GRANTED
+            -> Toast.makeText(this, "USB Permission not granted", Toast.LENGTH_SHORT).show()
+            DeviceEvent.NO_USB // NO USB CONNECTED
+            -> Toast.makeText(this, "No USB connected", Toast.LENGTH_SHORT).show()
+            DeviceEvent.USB_DISCONNECTED // USB DISCONNECTED
+            -> Toast.makeText(this, "USB disconnected", Toast.LENGTH_SHORT).show()
+            DeviceEvent.DEVICE_NOT_WORKING // USB DEVICE COULD NOT BE OPENED
+            -> Toast.makeText(this, "USB device not working", Toast.LENGTH_SHORT).show()
+            DeviceEvent.CTS_CHANGED -> Toast.makeText(this, "CTS_CHANGE", Toast.LENGTH_LONG).show()
+            DeviceEvent.DSR_CHANGED -> Toast.makeText(this, "DSR_CHANGE", Toast.LENGTH_LONG).show()
         }
     }
+
+    /*
+     * Data received from the device is displayed here, once per display frame
+     */
+    private val frameSubscriber = DeviceEventBus.FrameSubscriber { frames ->
+        display?.append(frames.toHexLines())
+    }
+
     private var usbService: UsbService? = null
     private var display: TextView? = null
     private var editText: EditText? = null
-    private var mHandler: MyHandler? = null
     private val usbConnection = object : ServiceConnection {
         override fun onServiceConnected(arg0: ComponentName, arg1: IBinder) {
             usbService = (arg1 as UsbService.UsbBinder).service
-            usbService!!.setHandler(mHandler)
         }
 
         override fun onServiceDisconnected(arg0: ComponentName) {
@@ -54,8 +56,6 @@ class MainActivity : AppCompatActivity() {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_main)
 
-        mHandler = MyHandler(this)
-
         display = tv_usb_output
         editText = editText1
 
@@ -80,7 +80,9 @@ class MainActivity : AppCompatActivity() {
 
     public override fun onResume() {
         super.onResume()
-        setFilters()  // Start listening notifications from UsbService
+        // Start listening to notifications from UsbService
+        DeviceEventBus.get().subscribe(deviceSubscriber)
+        DeviceEventBus.get().subscribeFrames(frameSubscriber)
         startService(
             UsbService::class.java,
             usbConnection,
@@ -90,7 +92,8 @@ class MainActivity : AppCompatActivity() {
 
     public override fun onPause() {
         super.onPause()
-        unregisterReceiver(mUsbReceiver)
+        DeviceEventBus.get().unsubscribe(deviceSubscriber)
+        DeviceEventBus.get().unsubscribeFrames(frameSubscriber)
         unbindService(usbConnection)
     }
 
@@ -114,40 +117,4 @@ class MainActivity : AppCompatActivity() {
         bindService(bindingIntent, serviceConnection, Context.BIND_AUTO_CREATE)
     }
 
-    private fun setFilters() {
-        val filter = IntentFilter()
-        filter.addAction(UsbService.ACTION_USB_PERMISSION_GRANTED)
-        filter.addAction(UsbService.ACTION_NO_USB)
-        filter.addAction(UsbService.ACTION_USB_DISCONNECTED)
-        filter.addAction(UsbService.ACTION_USB_NOT_SUPPORTED)
-        filter.addAction(UsbService.ACTION_USB_PERMISSION_NOT_GRANTED)
-        registerReceiver(mUsbReceiver, filter)
-    }
-
-    /*
-     * This handler will be passed to UsbService. Data received from serial port is displayed through this handler
-     */
-    private class MyHandler(activity: MainActivity) : Handler() {
-        private val mActivity: WeakReference<MainActivity> = WeakReference(activity)
-
-        override fun handleMessage(msg: Message) {
-            when (msg.what) {
-                UsbService.MESSAGE_FROM_SERIAL_PORT -> {
-                    val data = msg.obj as String
-                    mActivity.get()?.display?.append(data)
-                }
-                UsbService.CTS_CHANGE -> Toast.makeText(
-                    mActivity.get(),
-                    "CTS_CHANGE",
-                    Toast.LENGTH_LONG
-                ).show()
-                UsbService.DSR_CHANGE -> Toast.makeText(
-                    mActivity.get(),
-                    "DSR_CHANGE",
-                    Toast.LENGTH_LONG
-                ).show()
-            }
-        }
-    }
-
 }
@@ -0,0 +1,116 @@
+package com.hearxgroup.dactest;
+
+import java.util.Arrays;
+
+/*
+ * A register write compiled into a complete IOP message, IOP and I2C headers included, with the
+ * offsets of its variable bytes. Encoding a write copies the prebuilt message into the encoder and
+ * patches the fields in place; nothing is built or parsed per call. Immutable once compiled, so
+ * templates are shared by all devices and threads.
+ */
+final class PacketTemplate
+{
+    private final String name;
+    private final int slave;
+    private final byte[] message;
+    private final int[] fieldOffsets;
+
+    /*
+     * bytes is the I2C write, I2CRegisterMap.FIELD marking each variable byte.
+     */
+    PacketTemplate(String name, int slave, int[] bytes)
+    {
+        if(bytes.length == 0 || bytes.length > CP2615PacketEncoder.MAX_WRITE_LENGTH)
+            throw new IllegalArgumentException(name + ": write of " + bytes.length + " bytes");
+        this.name = name;
+        this.slave = slave;
+        CP2615PacketEncoder encoder = new CP2615PacketEncoder(CP2615PacketEncoder.IOP_HEADER_LENGTH
+                + CP2615PacketEncoder.I2C_HEADER_LENGTH + bytes.length);
+        encoder.beginI2CWrite(slave, bytes.length);
+        int[] offsets = new int[bytes.length];
+        int fieldCount = 0;
+        for(int value : bytes)
+        {
+            if(value == I2CRegisterMap.FIELD)
+            {
+                offsets[fieldCount++] = encoder.getLength();
+                encoder.put(0);
+            }else if(value < 0 || value > 0xFF)
+            {
+                throw new IllegalArgumentException(name + ": byte " + value + " out of range");
+            }else
+            {
+                encoder.put(value);
+            }
+        }
+        message = Arrays.copyOf(encoder.getBuffer(), encoder.getLength());
+        fieldOffsets = Arrays.copyOf(offsets, fieldCount);
+    }
+
+    String getName()
+    {
+        return name;
+    }
+
+    int getSlave()
+    {
+        return slave;
+    }
+
+    /*
+     * Length of the encoded message.
+     */
+    int getLength()
+    {
+        return message.length;
+    }
+
+    int getFieldCount()
+    {
+        return fieldOffsets.length;
+    }
+
+    /*
+     * Offset of a variable byte from the start of the encoded message.
+     */
+    int getFieldOffset(int field)
+    {
+        return fieldOffsets[field];
+    }
+
+    /*
+     * Appends the write with its single field set. Returns false if it does not fit the encoder.
+     */
+    boolean encode(CP2615PacketEncoder encoder, int value)
+    {
+        checkFieldCount(1);
+        int start = encoder.getLength();
+        if(!encoder.putMessage(message, 0, message.length))
+            return false;
+        encoder.set(start + fieldOffsets[0], value);
+        return true;
+    }
+
+    boolean encode(CP2615PacketEncoder encoder, int value0, int value1)
+    {
+        checkFieldCount(2);
+        int start = encoder.getLength();
+        if(!encoder.putMessage(message, 0, message.length))
+            return false;
+        encoder.set(start + fieldOffsets[0], value0);
+        encoder.set(start + fieldOffsets[1], value1);
+        return true;
+    }
+
+    private void checkFieldCount(int count)
+    {
+        if(fieldOffsets.length != count)
+            throw new IllegalArgumentException(name + " has " + fieldOffsets.length + " fields, not " + count);
+    }
+
+    @Override
+    public String toString()
+    {
+        return name + Arrays.toString(fieldOffsets);
+    }
+}
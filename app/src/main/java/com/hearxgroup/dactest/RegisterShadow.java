@@ -0,0 +1,122 @@
+package com.hearxgroup.dactest;
+
+import java.util.Arrays;
+
+/*
+ * Last value written to each register of each I2C slave behind one CP2615, as far as we know.
+ * The first byte of an I2C write is taken as the register, the remaining bytes (up to 8) as its
+ * value. Entries are only updated after a successful transfer and dropped when a transfer
+ * touching them fails, so a match means the device already holds the value.
+ */
+class RegisterShadow
+{
+    private static final int MAX_VALUE_LENGTH = 8;
+    private static final int I2C_DATA_OFFSET = CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH;
+
+    // Indexed by slave then register, allocated per slave on first write
+    private final long[][] values = new long[256][];
+    // Value length + 1, 0 when unknown
+    private final byte[][] lengths = new byte[256][];
+
+    /*
+     * True if the frame is a single plain I2C write whose value is already cached, i.e. sending
+     * it would not change the device state.
+     */
+    synchronized boolean matches(byte[] frame, int length)
+    {
+        if(length < I2C_DATA_OFFSET + 1 || CP2615PacketEncoder.messageLength(frame, 0) != length)
+            return false;
+        if(!isPlainWrite(frame, 0))
+            return false;
+        int slave = frame[7] & 0xFF;
+        int register = frame[I2C_DATA_OFFSET] & 0xFF;
+        int valueLength = (frame[9] & 0xFF) - 1;
+        if(valueLength > MAX_VALUE_LENGTH || lengths[slave] == null)
+            return false;
+        return lengths[slave][register] == valueLength + 1
+                && values[slave][register] == pack(frame, I2C_DATA_OFFSET + 1, valueLength);
+    }
+
+    /*
+     * Records every plain write message of a frame that was transferred successfully.
+     */
+    synchronized void update(byte[] frame, int length)
+    {
+        for(int offset=0; offset + I2C_DATA_OFFSET < length; offset += CP2615PacketEncoder.messageLength(frame, offset))
+        {
+            if(!isPlainWrite(frame, offset))
+                continue;
+            int slave = frame[offset + 7] & 0xFF;
+            int register = frame[offset + I2C_DATA_OFFSET] & 0xFF;
+            int valueLength = (frame[offset + 9] & 0xFF) - 1;
+            if(lengths[slave] == null)
+            {
+                values[slave] = new long[256];
+                lengths[slave] = new byte[256];
+            }
+            if(valueLength > MAX_VALUE_LENGTH)
+            {
+                lengths[slave][register] = 0;
+                continue;
+            }
+            values[slave][register] = pack(frame, offset + I2C_DATA_OFFSET + 1, valueLength);
+            lengths[slave][register] = (byte) (valueLength + 1);
+        }
+    }
+
+    /*
+     * Forgets every register touched by a frame whose transfer failed.
+     */
+    synchronized void invalidate(byte[] frame, int length)
+    {
+        for(int offset=0; offset + I2C_DATA_OFFSET < length; offset += CP2615PacketEncoder.messageLength(frame, offset))
+        {
+            int slave = frame[offset + 7] & 0xFF;
+            if((frame[offset + 9] & 0xFF) > 0 && lengths[slave] != null)
+                lengths[slave][frame[offset + I2C_DATA_OFFSET] & 0xFF] = 0;
+        }
+    }
+
+    synchronized void clear()
+    {
+        for(byte[] slaveLengths : lengths)
+        {
+            if(slaveLengths != null)
+                Arrays.fill(slaveLengths, (byte) 0);
+        }
+    }
+
+    /*
+     * Copies the cached value of a register into dest. Returns the value length, or -1 if the
+     * register state is unknown.
+     */
+    synchronized int get(int slave, int register, byte[] dest, int offset)
+    {
+        if(lengths[slave] == null || lengths[slave][register] == 0)
+            return -1;
+        int valueLength = lengths[slave][register] - 1;
+        long value = values[slave][register];
+        for(int i=valueLength - 1; i>=0; i--)
+        {
+            dest[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+        return valueLength;
+    }
+
+    private static boolean isPlainWrite(byte[] frame, int offset)
+    {
+        return ((frame[offset + 4] & 0xFF) << 8 | (frame[offset + 5] & 0xFF)) == CP2615PacketEncoder.IOP_I2C_TRANSFER
+                && (frame[offset + 6] & 0xFF) == CP2615PacketEncoder.DEFAULT_TAG
+                && frame[offset + 8] == 0
+                && (frame[offset + 9] & 0xFF) > 0;
+    }
+
+    private static long pack(byte[] frame, int offset, int length)
+    {
+        long value = 0;
+        for(int i=0; i<length; i++)
+            value = value << 8 | (frame[offset + i] & 0xFF);
+        return value;
+    }
+}
@@ -0,0 +1,337 @@
+package com.hearxgroup.dactest;
+
+import android.media.MediaMetadataRetriever;
+import android.media.SoundPool;
+import android.util.Log;
+import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+
+import java.io.File;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/*
+ * Keeps the decoded tone files f{freq}_{low|high}.ogg loaded in a SoundPool, so that play() of a
+ * cached tone starts at once instead of loading and decoding the file first.
+ *
+ * preload() loads every variant in parallel on the WorkerScheduler loader threads when the
+ * activity starts; SoundPool then decodes them asynchronously. Samples are kept in least
+ * recently played order and evicted (unloaded) when their estimated decoded size goes over the
+ * memory budget. Samples still loading count against the budget too: a preload that does not fit
+ * once the ready samples are evicted is skipped. A tone requested before it is ready is loaded on
+ * demand, also on a loader thread, and starts as soon as its load completes.
+ *
+ * The SoundPool load listener must be delivered to onLoadComplete(); that happens on the thread
+ * that created the pool, usually the UI thread.
+ */
+class SampleCache implements SoundPool.OnLoadCompleteListener
+{
+    private static final String TAG = SampleCache.class.getSimpleName();
+
+    static final long DEFAULT_BUDGET_BYTES = 16L * 1024 * 1024;
+    // Decoded size assumed per millisecond of audio: 44.1 kHz, stereo, 16 bit
+    private static final long DECODED_BYTES_PER_MS = 44100L * 2 * 2 / 1000;
+
+    private final SoundPool soundPool;
+    private final File directory;
+    private final long budgetBytes;
+
+    private final Object lock = new Object();
+    // Guarded by lock. Keyed by key(freq, low), least recently played first for LRU eviction.
+    // Insertion ordered, so that only play() refreshes the order, see touch()
+    private final LinkedHashMap<Integer, Sample> samples = new LinkedHashMap<>(32);
+    private final SparseArray<Sample> bySoundId = new SparseArray<>();
+    // Keys of the variants whose file was found missing or could not be decoded; never retried
+    private final SparseBooleanArray missing = new SparseBooleanArray();
+    private long loadedBytes;
+    private boolean released;
+    // Stream of the last tone started, for stop()
+    private int lastStreamId;
+
+    /*
+     * A variant from the moment its load is queued. soundId and bytes are set once the loader
+     * thread has sized the file and handed it to SoundPool; until then it counts for nothing.
+     */
+    private static class Sample
+    {
+        final int key;
+        int soundId;
+        long bytes;
+        boolean ready;
+        // A play() waiting for the load, and its loop flag
+        boolean playPending;
+        boolean pendingLoop;
+
+        Sample(int key)
+        {
+            this.key = key;
+        }
+    }
+
+    SampleCache(SoundPool soundPool, File directory)
+    {
+        this(soundPool, directory, DEFAULT_BUDGET_BYTES);
+    }
+
+    SampleCache(SoundPool soundPool, File directory, long budgetBytes)
+    {
+        this.soundPool = soundPool;
+        this.directory = directory;
+        this.budgetBytes = budgetBytes;
+        soundPool.setOnLoadCompleteListener(this);
+    }
+
+    static int key(int frequencyHz, boolean low)
+    {
+        return frequencyHz << 1 | (low ? 1 : 0);
+    }
+
+    File fileFor(int frequencyHz, boolean low)
+    {
+        return new File(directory, "f" + frequencyHz + "_" + (low ? "low" : "high") + ".ogg");
+    }
+
+    /*
+     * Queues the low and high variant of every frequency for loading, off the calling thread.
+     */
+    void preload(int[] frequenciesHz)
+    {
+        for(int frequency : frequenciesHz)
+        {
+            for(boolean low : new boolean[]{true, false})
+            {
+                synchronized(lock)
+                {
+                    queueLoad(frequency, low);
+                }
+            }
+        }
+    }
+
+    boolean isReady(int frequencyHz, boolean low)
+    {
+        synchronized(lock)
+        {
+            Sample sample = samples.get(key(frequencyHz, low));
+            return sample != null && sample.ready;
+        }
+    }
+
+    /*
+     * Plays the tone at full volume, looping if loop is set. Returns the stream id, 0 if the
+     * sample is still loading (it then starts when loaded) and -1 if its file was found missing
+     * or undecodable, or the cache is released. Never touches the file on the calling thread.
+     */
+    int play(int frequencyHz, boolean low, boolean loop)
+    {
+        Sample sample;
+        synchronized(lock)
+        {
+            if(released || missing.get(key(frequencyHz, low)))
+                return -1;
+            sample = samples.get(key(frequencyHz, low));
+            if(sample == null)
+                sample = queueLoad(frequencyHz, low);
+            else
+                touch(sample);
+            if(!sample.ready)
+            {
+                sample.playPending = true;
+                sample.pendingLoop = loop;
+                return 0;
+            }
+        }
+        int streamId = soundPool.play(sample.soundId, 1.0f, 1.0f, 1, loop ? -1 : 0, 1.0f);
+        synchronized(lock)
+        {
+            lastStreamId = streamId;
+        }
+        return streamId;
+    }
+
+    /*
+     * Stops the last tone started and forgets plays still waiting for their sample.
+     */
+    void stop()
+    {
+        int streamId;
+        synchronized(lock)
+        {
+            for(Sample sample : samples.values())
+                sample.playPending = false;
+            streamId = lastStreamId;
+            lastStreamId = 0;
+        }
+        if(streamId > 0)
+            soundPool.stop(streamId);
+    }
+
+    @Override
+    public void onLoadComplete(SoundPool pool, int soundId, int status)
+    {
+        boolean play;
+        boolean loop;
+        synchronized(lock)
+        {
+            Sample sample = bySoundId.get(soundId);
+            if(sample == null)
+                return;
+            if(status != 0)
+            {
+                Log.w(TAG, "Could not load sample " + sample.key + ", status " + status);
+                remove(sample);
+                missing.put(sample.key, true);
+                return;
+            }
+            sample.ready = true;
+            play = sample.playPending;
+            loop = sample.pendingLoop;
+            sample.playPending = false;
+        }
+        if(!play)
+            return;
+        int streamId = pool.play(soundId, 1.0f, 1.0f, 1, loop ? -1 : 0, 1.0f);
+        synchronized(lock)
+        {
+            lastStreamId = streamId;
+        }
+    }
+
+    void release()
+    {
+        synchronized(lock)
+        {
+            released = true;
+            samples.clear();
+            missing.clear();
+            bySoundId.clear();
+            loadedBytes = 0;
+        }
+        soundPool.release();
+    }
+
+    /*
+     * Registers a variant and queues its load on a loader thread, unless it is cached, loading
+     * already or known to be missing. Returns its entry, null if none. Called with the lock held.
+     */
+    private Sample queueLoad(final int frequencyHz, final boolean low)
+    {
+        int key = key(frequencyHz, low);
+        Sample sample = samples.get(key);
+        if(sample != null || released || missing.get(key))
+            return sample;
+        final Sample queued = new Sample(key);
+        samples.put(key, queued);
+        WorkerScheduler.get().getLoaderExecutor().execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load(queued, fileFor(frequencyHz, low));
+            }
+        });
+        return queued;
+    }
+
+    /*
+     * Loader thread: sizes the file and hands it to SoundPool, making room in the budget first.
+     */
+    private void load(Sample sample, File file)
+    {
+        boolean exists = file.isFile();
+        long bytes = exists ? estimateDecodedBytes(file) : 0;
+        synchronized(lock)
+        {
+            if(samples.get(sample.key) != sample)
+                return;
+            if(!exists)
+            {
+                Log.w(TAG, "Missing tone file " + file);
+                samples.remove(sample.key);
+                missing.put(sample.key, true);
+                return;
+            }
+            // A preload only takes what is left; a tone waiting to play is loaded regardless
+            if(!evict(bytes, sample) && !sample.playPending)
+            {
+                samples.remove(sample.key);
+                return;
+            }
+            sample.bytes = bytes;
+            sample.soundId = soundPool.load(file.getPath(), 1);
+            bySoundId.put(sample.soundId, sample);
+            loadedBytes += bytes;
+        }
+    }
+
+    /*
+     * Unloads least recently used samples until another incoming bytes fit the budget: ready
+     * ones first, then loading ones no play() is waiting for. Returns whether they fit. Called
+     * with the lock held.
+     */
+    private boolean evict(long incoming, Sample keep)
+    {
+        evict(incoming, keep, true);
+        if(keep.playPending)
+            evict(incoming, keep, false);
+        return loadedBytes + incoming <= budgetBytes;
+    }
+
+    private void evict(long incoming, Sample keep, boolean readyOnly)
+    {
+        Iterator<Map.Entry<Integer, Sample>> iterator = samples.entrySet().iterator();
+        while(loadedBytes + incoming > budgetBytes && iterator.hasNext())
+        {
+            Sample sample = iterator.next().getValue();
+            // Samples not handed to SoundPool yet count for nothing
+            if(sample == keep || sample.soundId == 0 || sample.playPending || sample.ready != readyOnly)
+                continue;
+            iterator.remove();
+            bySoundId.remove(sample.soundId);
+            loadedBytes -= sample.bytes;
+            soundPool.unload(sample.soundId);
+        }
+    }
+
+    /*
+     * Moves a sample to the most recently played end. Called with the lock held.
+     */
+    private void touch(Sample sample)
+    {
+        samples.remove(sample.key);
+        samples.put(sample.key, sample);
+    }
+
+    // Called with the lock held
+    private void remove(Sample sample)
+    {
+        samples.remove(sample.key);
+        bySoundId.remove(sample.soundId);
+        loadedBytes -= sample.bytes;
+    }
+
+    /*
+     * SoundPool keeps samples decoded, so the budget counts decoded PCM, estimated from the
+     * duration of the file.
+     */
+    private static long estimateDecodedBytes(File file)
+    {
+        MediaMetadataRetriever retriever = new MediaMetadataRetriever();
+        try
+        {
+            retriever.setDataSource(file.getPath());
+            String duration = retriever.extractMetadata(MediaMetadataRetriever.METADATA_KEY_DURATION);
+            if(duration != null)
+                return Long.parseLong(duration) * DECODED_BYTES_PER_MS;
+        } catch(RuntimeException e)
+        {
+            Log.w(TAG, "Could not read the duration of " + file, e);
+        } finally
+        {
+            retriever.release();
+        }
+        // Compressed audio is roughly a tenth of its decoded size
+        return file.length() * 10;
+    }
+}
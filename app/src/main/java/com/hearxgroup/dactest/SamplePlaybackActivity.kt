@@ -8,43 +8,48 @@ import android.media.AudioAttributes
 import android.media.AudioManager
 import android.media.SoundPool
 import android.os.*
-import android.util.Log
 import android.widget.ArrayAdapter
 import kotlinx.android.synthetic.main.activity_sample_playback.*
 import java.io.File
-import java.lang.ref.WeakReference
 
 class SamplePlaybackActivity : AppCompatActivity() {
 
-    private var soundPool: SoundPool? = null
+    private lateinit var sampleCache: SampleCache
     private lateinit var audioManager: AudioManager
+    private lateinit var tonePlayer: TonePlayer
+    private lateinit var stimulusPresenter: StimulusPresenter
 
     /*
      * Notifications from UsbService will be received here.
      */
-    private val mUsbReceiver = object : BroadcastReceiver() {
-
-        override fun onReceive(context: Context, intent: Intent) {
-            when (intent.action) {
-                UsbService.ACTION_USB_PERMISSION_GRANTED // USB PERMISSION GRANTED
-                -> Toast.makeText(context, "USB Ready", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_PERMISSION_NOT_GRANTED // USB PERMISSION NOT GRANTED
-                -> Toast.makeText(context, "USB Permission not granted", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_NO_USB // NO USB CONNECTED
-                -> Toast.makeText(context, "No USB connected", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_DISCONNECTED // USB DISCONNECTED
-                -> Toast.makeText(context, "USB disconnected", Toast.LENGTH_SHORT).show()
-                UsbService.ACTION_USB_NOT_SUPPORTED // USB NOT SUPPORTED
-                -> Toast.makeText(context, "USB device not supported", Toast.LENGTH_SHORT).show()
-            }
+    private val deviceSubscriber = DeviceEventBus.Subscriber { _, cause ->
+        when (cause?.type) {
+            DeviceEvent.PERMISSION_GRANTED // USB PERMISSION GRANTED
+            -> Toast.makeText(this, "USB Ready", Toast.LENGTH_SHORT).show()
+            DeviceEvent.PERMISSION_NOT_GRANTED // USB PERMISSION NOT GRANTED
+            -> Toast.makeText(this, "USB Permission not granted", Toast.LENGTH_SHORT).show()
+            DeviceEvent.NO_USB // NO USB CONNECTED
+            -> Toast.makeText(this, "No USB connected", Toast.LENGTH_SHORT).show()
+            DeviceEvent.USB_DISCONNECTED // USB DISCONNECTED
+            -> Toast.makeText(this, "USB disconnected", Toast.LENGTH_SHORT).show()
+            DeviceEvent.DEVICE_NOT_WORKING // USB DEVICE COULD NOT BE OPENED
+            -> Toast.makeText(this, "USB device not working", Toast.LENGTH_SHORT).show()
+            DeviceEvent.CTS_CHANGED -> Toast.makeText(this, "CTS_CHANGE", Toast.LENGTH_LONG).show()
+            DeviceEvent.DSR_CHANGED -> Toast.makeText(this, "DSR_CHANGE", Toast.LENGTH_LONG).show()
         }
     }
+
+    /*
+     * Data received from the device is displayed here, once per display frame
+     */
+    private val frameSubscriber = DeviceEventBus.FrameSubscriber { frames ->
+        tv_usb_output_sample.append(frames.toHexLines())
+    }
+
     private var usbService: UsbService? = null
-    private var mHandler: MyHandler? = null
     private val usbConnection = object : ServiceConnection {
         override fun onServiceConnected(arg0: ComponentName, arg1: IBinder) {
             usbService = (arg1 as UsbService.UsbBinder).service
-            usbService!!.setHandler(mHandler)
         }
 
         override fun onServiceDisconnected(arg0: ComponentName) {
@@ -53,42 +58,34 @@ class SamplePlaybackActivity : AppCompatActivity() {
     }
 
     private var attenuation = 0
-    private var reg10 = 224
-    private var reg1 = 208
-    private var soundId = 0
 
     override fun onCreate(savedInstanceState: Bundle?) {
         super.onCreate(savedInstanceState)
         setContentView(R.layout.activity_sample_playback)
 
         audioManager = getSystemService(Context.AUDIO_SERVICE) as AudioManager
+        tonePlayer = TonePlayer(this)
+        stimulusPresenter = StimulusPresenter(tonePlayer, object : StimulusPresenter.GainWriter {
+            override fun writeAttenuation(frequencyHz: Int, attenuation: Int, callback: I2CCommandCallback): Boolean =
+                usbService?.writeAttenuation(frequencyHz, attenuation, callback) ?: false
+
+            override fun hasDevice(): Boolean = usbService?.defaultSession?.isOpen ?: false
+
+            override fun getI2CRoundTripNanos(): Long =
+                usbService?.defaultSession?.transferStats?.getP99Nanos(TransferStats.TYPE_READ, TransferStats.STAGE_IN) ?: 0L
+        })
 
         val attributes = AudioAttributes.Builder()
             .setUsage(AudioAttributes.USAGE_GAME)
             .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
             .build()
 
-        soundPool = SoundPool.Builder()
+        val soundPool = SoundPool.Builder()
             .setAudioAttributes(attributes)
             .setMaxStreams(10)
             .build()
-
-        soundPool!!.setOnLoadCompleteListener { soundPool, sampleId, status ->
-            Log.d("", "sampleId=$sampleId")
-            Log.d("", "soundId=$soundId")
-
-            if(soundId>0) {
-                soundPool!!.play(
-                    soundId,
-                    1.0f,
-                    1.0f,
-                    1,
-                    if(rbtn_loop.isChecked) -1 else 0,
-                    1.0f)
-            }
-        }
-
-        mHandler = MyHandler(this)
+        sampleCache = SampleCache(soundPool, toneFileDirectory())
+        sampleCache.preload(resources.getStringArray(R.array.array_freqs).map { it.toInt() }.toIntArray())
 
         tv_current_attenuation.text = "Current Attenuation: 0dB"
 
@@ -129,12 +126,23 @@ class SamplePlaybackActivity : AppCompatActivity() {
         }
 
         btn_play.setOnClickListener {
-            soundId = loadFileForPlayback(resources.getStringArray(R.array.array_freqs)[spin_freq.selectedItemPosition].toInt(), rbtn_low.isChecked)
+            if(rbtn_synth.isChecked) {
+                maximizeStreamVolume()
+                if(rbtn_pulse.isChecked)
+                    tonePlayer.setPulse(TonePlayer.DEFAULT_PULSE_PERIOD_MS, TonePlayer.DEFAULT_PULSE_DUTY_CYCLE)
+                else
+                    tonePlayer.setSteady()
+                presentStimulus()
+            } else {
+                maximizeStreamVolume()
+                if(sampleCache.play(selectedFrequency(), rbtn_low.isChecked, rbtn_loop.isChecked) < 0)
+                    Toast.makeText(this, "Tone file not found", Toast.LENGTH_LONG).show()
+            }
         }
 
         btn_pause.setOnClickListener {
-            if(soundId>0)
-                soundPool!!.stop(soundId)
+            stimulusPresenter.cancel()
+            sampleCache.stop()
         }
 
         //SETUP FREQ SPINNER
@@ -147,32 +155,77 @@ class SamplePlaybackActivity : AppCompatActivity() {
         spin_freq.adapter = freqAdapter
 
         rbtn_pulse.isChecked = true
+        rbtn_synth.isChecked = true
     }
 
     public override fun onResume() {
         super.onResume()
-        setFilters()  // Start listening notifications from UsbService
+        // Start listening to notifications from UsbService
+        DeviceEventBus.get().subscribe(deviceSubscriber)
+        DeviceEventBus.get().subscribeFrames(frameSubscriber)
         startService(
             UsbService::class.java,
             usbConnection,
             null
         ) // Start UsbService(if it was not started before) and Bind it
+        if(!tonePlayer.open())
+            Toast.makeText(this, "Audio output not available", Toast.LENGTH_LONG).show()
+    }
+
+    override fun onDestroy() {
+        super.onDestroy()
+        sampleCache.release()
     }
 
     public override fun onPause() {
         super.onPause()
-        unregisterReceiver(mUsbReceiver)
+        tonePlayer.close()
+        DeviceEventBus.get().unsubscribe(deviceSubscriber)
+        DeviceEventBus.get().unsubscribeFrames(frameSubscriber)
         unbindService(usbConnection)
     }
 
     private fun configDAC() {
-        adjustRegistersForNewAttenuation(attenuation)
         tv_current_attenuation.text = "Current Attenuation: ${attenuation}dB"
-        if (usbService != null) { // if UsbService was correctly binded, Send data
-            usbService!!.writeVolumeCommand(reg10, reg1)
+        if (tonePlayer.isPlaying) {
+            // Never change the gain under a sounding tone, ramp it out and present it again
+            presentStimulus()
+        } else if (usbService != null) { // if UsbService was correctly binded, Send data
+            usbService!!.writeAttenuation(selectedFrequency(), attenuation)
         }
     }
 
+    /*
+     * Plays the synthesized tone once the device has confirmed its gain write.
+     */
+    private fun presentStimulus() {
+        val amplitude = if(rbtn_low.isChecked) TonePlayer.AMPLITUDE_LOW else TonePlayer.AMPLITUDE_HIGH
+        if (usbService == null) {
+            tonePlayer.play(selectedFrequency(), amplitude)
+            return
+        }
+        stimulusPresenter.present(selectedFrequency(), attenuation, amplitude, object : StimulusPresenter.Listener {
+            override fun onStimulusScheduled(gainConfirmedNanos: Long, settleNanos: Long, onsetNanos: Long) {
+                val gapMicros = (onsetNanos - gainConfirmedNanos) / 1000
+                val settleMicros = settleNanos / 1000
+                runOnUiThread { tv_usb_output_sample.append("Onset ${gapMicros}us after gain confirmed, settle ${settleMicros}us\n") }
+            }
+
+            override fun onStimulusFailed(result: Int) {
+                val message = when (result) {
+                    I2CCommandCallback.RESULT_SUPERSEDED -> return
+                    I2CCommandCallback.RESULT_CANCELLED -> "No device connected"
+                    else -> "Gain write failed: $result"
+                }
+                runOnUiThread { Toast.makeText(this@SamplePlaybackActivity, message, Toast.LENGTH_LONG).show() }
+            }
+        })
+    }
+
+    private fun selectedFrequency(): Int {
+        return resources.getStringArray(R.array.array_freqs)[spin_freq.selectedItemPosition].toInt()
+    }
+
     private fun startService(
         service: Class<*>,
         serviceConnection: ServiceConnection,
@@ -193,89 +246,19 @@ class SamplePlaybackActivity : AppCompatActivity() {
         bindService(bindingIntent, serviceConnection, Context.BIND_AUTO_CREATE)
     }
 
-    private fun setFilters() {
-        val filter = IntentFilter()
-        filter.addAction(UsbService.ACTION_USB_PERMISSION_GRANTED)
-        filter.addAction(UsbService.ACTION_NO_USB)
-        filter.addAction(UsbService.ACTION_USB_DISCONNECTED)
-        filter.addAction(UsbService.ACTION_USB_NOT_SUPPORTED)
-        filter.addAction(UsbService.ACTION_USB_PERMISSION_NOT_GRANTED)
-        registerReceiver(mUsbReceiver, filter)
-    }
-
     /*
-     * This handler will be passed to UsbService. Data received from serial port is displayed through this handler
+     * Output level is set by the DAC attenuation, so the phone's own volume stays at maximum.
      */
-    private class MyHandler(activity: SamplePlaybackActivity) : Handler() {
-        private val mActivity: WeakReference<SamplePlaybackActivity> = WeakReference(activity)
-
-        override fun handleMessage(msg: Message) {
-            when (msg.what) {
-                UsbService.MESSAGE_FROM_SERIAL_PORT -> {
-                    val data = msg.obj as String
-                    mActivity.get()?.tv_usb_output_sample?.append(data)
-                }
-                UsbService.CTS_CHANGE -> Toast.makeText(
-                    mActivity.get(),
-                    "CTS_CHANGE",
-                    Toast.LENGTH_LONG
-                ).show()
-                UsbService.DSR_CHANGE -> Toast.makeText(
-                    mActivity.get(),
-                    "DSR_CHANGE",
-                    Toast.LENGTH_LONG
-                ).show()
-            }
-        }
-    }
-
-    private fun adjustRegistersForNewAttenuation(attenuation: Int) {
-        if(attenuation<10) {
-            reg10 = 224
-            reg1 = 208 + attenuation
-        }
-        else if(attenuation<20) {
-            reg10 = 225
-            reg1 = 208 + (attenuation-10)
-        }
-        else if(attenuation<30) {
-            reg10 = 226
-            reg1 = 208 + (attenuation-20)
-        }
-        else if(attenuation<40) {
-            reg10 = 227
-            reg1 = 208 + (attenuation-30)
-        }
-        else if(attenuation<50) {
-            reg10 = 228
-            reg1 = 208 + (attenuation-40)
-        }
-        else if(attenuation<60) {
-            reg10 = 229
-            reg1 = 208 + (attenuation-50)
-        }
-        else if(attenuation<70) {
-            reg10 = 230
-            reg1 = 208 + (attenuation-60)
-        }
-        else if(attenuation<80) {
-            reg10 = 231
-            reg1 = 208 + (attenuation-70)
-        }
-    }
-
-
-    private fun loadFileForPlayback(freq: Int, low: Boolean) : Int {
+    private fun maximizeStreamVolume() {
         audioManager.setStreamVolume(
             AudioManager.STREAM_MUSIC,
             audioManager.getStreamMaxVolume(AudioManager.STREAM_MUSIC),
             0
         )
+    }
 
-        val filePath = Environment.getExternalStoragePublicDirectory(
-            Environment.DIRECTORY_DCIM).toString()+ File.separator+"dacfiles"+File.separator+"f${freq}_${if(low)"low" else "high"}.ogg"
-        Log.d("","filePath=$filePath")
-        return soundPool!!.load(filePath, 1)
+    private fun toneFileDirectory(): File {
+        return File(Environment.getExternalStoragePublicDirectory(Environment.DIRECTORY_DCIM), "dacfiles")
     }
 
 }
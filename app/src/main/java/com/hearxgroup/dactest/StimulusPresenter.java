@@ -0,0 +1,176 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Presents a stimulus as one operation: the DAC gain for the stimulus is written first, and only
+ * once its bulk OUT transfer has completed is the tone scheduled, to reach the output a settle
+ * time later. The transfer completing means the CP2615 has the write, not that its I2C
+ * write has reached the DAC: the settle time has to cover the USB to I2C delay of the device as
+ * well as the settling of the DAC itself, see getSettleNanos(). Within that margin a tone never
+ * plays at the previous gain and the gain never changes while it sounds.
+ *
+ * Any tone still sounding is ramped out before the gain write is sent. The onset is placed on an
+ * exact output frame through TonePlayer.playAt(), which compensates the measured output latency;
+ * when the output cannot reach the requested time the tone starts at the earliest frame it can,
+ * and the listener is told the actual times either way.
+ */
+class StimulusPresenter
+{
+    /*
+     * Queues the DAC attenuation write for a frequency. Returns false if it could not be queued.
+     */
+    interface GainWriter
+    {
+        boolean writeAttenuation(int frequencyHz, int attenuation, I2CCommandCallback callback);
+
+        /*
+         * False if there is no open device to write to.
+         */
+        boolean hasDevice();
+
+        /*
+         * p99 round trip of an I2C read request through the device, USB and bus, as measured by
+         * its TransferStats (TYPE_READ, STAGE_IN); 0 if there is no device or no measurement yet.
+         */
+        long getI2CRoundTripNanos();
+    }
+
+    /*
+     * Called on the thread calling present(), the timer thread or the device writer thread, must
+     * not block. Times are System.nanoTime().
+     */
+    interface Listener
+    {
+        /*
+         * gainConfirmedNanos is when the OUT transfer of the gain write completed, settleNanos
+         * the settle time allowed after it, see getSettleNanos().
+         */
+        void onStimulusScheduled(long gainConfirmedNanos, long settleNanos, long onsetNanos);
+
+        /*
+         * result is the failed write result, I2CCommandCallback.RESULT_SUPERSEDED if a newer
+         * stimulus or cancel() replaced this one, RESULT_CANCELLED if there is no device and
+         * RESULT_QUEUE_FULL if the write could not be queued.
+         */
+        void onStimulusFailed(int result);
+    }
+
+    // Least time from the OUT transfer of the gain write completing to the DAC volume having settled
+    static final long GAIN_SETTLE_NANOS = 2000000L; // 2ms
+
+    private final TonePlayer tonePlayer;
+    private final GainWriter gainWriter;
+    // Bumped by every present() and cancel(), so that a stale presentation never starts its tone
+    private final AtomicInteger generation = new AtomicInteger();
+    // Held from a presentation's generation check to its tone being scheduled, and by present()
+    // and cancel(), so that neither can slip in between and leave a stale tone playing
+    private final Object lock = new Object();
+
+    StimulusPresenter(TonePlayer tonePlayer, GainWriter gainWriter)
+    {
+        this.tonePlayer = tonePlayer;
+        this.gainWriter = gainWriter;
+    }
+
+    /*
+     * Sets the gain for the stimulus and then plays it. Replaces a stimulus in progress.
+     */
+    void present(int frequencyHz, int attenuation, float amplitude, Listener listener)
+    {
+        Presentation presentation;
+        long delayNanos;
+        synchronized(lock)
+        {
+            presentation = new Presentation(generation.incrementAndGet(), frequencyHz, attenuation, amplitude, listener);
+            delayNanos = tonePlayer.stopAndGetSilenceNanos() - System.nanoTime();
+        }
+        if(delayNanos > 0)
+            WorkerScheduler.get().scheduleTimed(presentation, delayNanos, TimeUnit.NANOSECONDS);
+        else
+            presentation.run();
+    }
+
+    /*
+     * Time allowed from the OUT transfer of the gain write completing to the DAC volume having
+     * settled. It has to cover the CP2615 forwarding the write over I2C, for which the measured
+     * round trip of a read request through the device is an upper bound, with GAIN_SETTLE_NANOS
+     * as the floor for the DAC itself and for a device without measurements yet.
+     */
+    long getSettleNanos()
+    {
+        return Math.max(GAIN_SETTLE_NANOS, gainWriter.getI2CRoundTripNanos());
+    }
+
+    /*
+     * Stops the current stimulus and drops one waiting for its gain write.
+     */
+    void cancel()
+    {
+        synchronized(lock)
+        {
+            generation.incrementAndGet();
+            tonePlayer.stop();
+        }
+    }
+
+    /*
+     * Sends the gain write once the previous tone is silent, then schedules the tone on its result.
+     */
+    private class Presentation implements Runnable, I2CCommandCallback
+    {
+        private final int id;
+        private final int frequencyHz;
+        private final int attenuation;
+        private final float amplitude;
+        private final Listener listener;
+        private long settleNanos;
+
+        Presentation(int id, int frequencyHz, int attenuation, float amplitude, Listener listener)
+        {
+            this.id = id;
+            this.frequencyHz = frequencyHz;
+            this.attenuation = attenuation;
+            this.amplitude = amplitude;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run()
+        {
+            if(generation.get() != id)
+            {
+                listener.onStimulusFailed(RESULT_SUPERSEDED);
+                return;
+            }
+            // Looked up here rather than on the device writer thread that completes the write
+            settleNanos = getSettleNanos();
+            if(!gainWriter.writeAttenuation(frequencyHz, attenuation, this))
+                listener.onStimulusFailed(gainWriter.hasDevice() ? RESULT_QUEUE_FULL : RESULT_CANCELLED);
+        }
+
+        @Override
+        public void onCommandComplete(int result)
+        {
+            long confirmedNanos = System.nanoTime();
+            if(result < 0)
+            {
+                listener.onStimulusFailed(result);
+                return;
+            }
+            boolean current;
+            long onsetNanos = 0;
+            synchronized(lock)
+            {
+                current = generation.get() == id;
+                if(current)
+                    onsetNanos = tonePlayer.playAt(frequencyHz, amplitude, confirmedNanos + settleNanos);
+            }
+            if(current)
+                listener.onStimulusScheduled(confirmedNanos, settleNanos, onsetNanos);
+            else
+                listener.onStimulusFailed(RESULT_SUPERSEDED);
+        }
+    }
+}
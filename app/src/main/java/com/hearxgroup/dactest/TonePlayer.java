@@ -0,0 +1,322 @@
+package com.hearxgroup.dactest;
+
+import android.content.Context;
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.util.Log;
+
+/*
+ * Plays pure tones synthesized by a ToneRenderer through a streaming AudioTrack, in place of
+ * decoding tone files from storage. The track runs for as long as the player is open, playing
+ * silence between tones, so that a tone starts within one output buffer of play() instead of
+ * after a file load.
+ *
+ * The track uses the device's native output rate and burst size and asks for the low latency
+ * path where the platform has one. Rendering happens on the WorkerScheduler audio thread.
+ *
+ * Output frames are mapped to System.nanoTime() through the track's presentation timestamp,
+ * refreshed by the audio thread, so that a tone can be scheduled to reach the output at a given
+ * time with the measured output latency taken into account. Until the platform reports a
+ * timestamp, the full track buffer is assumed to be queued ahead of the output.
+ */
+class TonePlayer
+{
+    private static final String TAG = TonePlayer.class.getSimpleName();
+
+    // Amplitudes of the low and high level tones, as a fraction of full scale
+    static final float AMPLITUDE_HIGH = 1.0f;
+    static final float AMPLITUDE_LOW = 0.1f; // -20 dB
+
+    // Default pulsed tone: 250 ms on, 250 ms off
+    static final double DEFAULT_PULSE_PERIOD_MS = 500;
+    static final double DEFAULT_PULSE_DUTY_CYCLE = 0.5;
+
+    private static final int DEFAULT_SAMPLE_RATE = 48000;
+    private static final int DEFAULT_FRAMES_PER_BUFFER = 256;
+    // Bursts the track buffer holds, enough to ride out scheduling jitter of the render thread
+    private static final int BUFFERED_BURSTS = 2;
+    // Refresh the presentation timestamp every this many bursts
+    private static final int TIMESTAMP_INTERVAL = 16;
+
+    private final int sampleRate;
+    private final int framesPerBuffer;
+    private int bufferFrames;
+    private final ToneRenderer renderer;
+    private RenderLoop renderLoop;
+
+    // Output frame anchorFrame reached the output at anchorNanos, guarded by anchorLock
+    private final Object anchorLock = new Object();
+    private long anchorFrame;
+    private long anchorNanos;
+
+    TonePlayer(Context context)
+    {
+        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+        sampleRate = parseProperty(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE), DEFAULT_SAMPLE_RATE);
+        framesPerBuffer = parseProperty(audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER), DEFAULT_FRAMES_PER_BUFFER);
+        renderer = new ToneRenderer(sampleRate);
+    }
+
+    ToneRenderer getRenderer()
+    {
+        return renderer;
+    }
+
+    int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /*
+     * Creates the track and starts rendering silence. Returns false if no track could be created.
+     */
+    synchronized boolean open()
+    {
+        if(renderLoop != null)
+            return true;
+        AudioTrack track = createTrack();
+        if(track == null)
+            return false;
+        track.play();
+        renderLoop = new RenderLoop(track);
+        WorkerScheduler.get().getAudioExecutor().execute(renderLoop);
+        return true;
+    }
+
+    /*
+     * Stops rendering; the track is released by the audio thread once its last write returns.
+     */
+    synchronized void close()
+    {
+        renderer.stop();
+        if(renderLoop != null)
+        {
+            renderLoop.running = false;
+            renderLoop = null;
+        }
+    }
+
+    /*
+     * Starts a tone, or changes the one playing without a gap.
+     */
+    void play(int frequencyHz, float amplitude)
+    {
+        renderer.setTone(frequencyHz, amplitude);
+        renderer.start();
+    }
+
+    void stop()
+    {
+        renderer.stop();
+    }
+
+    /*
+     * Pulses the tone with the given period and fraction of the period on, both rounded to whole
+     * frames at the output rate.
+     */
+    void setPulse(double periodMs, double dutyCycle)
+    {
+        int periodFrames = (int) Math.round(periodMs * sampleRate / 1000);
+        int onFrames = (int) Math.round(periodFrames * Math.max(0, Math.min(1, dutyCycle)));
+        renderer.setPulse(periodFrames, onFrames);
+    }
+
+    void setSteady()
+    {
+        renderer.setPulse(0, 0);
+    }
+
+    boolean isPlaying()
+    {
+        return renderer.isOn();
+    }
+
+    /*
+     * Schedules a tone to reach the output at onsetNanos (System.nanoTime() base), or as soon as
+     * possible if that is earlier than the frames already queued allow. Returns the time at which
+     * the tone is expected at the output.
+     */
+    long playAt(int frequencyHz, float amplitude, long onsetNanos)
+    {
+        renderer.setTone(frequencyHz, amplitude);
+        // One burst of margin, the audio thread may be rendering right now
+        long earliest = renderer.getFramesRendered() + framesPerBuffer;
+        long frame = Math.max(earliest, frameAt(onsetNanos));
+        renderer.startAt(frame);
+        return nanosAt(frame);
+    }
+
+    /*
+     * Ramps out the current tone and returns the time by which it will have died away at the
+     * output, or now if nothing is sounding.
+     */
+    long stopAndGetSilenceNanos()
+    {
+        boolean on = renderer.isOn();
+        renderer.stop();
+        long now = System.nanoTime();
+        long lastFrame = on ? renderer.getFramesRendered() + framesPerBuffer + renderer.getRampFrames()
+                : renderer.getLastSoundFrame();
+        if(lastFrame == ToneRenderer.NO_FRAME)
+            return now;
+        return Math.max(now, nanosAt(lastFrame + 1));
+    }
+
+    /*
+     * Time from rendering a frame to it reaching the output, as currently measured.
+     */
+    long getOutputLatencyNanos()
+    {
+        long now = System.nanoTime();
+        return Math.max(0, nanosAt(renderer.getFramesRendered()) - now);
+    }
+
+    /*
+     * Frame expected at the output at the given time.
+     */
+    long frameAt(long nanos)
+    {
+        synchronized(anchorLock)
+        {
+            return anchorFrame + (nanos - anchorNanos) * sampleRate / 1000000000L;
+        }
+    }
+
+    /*
+     * Time at which the given frame is expected at the output.
+     */
+    long nanosAt(long frame)
+    {
+        synchronized(anchorLock)
+        {
+            return anchorNanos + (frame - anchorFrame) * 1000000000L / sampleRate;
+        }
+    }
+
+    private void setAnchor(long frame, long nanos)
+    {
+        synchronized(anchorLock)
+        {
+            anchorFrame = frame;
+            anchorNanos = nanos;
+        }
+    }
+
+    private AudioTrack createTrack()
+    {
+        int minBufferBytes = AudioTrack.getMinBufferSize(sampleRate, AudioFormat.CHANNEL_OUT_MONO, AudioFormat.ENCODING_PCM_16BIT);
+        int bufferBytes = Math.max(minBufferBytes, BUFFERED_BURSTS * framesPerBuffer * 2);
+        AudioFormat format = new AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
+                .setSampleRate(sampleRate)
+                .setChannelMask(AudioFormat.CHANNEL_OUT_MONO)
+                .build();
+        AudioTrack track;
+        if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.O)
+        {
+            AudioAttributes attributes = new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .build();
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(attributes)
+                    .setAudioFormat(format)
+                    .setBufferSizeInBytes(bufferBytes)
+                    .setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY)
+                    .build();
+        }else
+        {
+            AudioAttributes attributes = new AudioAttributes.Builder()
+                    .setUsage(AudioAttributes.USAGE_MEDIA)
+                    .setContentType(AudioAttributes.CONTENT_TYPE_SONIFICATION)
+                    .setFlags(AudioAttributes.FLAG_LOW_LATENCY)
+                    .build();
+            track = new AudioTrack(attributes, format, bufferBytes, AudioTrack.MODE_STREAM, AudioManager.AUDIO_SESSION_ID_GENERATE);
+        }
+        if(track.getState() != AudioTrack.STATE_INITIALIZED)
+        {
+            Log.e(TAG, "AudioTrack could not be initialized");
+            track.release();
+            return null;
+        }
+        bufferFrames = bufferBytes / 2;
+        return track;
+    }
+
+    private static int parseProperty(String value, int fallback)
+    {
+        if(value == null)
+            return fallback;
+        try
+        {
+            return Integer.parseInt(value);
+        } catch(NumberFormatException e)
+        {
+            return fallback;
+        }
+    }
+
+    /*
+     * Renders one burst at a time and hands it to the blocking track write, which paces the loop.
+     */
+    private class RenderLoop implements Runnable
+    {
+        private final AudioTrack track;
+        private final short[] buffer = new short[framesPerBuffer];
+        private final AudioTimestamp timestamp = new AudioTimestamp();
+        private final int queuedFrames = bufferFrames;
+        // Renderer frame at which this track started; its frame positions count from there
+        private long baseFrame;
+        private boolean timestampValid;
+        private int burst;
+        volatile boolean running = true;
+
+        RenderLoop(AudioTrack track)
+        {
+            this.track = track;
+        }
+
+        @Override
+        public void run()
+        {
+            // The audio executor has a single thread, so the previous loop has rendered its last burst
+            baseFrame = renderer.getFramesRendered();
+            try
+            {
+                while(running)
+                {
+                    renderer.render(buffer, 0, buffer.length);
+                    int written = track.write(buffer, 0, buffer.length);
+                    if(written < 0)
+                    {
+                        Log.e(TAG, "AudioTrack write failed: " + written);
+                        break;
+                    }
+                    updateAnchor();
+                }
+            }finally
+            {
+                track.stop();
+                track.release();
+            }
+        }
+
+        private void updateAnchor()
+        {
+            if(burst++ % TIMESTAMP_INTERVAL == 0 && track.getTimestamp(timestamp))
+            {
+                timestampValid = true;
+                setAnchor(baseFrame + timestamp.framePosition, timestamp.nanoTime);
+            }else if(!timestampValid)
+            {
+                // The blocking write returns once the track has room, so about a full buffer is ahead of the output
+                setAnchor(renderer.getFramesRendered() - queuedFrames, System.nanoTime());
+            }
+        }
+    }
+}
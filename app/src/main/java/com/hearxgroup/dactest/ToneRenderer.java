@@ -0,0 +1,270 @@
+package com.hearxgroup.dactest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+ * Renders a pure tone into 16 bit mono PCM from a precomputed sine wavetable and a 32 bit phase
+ * accumulator, with linear interpolation between table entries. Onset and offset are shaped by a
+ * raised-cosine ramp so that starting or stopping a tone does not click.
+ *
+ * In pulse mode the tone is gated on and off inside the render loop with raised-cosine rise and
+ * fall. Period and on time are counted in frames from the tone onset, so pulse timing is exact to
+ * the sample and does not depend on when the render thread gets to run.
+ *
+ * Any thread may change the tone; the change is picked up at the start of the next render()
+ * call, with the phase and pulse position kept continuous. A start can also be scheduled for an
+ * exact output frame, counted from the first frame ever rendered. render() runs on the audio
+ * thread and allocates nothing.
+ */
+class ToneRenderer
+{
+    private static final int TABLE_BITS = 12;
+    private static final int TABLE_SIZE = 1 << TABLE_BITS;
+    private static final int FRACTION_BITS = 32 - TABLE_BITS;
+    private static final float FRACTION_SCALE = 1.0f / (1 << FRACTION_BITS);
+    // One extra entry so that interpolation never wraps
+    private static final float[] SINE = new float[TABLE_SIZE + 1];
+
+    static
+    {
+        for(int i=0; i<=TABLE_SIZE; i++)
+            SINE[i] = (float) Math.sin(2 * Math.PI * i / TABLE_SIZE);
+    }
+
+    static final int RAMP_MS = 5;
+    // Rise and fall of each pulse, shortened for pulses too short to hold two
+    static final int PULSE_RAMP_MS = 20;
+    static final long NO_FRAME = -1;
+
+    private final int sampleRate;
+    // Raised-cosine gain from 0 to 1 over the ramp, indexed by ramp position
+    private final float[] ramp;
+    private final float[] pulseRamp;
+
+    // Requested tone, written by any thread
+    private volatile int requestedIncrement;
+    private volatile float requestedAmplitude;
+    private volatile boolean requestedOn;
+    // Pulse period and on time in frames, packed so that both change together; 0 for a steady tone
+    private volatile long requestedPulse;
+    // Frame at which start() takes effect, or NO_FRAME
+    private final AtomicLong requestedStartFrame = new AtomicLong(NO_FRAME);
+
+    // Progress, written by the audio thread and read by any thread
+    private volatile long framesRendered;
+    private volatile long lastOnsetFrame = NO_FRAME;
+    // Last frame rendered while a tone was on or ramping out
+    private volatile long lastSoundFrame = NO_FRAME;
+
+    // Render state, audio thread only
+    private int phase;
+    private int increment;
+    private float amplitude;
+    private int rampPosition;
+    private int pulsePeriod;
+    private int pulseOn;
+    private int pulseRise;
+    private int pulsePosition;
+
+    ToneRenderer(int sampleRate)
+    {
+        this.sampleRate = sampleRate;
+        int rampFrames = Math.max(1, sampleRate * RAMP_MS / 1000);
+        ramp = raisedCosine(rampFrames);
+        pulseRamp = raisedCosine(Math.max(1, sampleRate * PULSE_RAMP_MS / 1000));
+    }
+
+    private static float[] raisedCosine(int frames)
+    {
+        float[] table = new float[frames + 1];
+        for(int i=0; i<=frames; i++)
+            table[i] = (float) (0.5 - 0.5 * Math.cos(Math.PI * i / frames));
+        return table;
+    }
+
+    int getSampleRate()
+    {
+        return sampleRate;
+    }
+
+    /*
+     * Frequency in Hz, below half the sample rate, and amplitude from 0 to 1 of full scale.
+     */
+    void setTone(double frequencyHz, float amplitude)
+    {
+        requestedIncrement = phaseIncrement(frequencyHz, sampleRate);
+        requestedAmplitude = Math.max(0f, Math.min(1f, amplitude));
+    }
+
+    /*
+     * Gates the tone on for onFrames out of every periodFrames, starting with the on part at the
+     * tone onset. A period of 0 plays a steady tone.
+     */
+    void setPulse(int periodFrames, int onFrames)
+    {
+        if(periodFrames < 0 || onFrames < 0 || onFrames > periodFrames)
+            throw new IllegalArgumentException("Invalid pulse " + onFrames + "/" + periodFrames);
+        requestedPulse = (long) periodFrames << 32 | onFrames;
+    }
+
+    /*
+     * Ramps the tone in, from phase 0 and the start of a pulse if it was silent.
+     */
+    void start()
+    {
+        requestedOn = true;
+    }
+
+    /*
+     * Starts the tone exactly at the given output frame. A frame already rendered starts it at the
+     * beginning of the next render() call; getLastOnsetFrame() tells which frame it was.
+     */
+    void startAt(long frame)
+    {
+        requestedStartFrame.set(frame);
+    }
+
+    /*
+     * Ramps the tone out and drops a scheduled start.
+     */
+    void stop()
+    {
+        requestedStartFrame.set(NO_FRAME);
+        requestedOn = false;
+    }
+
+    boolean isOn()
+    {
+        return requestedOn;
+    }
+
+    /*
+     * Frames rendered so far, i.e. the frame number the next render() call starts at.
+     */
+    long getFramesRendered()
+    {
+        return framesRendered;
+    }
+
+    /*
+     * Frame at which the last tone started from silence, or NO_FRAME.
+     */
+    long getLastOnsetFrame()
+    {
+        return lastOnsetFrame;
+    }
+
+    /*
+     * Last frame rendered while a tone was on or ramping out, or NO_FRAME.
+     */
+    long getLastSoundFrame()
+    {
+        return lastSoundFrame;
+    }
+
+    int getRampFrames()
+    {
+        return ramp.length - 1;
+    }
+
+    /*
+     * Fills buffer[offset, offset + frames) with the next frames of output.
+     */
+    void render(short[] buffer, int offset, int frames)
+    {
+        long first = framesRendered;
+        long startFrame = requestedStartFrame.get();
+        if(startFrame != NO_FRAME && startFrame < first + frames && requestedStartFrame.compareAndSet(startFrame, NO_FRAME))
+        {
+            int split = (int) Math.max(0, startFrame - first);
+            renderSpan(buffer, offset, split, first);
+            requestedOn = true;
+            renderSpan(buffer, offset + split, frames - split, first + split);
+        }else
+        {
+            renderSpan(buffer, offset, frames, first);
+        }
+        framesRendered = first + frames;
+    }
+
+    private void renderSpan(short[] buffer, int offset, int frames, long firstFrame)
+    {
+        if(frames == 0)
+            return;
+        boolean on = requestedOn;
+        if(rampPosition == 0)
+        {
+            if(!on)
+            {
+                for(int i=0; i<frames; i++)
+                    buffer[offset + i] = 0;
+                return;
+            }
+            phase = 0;
+            pulsePosition = 0;
+            lastOnsetFrame = firstFrame;
+        }
+        increment = requestedIncrement;
+        amplitude = requestedAmplitude;
+        long pulse = requestedPulse;
+        pulsePeriod = (int) (pulse >>> 32);
+        pulseOn = (int) pulse;
+        pulseRise = Math.min(pulseRamp.length - 1, pulseOn / 2);
+        if(pulsePeriod > 0 && pulsePosition >= pulsePeriod)
+            pulsePosition %= pulsePeriod;
+
+        int rampEnd = ramp.length - 1;
+        float scale = amplitude * Short.MAX_VALUE;
+        for(int i=0; i<frames; i++)
+        {
+            if(on)
+            {
+                if(rampPosition < rampEnd)
+                    rampPosition++;
+            }else if(rampPosition > 0)
+            {
+                rampPosition--;
+            }
+            float gain = ramp[rampPosition];
+            if(pulsePeriod > 0)
+            {
+                gain *= pulseGate(pulsePosition);
+                if(++pulsePosition == pulsePeriod)
+                    pulsePosition = 0;
+            }
+            buffer[offset + i] = (short) (sample(phase) * scale * gain);
+            phase += increment;
+        }
+        lastSoundFrame = firstFrame + frames - 1;
+    }
+
+    /*
+     * Pulse envelope at a frame of the period: raised-cosine rise, hold, raised-cosine fall, off.
+     */
+    private float pulseGate(int position)
+    {
+        if(position >= pulseOn)
+            return 0f;
+        if(position >= pulseRise && position < pulseOn - pulseRise)
+            return 1f;
+        int rampEnd = pulseRamp.length - 1;
+        int edge = position < pulseRise ? position : pulseOn - position;
+        return pulseRamp[edge * rampEnd / pulseRise];
+    }
+
+    static int phaseIncrement(double frequencyHz, int sampleRate)
+    {
+        return (int) Math.round(frequencyHz * 4294967296.0 / sampleRate);
+    }
+
+    /*
+     * Sine of a phase where 2^32 is a full turn.
+     */
+    static float sample(int phase)
+    {
+        int index = phase >>> FRACTION_BITS;
+        float fraction = (phase & ((1 << FRACTION_BITS) - 1)) * FRACTION_SCALE;
+        float a = SINE[index];
+        return a + (SINE[index + 1] - a) * fraction;
+    }
+}
@@ -0,0 +1,122 @@
+package com.hearxgroup.dactest;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Preallocated ring of fixed-size binary trace records for the command path, in place of Log
+ * calls that built a string on every write whether or not anyone read logcat. The last capacity
+ * records are kept and only formatted when dump() is called.
+ *
+ * Each record is three longs: the sequence that published it, System.nanoTime(), and the event,
+ * slave, register and value packed into one. Any thread may record: a writer claims a position with
+ * one atomic increment, marks the slot busy, fills it and publishes it by writing the sequence
+ * last. The dump reads the sequence before and after each record and leaves out records that were
+ * busy or overwritten while it read them. Recording never blocks or allocates.
+ */
+class TraceRing
+{
+    // Command requested by the app: register reg10, value reg1
+    static final int EVENT_VOLUME = 1;
+    // LED colour requested: value colour
+    static final int EVENT_LED = 2;
+    // I2C read requested: register the first byte written, value read length
+    static final int EVENT_READ = 3;
+    // Command sent by the writer: value the bulk transfer result
+    static final int EVENT_SENT = 4;
+    // Command answered from the register shadow without a transfer
+    static final int EVENT_CACHED = 5;
+    // Zero flush packet sent: value the bulk transfer result
+    static final int EVENT_BLANK = 6;
+    // I2C transfer result received: register the tag, value the status
+    static final int EVENT_RESULT = 7;
+    // Raw bytes written to the serial port: value the length
+    static final int EVENT_RAW_WRITE = 8;
+    // Failed transfer about to be retried: value the failed result
+    static final int EVENT_RETRY = 9;
+    // Command completed without being sent: value RESULT_SUPERSEDED or RESULT_CANCELLED
+    static final int EVENT_DROPPED = 10;
+
+    private static final String[] EVENT_NAMES = {"?", "volume", "led", "read", "sent", "cached", "blank", "result", "raw", "retry", "dropped"};
+
+    static final int DEFAULT_CAPACITY = 1024;
+    private static final int RECORD_LONGS = 3;
+
+    private final AtomicLongArray records;
+    private final int mask;
+    private final AtomicLong nextPosition = new AtomicLong();
+
+    TraceRing()
+    {
+        this(DEFAULT_CAPACITY);
+    }
+
+    TraceRing(int capacity)
+    {
+        if(Integer.bitCount(capacity) != 1)
+            throw new IllegalArgumentException("capacity must be a power of two: " + capacity);
+        records = new AtomicLongArray(capacity * RECORD_LONGS);
+        mask = capacity - 1;
+    }
+
+    int getCapacity()
+    {
+        return mask + 1;
+    }
+
+    /*
+     * Appends a record. Slave and register are kept to 8 bits, the value to 32.
+     */
+    void record(int event, int slave, int register, int value)
+    {
+        long position = nextPosition.getAndIncrement();
+        int base = ((int) position & mask) * RECORD_LONGS;
+        records.set(base, 0);
+        records.set(base + 1, System.nanoTime());
+        records.set(base + 2, ((long) (event & 0xFF) << 48) | ((long) (slave & 0xFF) << 40)
+                | ((long) (register & 0xFF) << 32) | (value & 0xFFFFFFFFL));
+        records.lazySet(base, position + 1);
+    }
+
+    /*
+     * Number of records ever written, including those already overwritten.
+     */
+    long getRecordCount()
+    {
+        return nextPosition.get();
+    }
+
+    /*
+     * The records still in the ring, oldest first, one per line, with times in microseconds
+     * relative to the oldest record. Meant for bug reports and the debug UI, not the hot path.
+     */
+    String dump()
+    {
+        long end = nextPosition.get();
+        long start = Math.max(0, end - getCapacity());
+        StringBuilder builder = new StringBuilder();
+        long firstNanos = 0;
+        boolean first = true;
+        for(long position = start; position < end; position++)
+        {
+            int base = ((int) position & mask) * RECORD_LONGS;
+            long sequence = records.get(base);
+            long nanos = records.get(base + 1);
+            long packed = records.get(base + 2);
+            if(sequence != position + 1 || records.get(base) != sequence)
+                continue;
+            if(first)
+            {
+                firstNanos = nanos;
+                first = false;
+            }
+            int event = (int) (packed >>> 48) & 0xFF;
+            builder.append(String.format(Locale.US, "%10d %-7s slave=0x%02X reg=0x%02X value=%d\n",
+                    (nanos - firstNanos) / 1000,
+                    event < EVENT_NAMES.length ? EVENT_NAMES[event] : EVENT_NAMES[0],
+                    (int) (packed >>> 40) & 0xFF, (int) (packed >>> 32) & 0xFF, (int) packed));
+        }
+        return builder.toString();
+    }
+}
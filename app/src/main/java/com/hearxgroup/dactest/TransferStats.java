@@ -0,0 +1,179 @@
+package com.hearxgroup.dactest;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/*
+ * Latency histograms for every transfer of one device, by command type and stage, plus counts
+ * of short writes and negative results per command type. Memory is fixed when the device opens.
+ *
+ * The stages separate where time goes:
+ *  STAGE_QUEUE  submit to the writer picking the command up (app side)
+ *  STAGE_OUT    the bulk OUT transfer itself (bus)
+ *  STAGE_IN     start of the OUT transfer of a read request to its result arriving on the IN
+ *               endpoint (bus and device)
+ *
+ * Alongside the totals since open, every sample also goes into a decaying histogram whose old
+ * samples lose weight each time it is decayed; TransferTimeoutPolicy derives timeouts from those,
+ * so that one slow period does not keep them high.
+ */
+public class TransferStats
+{
+    public static final int TYPE_VOLUME = 0;
+    public static final int TYPE_LED = 1;
+    public static final int TYPE_READ = 2;
+    public static final int TYPE_BATCH = 3;
+    public static final int TYPE_OTHER = 4;
+    // Zero flush packets sent after some commands
+    public static final int TYPE_BLANK = 5;
+    static final int TYPE_COUNT = 6;
+
+    public static final int STAGE_QUEUE = 0;
+    public static final int STAGE_OUT = 1;
+    public static final int STAGE_IN = 2;
+    static final int STAGE_COUNT = 3;
+
+    private static final String[] TYPE_NAMES = {"volume", "led", "read", "batch", "other", "blank"};
+    private static final String[] STAGE_NAMES = {"queue", "out", "in"};
+
+    private final LatencyHistogram[] histograms = new LatencyHistogram[TYPE_COUNT * STAGE_COUNT];
+    private final LatencyHistogram[] recentHistograms = new LatencyHistogram[TYPE_COUNT * STAGE_COUNT];
+    private final AtomicLongArray shortWrites = new AtomicLongArray(TYPE_COUNT);
+    private final AtomicLongArray negativeResults = new AtomicLongArray(TYPE_COUNT);
+
+    TransferStats()
+    {
+        for(int i=0; i<histograms.length; i++)
+        {
+            histograms[i] = new LatencyHistogram();
+            recentHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    /*
+     * Command type of an encoded frame: several messages make a batch, otherwise the tag and
+     * slave of its single message decide.
+     */
+    static int commandType(byte[] frame, int length)
+    {
+        if(length < CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH)
+            return TYPE_OTHER;
+        if(CP2615PacketEncoder.messageLength(frame, 0) < length)
+            return TYPE_BATCH;
+        if((frame[6] & 0xFF) != CP2615PacketEncoder.DEFAULT_TAG)
+            return TYPE_READ;
+        int slave = frame[7] & 0xFF;
+        if(slave == CP2615Commands.DAC_SLAVE)
+            return TYPE_VOLUME;
+        if(slave == CP2615Commands.LED_SLAVE)
+            return TYPE_LED;
+        return TYPE_OTHER;
+    }
+
+    void record(int type, int stage, long nanos)
+    {
+        histograms[type * STAGE_COUNT + stage].record(nanos);
+        recentHistograms[type * STAGE_COUNT + stage].record(nanos);
+    }
+
+    /*
+     * Records an OUT transfer of expectedLength bytes that returned result. Only transfers that
+     * went through are timed: a failure usually lasts as long as its timeout, and counting it
+     * would feed the timeout back into the latency the timeouts are derived from.
+     */
+    void recordTransfer(int type, long nanos, int result, int expectedLength)
+    {
+        if(result < 0)
+        {
+            negativeResults.incrementAndGet(type);
+            return;
+        }
+        record(type, STAGE_OUT, nanos);
+        if(result < expectedLength)
+            shortWrites.incrementAndGet(type);
+    }
+
+    public long getCount(int type, int stage)
+    {
+        return histograms[type * STAGE_COUNT + stage].getCount();
+    }
+
+    public long getP50Nanos(int type, int stage)
+    {
+        return histograms[type * STAGE_COUNT + stage].getPercentileNanos(50);
+    }
+
+    public long getP99Nanos(int type, int stage)
+    {
+        return histograms[type * STAGE_COUNT + stage].getPercentileNanos(99);
+    }
+
+    /*
+     * p99 of the decaying histogram, weighted towards the samples since the last decays.
+     */
+    long getRecentP99Nanos(int type, int stage)
+    {
+        return recentHistograms[type * STAGE_COUNT + stage].getPercentileNanos(99);
+    }
+
+    /*
+     * Halves the weight of every sample in the decaying histogram.
+     */
+    void decayRecent(int type, int stage)
+    {
+        recentHistograms[type * STAGE_COUNT + stage].decay();
+    }
+
+    public long getMaxNanos(int type, int stage)
+    {
+        return histograms[type * STAGE_COUNT + stage].getMaxNanos();
+    }
+
+    public long getShortWriteCount(int type)
+    {
+        return shortWrites.get(type);
+    }
+
+    public long getNegativeResultCount(int type)
+    {
+        return negativeResults.get(type);
+    }
+
+    public void reset()
+    {
+        for(LatencyHistogram histogram : histograms)
+            histogram.reset();
+        for(LatencyHistogram histogram : recentHistograms)
+            histogram.reset();
+        for(int type=0; type<TYPE_COUNT; type++)
+        {
+            shortWrites.set(type, 0);
+            negativeResults.set(type, 0);
+        }
+    }
+
+    /*
+     * One line per command type and stage that saw traffic, latencies in microseconds.
+     */
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for(int type=0; type<TYPE_COUNT; type++)
+        {
+            for(int stage=0; stage<STAGE_COUNT; stage++)
+            {
+                long count = getCount(type, stage);
+                if(count == 0)
+                    continue;
+                builder.append(String.format(Locale.US, "%-6s %-5s n=%d p50=%dus p99=%dus max=%dus",
+                        TYPE_NAMES[type], STAGE_NAMES[stage], count,
+                        getP50Nanos(type, stage) / 1000, getP99Nanos(type, stage) / 1000, getMaxNanos(type, stage) / 1000));
+                if(stage == STAGE_OUT)
+                    builder.append(" short=").append(getShortWriteCount(type)).append(" failed=").append(getNegativeResultCount(type));
+                builder.append('\n');
+            }
+        }
+        return builder.toString();
+    }
+}
@@ -0,0 +1,91 @@
+package com.hearxgroup.dactest;
+
+/*
+ * Timeouts and retries of the bulk OUT transfers of one device. A timeout is a multiple of the
+ * recent p99 latency of successful transfers of the same command type, clamped between a floor and the
+ * fixed timeout used before any latency is known, so that a dropped packet on a flaky hub costs
+ * a few milliseconds rather than a second and a half. Failed transfers are retried a limited
+ * number of times with exponential backoff. The results of I2C reads get a deadline derived the
+ * same way from their round trip latency.
+ *
+ * Used by the writer thread only; the timeouts are recomputed every RECOMPUTE_INTERVAL samples.
+ * The p99 comes from the decaying histograms of TransferStats, halved every DECAY_INTERVAL
+ * samples, so a slow period stops counting after a few thousand transfers instead of pinning the
+ * timeouts high for as long as the device stays open.
+ */
+class TransferTimeoutPolicy
+{
+    static final int MIN_TIMEOUT_MS = 50;
+    static final int MAX_TIMEOUT_MS = CP2615Link.I2C_WRITE_TIMEOUT;
+    static final int P99_MULTIPLIER = 8;
+    // Successful transfers seen before the p99 is trusted
+    static final int MIN_SAMPLES = 32;
+    private static final int RECOMPUTE_INTERVAL = 32;
+    static final int DECAY_INTERVAL = 256;
+
+    static final int MAX_ATTEMPTS = 3;
+    static final long FIRST_BACKOFF_NANOS = 2000000L; // 2ms, doubled for every further attempt
+
+    private final TransferStats stats;
+    // By stage and command type
+    private final int[] timeoutMs = new int[TransferStats.STAGE_COUNT * TransferStats.TYPE_COUNT];
+    private final long[] computedAtCount = new long[TransferStats.STAGE_COUNT * TransferStats.TYPE_COUNT];
+    private final long[] decayedAtCount = new long[TransferStats.STAGE_COUNT * TransferStats.TYPE_COUNT];
+
+    TransferTimeoutPolicy(TransferStats stats)
+    {
+        this.stats = stats;
+        for(int i=0; i<timeoutMs.length; i++)
+        {
+            timeoutMs[i] = MAX_TIMEOUT_MS;
+            computedAtCount[i] = -RECOMPUTE_INTERVAL;
+        }
+    }
+
+    /*
+     * Timeout of one bulk OUT transfer of the given command type.
+     */
+    int getTimeoutMs(int type)
+    {
+        return timeout(type, TransferStats.STAGE_OUT);
+    }
+
+    /*
+     * Time allowed from writing an I2C read request to its result arriving.
+     */
+    int getResponseTimeoutMs()
+    {
+        return timeout(TransferStats.TYPE_READ, TransferStats.STAGE_IN);
+    }
+
+    private int timeout(int type, int stage)
+    {
+        int index = stage * TransferStats.TYPE_COUNT + type;
+        long count = stats.getCount(type, stage);
+        if(count - computedAtCount[index] >= RECOMPUTE_INTERVAL)
+        {
+            computedAtCount[index] = count;
+            if(count - decayedAtCount[index] >= DECAY_INTERVAL)
+            {
+                decayedAtCount[index] = count;
+                stats.decayRecent(type, stage);
+            }
+            timeoutMs[index] = count < MIN_SAMPLES ? MAX_TIMEOUT_MS : timeoutFor(stats.getRecentP99Nanos(type, stage));
+        }
+        return timeoutMs[index];
+    }
+
+    static int timeoutFor(long p99Nanos)
+    {
+        long ms = (p99Nanos * P99_MULTIPLIER + 999999L) / 1000000L;
+        return (int) Math.max(MIN_TIMEOUT_MS, Math.min(MAX_TIMEOUT_MS, ms));
+    }
+
+    /*
+     * Pause before the given retry, 1 for the first one.
+     */
+    static long backoffNanos(int retry)
+    {
+        return FIRST_BACKOFF_NANOS << (retry - 1);
+    }
+}
@@ -10,68 +10,65 @@ import android.hardware.usb.UsbDevice;
 import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
 import android.util.Log;
 
 import com.felhr.usbserial.UsbSerialInterface;
 
-import java.io.UnsupportedEncodingException;
-import java.util.Arrays;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 public class UsbService extends Service {
 
     public static final String TAG = "UsbService";
 
-    public static final String ACTION_USB_READY = "com.felhr.connectivityservices.USB_READY";
+    // Connection state and serial line changes are published on DeviceEventBus.get()
     public static final String ACTION_USB_ATTACHED = "android.hardware.usb.action.USB_DEVICE_ATTACHED";
     public static final String ACTION_USB_DETACHED = "android.hardware.usb.action.USB_DEVICE_DETACHED";
-    public static final String ACTION_USB_NOT_SUPPORTED = "com.felhr.usbservice.USB_NOT_SUPPORTED";
-    public static final String ACTION_NO_USB = "com.felhr.usbservice.NO_USB";
-    public static final String ACTION_USB_PERMISSION_GRANTED = "com.felhr.usbservice.USB_PERMISSION_GRANTED";
-    public static final String ACTION_USB_PERMISSION_NOT_GRANTED = "com.felhr.usbservice.USB_PERMISSION_NOT_GRANTED";
-    public static final String ACTION_USB_DISCONNECTED = "com.felhr.usbservice.USB_DISCONNECTED";
-    public static final String ACTION_CDC_DRIVER_NOT_WORKING = "com.felhr.connectivityservices.ACTION_CDC_DRIVER_NOT_WORKING";
-    public static final String ACTION_USB_DEVICE_NOT_WORKING = "com.felhr.connectivityservices.ACTION_USB_DEVICE_NOT_WORKING";
-    public static final int MESSAGE_FROM_SERIAL_PORT = 0;
-    public static final int CTS_CHANGE = 1;
-    public static final int DSR_CHANGE = 2;
+    // Bind with this action to get the IDacCommandService binder for out-of-process clients
+    public static final String ACTION_BIND_COMMAND_SERVICE = "com.hearxgroup.dactest.BIND_COMMAND_SERVICE";
     private static final String ACTION_USB_PERMISSION = "com.android.example.USB_PERMISSION";
     private static final int BAUD_RATE = 9600; // BaudRate. Change this value if you need
     public static boolean SERVICE_CONNECTED = false;
 
-    int[] commandMinus5dB = new int[]{42 ,42 ,0 ,13 ,212 ,0 ,1 ,16 ,0 ,3 ,1 ,3 ,23 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0};
-
     private IBinder binder = new UsbBinder();
+    private final CommandRingServer commandRingServer = new CommandRingServer(this);
 
     private Context context;
-    private Handler mHandler;
     private UsbManager usbManager;
-    private UsbDevice device;
-    private UsbDeviceConnection connection;
-    private CP2615SerialDevice serialPort;
-
-    private boolean serialPortConnected;
     /*
-     *  Data received from serial port will be received here. Just populate onReceivedData with your code
-     *  In this particular example. byte stream is converted to String and send to UI thread to
-     *  be treated there.
+     * One session per open board, keyed by device name. Sessions have their own command queue and
+     * I/O workers, so boards are driven in parallel. Calls without a device key go to the default
+     * device, the first board opened that is still attached.
      */
-    private UsbSerialInterface.UsbReadCallback mCallback = new UsbSerialInterface.UsbReadCallback() {
+    private final Map<String, DeviceSession> sessions = new ConcurrentHashMap<>();
+    // Boards being opened on the connection thread, by device name. A detach removes the entry,
+    // so a board that goes away while opening is never published.
+    private final Map<String, ConnectionTask> openingDevices = new ConcurrentHashMap<>();
+    // Guards publishing and removing sessions against each other
+    private final Object sessionLock = new Object();
+    private volatile String defaultDeviceName;
+    private volatile boolean volumeCoalescing = true;
+    // Android shows one permission dialog at a time, so requests are queued. Main thread only.
+    private final ArrayDeque<UsbDevice> permissionQueue = new ArrayDeque<>();
+    private UsbDevice permissionDevice;
+    // System.nanoTime() of the attach broadcast, by device name, until the device is ready
+    private final Map<String, Long> attachTimes = new ConcurrentHashMap<>();
+    private final GainRampScheduler gainRamp = new GainRampScheduler(new GainRampScheduler.LevelWriter() {
         @Override
-        public void onReceivedData(byte[] arg0) {
-            try {
-                Log.d(TAG, "onReceivedData");
-                String data = new String(arg0, "UTF-8");
-                if (mHandler != null)
-                    mHandler.obtainMessage(MESSAGE_FROM_SERIAL_PORT, data).sendToTarget();
-            } catch (UnsupportedEncodingException e) {
-                e.printStackTrace();
-            }
+        public void writeLevel(int attenuation) {
+            writeAttenuation(attenuation);
         }
-    };
+    });
+
+    private final DeviceEventBus eventBus = DeviceEventBus.get();
+    // Inbound frames of every device reach the frame subscribers through here, batched per display frame
+    private final InboundFrameDispatcher frameDispatcher = new InboundFrameDispatcher(eventBus);
 
     /*
      * State changes in the CTS line will be received here
@@ -79,8 +76,7 @@ public class UsbService extends Service {
     private UsbSerialInterface.UsbCTSCallback ctsCallback = new UsbSerialInterface.UsbCTSCallback() {
         @Override
         public void onCTSChanged(boolean state) {
-            if(mHandler != null)
-                mHandler.obtainMessage(CTS_CHANGE).sendToTarget();
+            eventBus.post(DeviceEvent.line(DeviceEvent.CTS_CHANGED, defaultDeviceName, state));
         }
     };
 
@@ -90,8 +86,7 @@ public class UsbService extends Service {
     private UsbSerialInterface.UsbDSRCallback dsrCallback = new UsbSerialInterface.UsbDSRCallback() {
         @Override
         public void onDSRChanged(boolean state) {
-            if(mHandler != null)
-                mHandler.obtainMessage(DSR_CHANGE).sendToTarget();
+            eventBus.post(DeviceEvent.line(DeviceEvent.DSR_CHANGED, defaultDeviceName, state));
         }
     };
     /*
@@ -102,32 +97,45 @@ public class UsbService extends Service {
         @Override
         public void onReceive(Context arg0, Intent arg1) {
             if (arg1.getAction().equals(ACTION_USB_PERMISSION)) {
+                UsbDevice usbDevice = arg1.getParcelableExtra(UsbManager.EXTRA_DEVICE);
                 boolean granted = arg1.getExtras().getBoolean(UsbManager.EXTRA_PERMISSION_GRANTED);
-                if (granted) // User accepted our USB connection. Try to open the device as a serial port
+                permissionDevice = null;
+                if (granted && usbDevice != null) // User accepted our USB connection. Try to open the device as a serial port
                 {
                     Log.d(TAG, "ACTION_USB_PERMISSION granted");
-                    Intent intent = new Intent(ACTION_USB_PERMISSION_GRANTED);
-                    arg0.sendBroadcast(intent);
-                    connection = usbManager.openDevice(device);
-                    new ConnectionThread().start();
-                } else // User not accepted our USB connection. Send an Intent to the Main Activity
+                    eventBus.post(DeviceEvent.of(DeviceEvent.PERMISSION_GRANTED, usbDevice.getDeviceName()));
+                    openDevice(usbDevice);
+                } else // User not accepted our USB connection. Tell the subscribers
                 {
-                    Intent intent = new Intent(ACTION_USB_PERMISSION_NOT_GRANTED);
-                    arg0.sendBroadcast(intent);
+                    eventBus.post(DeviceEvent.of(DeviceEvent.PERMISSION_NOT_GRANTED, usbDevice != null ? usbDevice.getDeviceName() : null));
                 }
+                requestNextPermission();
             } else if (arg1.getAction().equals(ACTION_USB_ATTACHED)) {
-                Log.d(TAG, "ACTION_USB_ATTACHED");
-                if (!serialPortConnected)
-                    findSerialPortDevice(); // A USB device has been attached. Try to open it as a Serial port
+                long attachTime = System.nanoTime();
+                UsbDevice usbDevice = arg1.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (usbDevice == null) {
+                    findSerialPortDevice();
+                    return;
+                }
+                // Short path: only the device named by the broadcast is looked at, no enumeration
+                if (usbDevice.getInterfaceCount() <= DeviceSession.IOP_INTERFACE || isOpenOrOpening(usbDevice.getDeviceName()))
+                    return;
+                attachTimes.put(usbDevice.getDeviceName(), attachTime);
+                if (usbManager.hasPermission(usbDevice))
+                    openDevice(usbDevice);
+                else
+                    requestUserPermission(usbDevice);
             } else if (arg1.getAction().equals(ACTION_USB_DETACHED)) {
                 Log.d(TAG, "ACTION_USB_DETACHED");
-                // Usb device was disconnected. send an intent to the Main Activity
-                Intent intent = new Intent(ACTION_USB_DISCONNECTED);
-                arg0.sendBroadcast(intent);
-                if (serialPortConnected) {
-                    serialPort.close();
+                UsbDevice usbDevice = arg1.getParcelableExtra(UsbManager.EXTRA_DEVICE);
+                if (usbDevice == null)
+                    return;
+                attachTimes.remove(usbDevice.getDeviceName());
+                DeviceSession session = closeSession(usbDevice.getDeviceName());
+                if (session != null) {
+                    // Usb device was disconnected. Tell the subscribers
+                    eventBus.post(DeviceEvent.of(DeviceEvent.USB_DISCONNECTED, session.getName()));
                 }
-                serialPortConnected = false;
             }
         }
     };
@@ -139,7 +147,6 @@ public class UsbService extends Service {
     @Override
     public void onCreate() {
         this.context = this;
-        serialPortConnected = false;
         UsbService.SERVICE_CONNECTED = true;
         setFilter();
         usbManager = (UsbManager) getSystemService(Context.USB_SERVICE);
@@ -152,6 +159,8 @@ public class UsbService extends Service {
      */
     @Override
     public IBinder onBind(Intent intent) {
+        if (ACTION_BIND_COMMAND_SERVICE.equals(intent.getAction()))
+            return commandRingServer;
         return binder;
     }
 
@@ -163,7 +172,12 @@ public class UsbService extends Service {
     @Override
     public void onDestroy() {
         super.onDestroy();
-        serialPort.close();
+        gainRamp.shutdown();
+        commandRingServer.closeAll();
+        // Boards still opening are closed by their task instead of being published
+        openingDevices.clear();
+        for (String name : new ArrayList<>(sessions.keySet()))
+            closeSession(name);
         unregisterReceiver(usbReceiver);
         UsbService.SERVICE_CONNECTED = false;
     }
@@ -172,18 +186,57 @@ public class UsbService extends Service {
      * This function will be called from MainActivity to write data through Serial Port
      */
     public void write(byte[] data) {
-        Log.d(TAG, "write"+data.toString());
-        if (serialPort != null)
-            serialPort.write(data);
+        DeviceSession session = getDefaultSession();
+        if (session != null) {
+            session.getTrace().record(TraceRing.EVENT_RAW_WRITE, 0, 0, data.length);
+            session.getSerialPort().write(data);
+        }
+    }
+
+    /*
+     * Names of all open devices. Each name, or the device serial number, can be passed to
+     * getDevice() to address commands to that board.
+     */
+    public List<String> getDeviceNames() {
+        return new ArrayList<>(sessions.keySet());
     }
 
-    public void setHandler(Handler mHandler) {
-        this.mHandler = mHandler;
+    /*
+     * The open device with the given device name or serial number, or null.
+     */
+    public DeviceSession getDevice(String key) {
+        if (key == null)
+            return null;
+        DeviceSession session = sessions.get(key);
+        if (session != null)
+            return session;
+        for (DeviceSession candidate : sessions.values()) {
+            if (key.equals(candidate.getSerial()))
+                return candidate;
+        }
+        return null;
+    }
+
+    /*
+     * Selects the device addressed by the calls that take no device key. Returns false if no open
+     * device matches.
+     */
+    public boolean setDefaultDevice(String key) {
+        DeviceSession session = getDevice(key);
+        if (session == null)
+            return false;
+        defaultDeviceName = session.getName();
+        return true;
+    }
+
+    public DeviceSession getDefaultSession() {
+        String name = defaultDeviceName;
+        return name != null ? sessions.get(name) : null;
     }
 
     private void findSerialPortDevice() {
         Log.d(TAG, "findSerialPortDevice");
-        // This snippet will try to open the first encountered usb device connected, excluding usb root hubs
+        // Open every attached board, excluding usb root hubs and anything without the CP2615 IOP interface
         HashMap<String, UsbDevice> usbDevices = usbManager.getDeviceList();
         if (!usbDevices.isEmpty()) {
 
@@ -191,39 +244,35 @@ public class UsbService extends Service {
 
             // first, dump the hashmap for diagnostic purposes
             for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
-                device = entry.getValue();
+                UsbDevice usbDevice = entry.getValue();
                 Log.d(TAG, String.format("USBDevice.HashMap (vid:pid) (%X:%X)-%b class:%X:%X name:%s",
-                        device.getVendorId(), device.getProductId(),
+                        usbDevice.getVendorId(), usbDevice.getProductId(),
                         true,//UsbSerialDevice.isSupported(device),
-                        device.getDeviceClass(), device.getDeviceSubclass(),
-                        device.getDeviceName()));
+                        usbDevice.getDeviceClass(), usbDevice.getDeviceSubclass(),
+                        usbDevice.getDeviceName()));
             }
 
+            boolean found = false;
             for (Map.Entry<String, UsbDevice> entry : usbDevices.entrySet()) {
-                device = entry.getValue();
-                int deviceVID = device.getVendorId();
-                int devicePID = device.getProductId();
-
-//                if (deviceVID != 0x1d6b && (devicePID != 0x0001 && devicePID != 0x0002 && devicePID != 0x0003) && deviceVID != 0x5c6 && devicePID != 0x904c) {
-                //if (UsbSerialDevice.isSupported(device)) {
-                    // There is a supported device connected - request permission to access it.
-                    requestUserPermission();
-                    break;
-                /*} else {
-                    connection = null;
-                    device = null;
-                }*/
+                UsbDevice usbDevice = entry.getValue();
+                if (usbDevice.getInterfaceCount() <= DeviceSession.IOP_INTERFACE)
+                    continue;
+                found = true;
+                if (isOpenOrOpening(usbDevice.getDeviceName()))
+                    continue;
+                if (usbManager.hasPermission(usbDevice))
+                    openDevice(usbDevice);
+                else
+                    requestUserPermission(usbDevice);
             }
-            if (device==null) {
-                // There are no USB devices connected (but usb host were listed). Send an intent to MainActivity.
-                Intent intent = new Intent(ACTION_NO_USB);
-                sendBroadcast(intent);
+            if (!found && sessions.isEmpty()) {
+                // There are no USB devices connected (but usb host were listed). Tell the subscribers
+                eventBus.post(DeviceEvent.of(DeviceEvent.NO_USB, null));
             }
         } else {
             Log.d(TAG, "findSerialPortDevice() usbManager returned empty device list." );
-            // There is no USB devices connected. Send an intent to MainActivity
-            Intent intent = new Intent(ACTION_NO_USB);
-            sendBroadcast(intent);
+            // There is no USB devices connected. Tell the subscribers
+            eventBus.post(DeviceEvent.of(DeviceEvent.NO_USB, null));
         }
     }
 
@@ -238,169 +287,340 @@ public class UsbService extends Service {
     /*
      * Request user permission. The response will be received in the BroadcastReceiver
      */
-    private void requestUserPermission() {
-        Log.d(TAG, String.format("requestUserPermission(%X:%X)", device.getVendorId(), device.getProductId() ) );
+    private void requestUserPermission(UsbDevice usbDevice) {
+        String name = usbDevice.getDeviceName();
+        if (permissionDevice != null && permissionDevice.getDeviceName().equals(name))
+            return;
+        for (UsbDevice queued : permissionQueue) {
+            if (queued.getDeviceName().equals(name))
+                return;
+        }
+        permissionQueue.add(usbDevice);
+        if (permissionDevice == null)
+            requestNextPermission();
+    }
+
+    private void requestNextPermission() {
+        permissionDevice = permissionQueue.poll();
+        if (permissionDevice == null)
+            return;
+        Log.d(TAG, String.format("requestUserPermission(%X:%X)", permissionDevice.getVendorId(), permissionDevice.getProductId() ) );
         PendingIntent mPendingIntent = PendingIntent.getBroadcast(this, 0, new Intent(ACTION_USB_PERMISSION), 0);
-        usbManager.requestPermission(device, mPendingIntent);
+        usbManager.requestPermission(permissionDevice, mPendingIntent);
+    }
+
+    private void openDevice(UsbDevice usbDevice) {
+        UsbDeviceConnection connection = usbManager.openDevice(usbDevice);
+        if (connection == null) {
+            eventBus.post(DeviceEvent.of(DeviceEvent.DEVICE_NOT_WORKING, usbDevice.getDeviceName()));
+            return;
+        }
+        ConnectionTask task = new ConnectionTask(usbDevice, connection);
+        openingDevices.put(usbDevice.getDeviceName(), task);
+        WorkerScheduler.get().submitConnection(task);
+    }
+
+    private boolean isOpenOrOpening(String name) {
+        return sessions.containsKey(name) || openingDevices.containsKey(name);
+    }
+
+    /*
+     * Closes the session of the board, if open, and abandons opening it, if in progress.
+     */
+    private DeviceSession closeSession(String name) {
+        DeviceSession session;
+        synchronized (sessionLock) {
+            openingDevices.remove(name);
+            session = sessions.remove(name);
+            if (session == null)
+                return null;
+            if (name.equals(defaultDeviceName)) {
+                defaultDeviceName = null;
+                for (String other : sessions.keySet()) {
+                    defaultDeviceName = other;
+                    break;
+                }
+            }
+        }
+        session.close();
+        return session;
     }
 
     public class UsbBinder extends Binder {
         public UsbService getService() {
             return UsbService.this;
         }
+
+        /*
+         * Transfer latency histograms of the default device, or null if none is open.
+         */
+        public TransferStats getTransferStats() {
+            DeviceSession session = getDefaultSession();
+            return session != null ? session.getTransferStats() : null;
+        }
+
+        public TransferStats getTransferStats(String deviceKey) {
+            DeviceSession session = getDevice(deviceKey);
+            return session != null ? session.getTransferStats() : null;
+        }
+
+        /*
+         * Recent commands and results of the default device, formatted on demand, or null if
+         * none is open.
+         */
+        public String dumpTrace() {
+            DeviceSession session = getDefaultSession();
+            return session != null ? session.dumpTrace() : null;
+        }
+
+        public String dumpTrace(String deviceKey) {
+            DeviceSession session = getDevice(deviceKey);
+            return session != null ? session.dumpTrace() : null;
+        }
     }
 
     /*
-     * A simple thread to open a serial port.
+     * A simple task to open a serial port, run on the shared connection thread.
      * Although it should be a fast operation. moving usb operations away from UI thread is a good thing.
      */
-    private class ConnectionThread extends Thread {
+    private class ConnectionTask implements Runnable {
+        private final UsbDevice device;
+        private final UsbDeviceConnection connection;
+
+        ConnectionTask(UsbDevice device, UsbDeviceConnection connection) {
+            this.device = device;
+            this.connection = connection;
+        }
+
         @Override
         public void run() {
-            serialPort = new CP2615SerialDevice(device, connection, 3); //UsbSerialDevice.createUsbSerialDevice(device, connection);//new CP2102SerialDevice(device, connection, -1);//
-            if (serialPort != null) {
-                if (serialPort.open()) {
-                    Log.d(TAG, "serialPort.open()");
-                    serialPortConnected = true;
-                    /*serialPort.setBaudRate(BAUD_RATE);
-                    serialPort.setDataBits(UsbSerialInterface.DATA_BITS_8);
-                    serialPort.setStopBits(UsbSerialInterface.STOP_BITS_1);
-                    serialPort.setParity(UsbSerialInterface.PARITY_NONE);
-                    *//*
-                     * Current flow control Options:
-                     * UsbSerialInterface.FLOW_CONTROL_OFF
-                     * UsbSerialInterface.FLOW_CONTROL_RTS_CTS only for CP2102 and FT232
-                     * UsbSerialInterface.FLOW_CONTROL_DSR_DTR only for CP2102 and FT232
-                     *//*
-                    serialPort.setFlowControl(UsbSerialInterface.FLOW_CONTROL_OFF);
-                    serialPort.read(mCallback);
-                    serialPort.getCTS(ctsCallback);
-                    serialPort.getDSR(dsrCallback);*/
-
-                    //
-                    // Some Arduinos would need some sleep because firmware wait some time to know whether a new sketch is going
-                    // to be uploaded or not
-                    //Thread.sleep(2000); // sleep some. YMMV with different chips.
-
-                    // Everything went as expected. Send an intent to MainActivity
-
-                    //ATTEMPT TO SEND COMMAND TO CHANGE LIGHT COLOUR
-
-                    writeGreen();
-
-
-                    Intent intent = new Intent(ACTION_USB_READY);
-                    context.sendBroadcast(intent);
-                } else {
-                    Log.d(TAG, "serialPort.open() == false");
-                    // Serial port could not be opened, maybe an I/O error or if CDC driver was chosen, it does not really fit
-                    // Send an Intent to Main Activity
-                    Intent intent = new Intent(ACTION_USB_DEVICE_NOT_WORKING);
-                    context.sendBroadcast(intent);
+            String name = device.getDeviceName();
+            String serial = null;
+            DeviceLayout layout = null;
+            DeviceSession session = null;
+            boolean opened = false;
+            try {
+                serial = connection.getSerial();
+                layout = DeviceLayout.load(context, device.getVendorId(), device.getProductId(), serial);
+                session = new DeviceSession(device, connection, serial, layout);
+                opened = session.open();
+                if (opened) {
+                    DeviceLayout current = session.getLayout();
+                    if (!current.sameAs(layout))
+                        current.save(context);
+                    session.setCalibration(loadCalibration(session.getSerial()));
+                    session.setVolumeCoalescing(volumeCoalescing);
+                    session.setFrameDispatcher(frameDispatcher);
+                }
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Could not open " + name, e);
+                opened = false;
+            }
+            if (!opened) {
+                fail(session, serial, layout);
+                return;
+            }
 
+            DeviceSession previous = null;
+            boolean detached;
+            synchronized (sessionLock) {
+                // Still ours unless the board was detached, or attached again, while opening
+                detached = !openingDevices.remove(name, this);
+                if (!detached) {
+                    previous = sessions.put(name, session);
+                    if (defaultDeviceName == null)
+                        defaultDeviceName = name;
                 }
-            } else {
-                Log.d(TAG, "No driver :/");
-                // No driver for given device, even generic CDC driver could not be loaded
-                Intent intent = new Intent(ACTION_USB_NOT_SUPPORTED);
-                context.sendBroadcast(intent);
             }
+            if (detached) {
+                Log.d(TAG, name + " detached while opening");
+                attachTimes.remove(name);
+                session.close();
+                return;
+            }
+            if (previous != null)
+                previous.close();
+
+            //ATTEMPT TO SEND COMMAND TO CHANGE LIGHT COLOUR
+            session.writeLedColour(CP2615Commands.LED_GREEN, CP2615Commands.LED_BLANK_LENGTH, null);
+
+            // Everything went as expected. Tell the subscribers
+            long attachToReadyMs = DeviceEvent.NO_ATTACH_TIME;
+            Long attachTime = attachTimes.remove(name);
+            if (attachTime != null) {
+                session.setAttachToReadyNanos(System.nanoTime() - attachTime);
+                attachToReadyMs = session.getAttachToReadyMillis();
+                Log.i(TAG, "Attach to ready " + session.getAttachToReadyMillis() + " ms, fast reconnect " + session.isFastReconnect());
+            }
+            eventBus.post(DeviceEvent.ready(name, attachToReadyMs));
         }
-    }
 
-    //doI2cTransfer(slave, 0, bytes(xfer))
+        private void fail(DeviceSession session, String serial, DeviceLayout layout) {
+            Log.d(TAG, "serialPort.open() == false");
+            String name = device.getDeviceName();
+            openingDevices.remove(name, this);
+            attachTimes.remove(name);
+            // Closing the session closes the connection as well
+            if (session != null)
+                session.close();
+            else
+                connection.close();
+            // The cached layout may be stale, scan the endpoints next time
+            if (layout != null)
+                DeviceLayout.forget(context, device.getVendorId(), device.getProductId(), serial);
+            // Serial port could not be opened, maybe an I/O error or if CDC driver was chosen, it does not really fit
+            // Tell the subscribers
+            eventBus.post(DeviceEvent.of(DeviceEvent.DEVICE_NOT_WORKING, name));
+        }
+    }
 
-    //slave = 16
-    //read = 0
-    private void doI2cTransfer(int slave, int read, byte[] data) {
+    /*
+     * The calls below address the default device; use getDevice() to reach a specific board.
+     *
+     * I2C write-then-read transaction: data is written to the slave, then readLength bytes are read
+     * back and delivered to the callback on the device reader thread. Returns at once; false if
+     * the transaction could not be queued.
+     */
+    public boolean doI2cTransfer(int slave, int readLength, byte[] data, I2CReadCallback callback) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.doI2cTransfer(slave, readLength, data, callback);
+    }
 
-        //1. do write
+    /*
+     * The write methods below only queue the command and return at once; the transfer happens on
+     * the device writer thread. They return false if there is no open device or its queue is full.
+     * The optional callback receives the transfer result on the writer thread.
+     */
+    public boolean writeVolumeCommand(int reg10, int reg1) {
+        return writeVolumeCommand(reg10, reg1, null);
+    }
 
-        //2. do read
+    public boolean writeVolumeCommand(int reg10, int reg1, I2CCommandCallback callback) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.writeVolumeCommand(reg10, reg1, callback);
+    }
 
+    /*
+     * Sets the DAC attenuation in dB, 0 to 79, using the calibration of the last frequency passed
+     * to writeAttenuation(int, int).
+     */
+    public boolean writeAttenuation(int attenuation) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.writeAttenuation(attenuation);
     }
 
-    public void writeVolumeCommand(int reg10, int reg1) {
-        Log.d(TAG, "writeVolumeCommand()");
-        Log.d(TAG, "reg10="+reg10);
-        Log.d(TAG, "reg1="+reg1);
-        int[] command = new int[]{42 ,42 ,0 ,15 ,212 ,0 ,1 ,136 ,0 ,5 ,136 ,240 ,116 ,reg10 ,reg1 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0, 0};
-        Log.d(TAG, "command.length = "+command.length);
-        byte[] buffer1 = buildI2CCommand(command);
-        int[] blankInts = new int[command.length];
-        Arrays.fill(blankInts, 0);
-        byte[] buffer2 = buildI2CCommand(blankInts);
-        int syncWriteResult1 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer1, 15, 1500);
-        int syncWriteResult2 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer2, 64, 1500);
-        Log.d(TAG, "syncWriteResult1 = "+syncWriteResult1);
-        Log.d(TAG, "syncWriteResult2 = "+syncWriteResult2);
+    /*
+     * Sets the DAC attenuation in dB using the device calibration for the given frequency.
+     */
+    public boolean writeAttenuation(int frequencyHz, int attenuation) {
+        return writeAttenuation(frequencyHz, attenuation, null);
     }
 
-    public void writeRed() {
+    public boolean writeAttenuation(int frequencyHz, int attenuation, I2CCommandCallback callback) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.writeAttenuation(frequencyHz, attenuation, callback);
+    }
 
-        int[] command = new int[]{
-                42 ,
-                42 ,
-                0 ,
-                13 ,
-                212 ,
-                0 ,
-                1 ,
-                16 ,
-                0 ,
-                3 ,1 ,1 ,23 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0};
-        byte[] buffer1 = buildI2CCommand(command);
+    private CalibrationTable loadCalibration(String serial) {
+        try {
+            return CalibrationTable.loadForDevice(context, serial);
+        } catch (IOException e) {
+            Log.e(TAG, "Could not load calibration table, using defaults", e);
+            return CalibrationTable.createDefault();
+        }
+    }
 
-        int[] blankInts = new int[command.length];
-        Arrays.fill(blankInts, 0);
-        byte[] buffer2 = buildI2CCommand(blankInts);
-        int syncWriteResult1 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer1, 13, 1500);
-        int syncWriteResult2 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer2, 13, 1500);
-        Log.d(TAG, "syncWriteResult1 = "+syncWriteResult1);
-        Log.d(TAG, "syncWriteResult2 = "+syncWriteResult2);
+    /*
+     * Ramps the DAC attenuation of the default device from startAttenuation to targetAttenuation
+     * over durationMs, one write per step from a high priority scheduler thread. Replaces any ramp
+     * in progress. Step timestamps and jitter of the last ramp are available from getGainRamp().
+     */
+    public void startGainRamp(int startAttenuation, int targetAttenuation, long durationMs, GainRampScheduler.Listener listener) {
+        gainRamp.start(startAttenuation, targetAttenuation, durationMs, listener);
     }
 
-    public void writeGreen() {
-        Log.d(TAG, "writeGreen()");
-        int[] command = new int[]{42 ,42 ,0 ,13 ,212 ,0 ,1 ,16 ,0 ,3 ,1 ,2 ,23 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0};
-        Log.d(TAG, "command.length = "+command.length);
-        byte[] buffer1 = buildI2CCommand(command);
-        int[] blankInts = new int[command.length];
-        Arrays.fill(blankInts, 0);
-        byte[] buffer2 = buildI2CCommand(blankInts);
-        int syncWriteResult1 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer1, 13, 1500);
-        int syncWriteResult2 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer2, 13, 1500);
-        Log.d(TAG, "syncWriteResult1 = "+syncWriteResult1);
-        Log.d(TAG, "syncWriteResult2 = "+syncWriteResult2);
+    public void cancelGainRamp() {
+        gainRamp.cancel();
     }
 
-    public void writeBlue() {
+    GainRampScheduler getGainRamp() {
+        return gainRamp;
+    }
 
-        int[] command = new int[]{42 ,42 ,0 ,13 ,212 ,0 ,1 ,16 ,0 ,3 ,1 ,3 ,23 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0 ,0};
-        byte[] buffer1 = buildI2CCommand(command);
+    /*
+     * When enabled (the default) a volume write issued while another one is still pending replaces
+     * it, so bursts of gain changes only send the latest value. Applies to every open device and to
+     * devices opened later.
+     */
+    public void setVolumeCoalescing(boolean enabled) {
+        volumeCoalescing = enabled;
+        for (DeviceSession session : sessions.values())
+            session.setVolumeCoalescing(enabled);
+    }
 
-        int[] blankInts = new int[command.length];
-        Arrays.fill(blankInts, 0);
-        byte[] buffer2 = buildI2CCommand(blankInts);
-        int syncWriteResult1 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer1, 13, 1500);
-        //int syncWriteResult2 = connection.bulkTransfer(serialPort.getOutEndpoint(), buffer2, 13, 1500);
-        Log.d(TAG, "syncWriteResult1 = "+syncWriteResult1);
-        //Log.d(TAG, "syncWriteResult2 = "+syncWriteResult2);
+    public boolean writeRed() {
+        return writeLedColour(CP2615Commands.LED_RED, CP2615Commands.LED_BLANK_LENGTH);
     }
 
+    public boolean writeGreen() {
+        return writeLedColour(CP2615Commands.LED_GREEN, CP2615Commands.LED_BLANK_LENGTH);
+    }
 
-    private byte[] buildI2CCommand(int[] command) {
-        byte[] commandBytes = new byte[command.length];
+    public boolean writeBlue() {
+        return writeLedColour(CP2615Commands.LED_BLUE, 0);
+    }
 
-        //Log.i(TAG, "command.length="+command.length);
+    /*
+     * Sets the DAC attenuation and the LED colour in a single bulk transfer. This bypasses volume
+     * coalescing, and fails while the previous combined write is still in progress.
+     */
+    public boolean writeVolumeAndLedColour(int reg10, int reg1, int colour, I2CCommandCallback callback) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.writeVolumeAndLedColour(reg10, reg1, colour, callback);
+    }
 
-        for(int k=0; k<commandBytes.length; k++) {
-            commandBytes[k]=(byte)(command[k]& 0xFF);
+    /*
+     * As DeviceSession.submitBatch() on the default device; the callback fires exactly once,
+     * with RESULT_CANCELLED if there is no device.
+     */
+    boolean submitBatch(I2CBatch batch, I2CCommandCallback callback) {
+        DeviceSession session = getDefaultSession();
+        if (session == null) {
+            if (callback != null)
+                callback.onCommandComplete(I2CCommandCallback.RESULT_CANCELLED);
+            return false;
         }
+        return session.submitBatch(batch, callback);
+    }
+
+    public int[] getCachedVolumeRegisters() {
+        DeviceSession session = getDefaultSession();
+        return session != null ? session.getCachedVolumeRegisters() : null;
+    }
+
+    public int getCachedLedColour() {
+        DeviceSession session = getDefaultSession();
+        return session != null ? session.getCachedLedColour() : -1;
+    }
+
+    /*
+     * Drops the commands of the default device that have not reached the bus yet. Closing a
+     * device cancels its queued commands as well.
+     */
+    public void cancelQueuedCommands() {
+        DeviceSession session = getDefaultSession();
+        if (session != null)
+            session.cancelQueuedCommands();
+    }
+
+    public void invalidateRegisterCache() {
+        DeviceSession session = getDefaultSession();
+        if (session != null)
+            session.invalidateRegisterCache();
+    }
 
-       /* for(int k=0; k<commandBytes.length; k++) {
-            Log.i(TAG, "commandByte="+(commandBytes[k]& 0xFF));
-        }*/
-        return commandBytes;
+    private boolean writeLedColour(int colour, int blankLength) {
+        DeviceSession session = getDefaultSession();
+        return session != null && session.writeLedColour(colour, blankLength, null);
     }
-}
\ No newline at end of file
+}
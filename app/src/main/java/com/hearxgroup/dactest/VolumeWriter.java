@@ -0,0 +1,202 @@
+package com.hearxgroup.dactest;
+
+import android.util.Log;
+
+/*
+ * Queues DAC attenuation writes for one CP2615Link.
+ *
+ * In coalescing mode (the default) at most one volume write is queued or on the bus at a time.
+ * Requests arriving meanwhile replace each other as the single pending write, which is sent when
+ * the current one completes, so a burst of gain changes costs at most one stale write before the
+ * final value. Replaced requests complete with I2CCommandCallback.RESULT_SUPERSEDED.
+ *
+ * A write is either a calibrated attenuation, whose prebuilt packet is copied from the
+ * CalibrationTable, or a raw register pair that is encoded on the fly.
+ */
+class VolumeWriter implements I2CCommandCallback
+{
+    private static final String TAG = VolumeWriter.class.getSimpleName();
+
+    private final CP2615Link link;
+    private final Object lock = new Object();
+
+    private volatile boolean coalescing = true;
+
+    // Guarded by lock
+    private boolean inFlight;
+    private I2CCommandCallback inFlightCallback;
+    private boolean hasPending;
+    // The pending write: a calibration table entry, or a register pair if pendingTable is null
+    private CalibrationTable pendingTable;
+    private int pendingFrequencyIndex;
+    private int pendingAttenuation;
+    private int pendingReg10;
+    private int pendingReg1;
+    private I2CCommandCallback pendingCallback;
+
+    VolumeWriter(CP2615Link link)
+    {
+        this.link = link;
+    }
+
+    void setCoalescing(boolean coalescing)
+    {
+        this.coalescing = coalescing;
+    }
+
+    /*
+     * Returns false if the write could not be queued. In coalescing mode a write that replaces a
+     * pending one always returns true; its outcome is reported through the callback.
+     */
+    boolean write(int reg10, int reg1, I2CCommandCallback callback)
+    {
+        return write(null, 0, 0, reg10, reg1, callback);
+    }
+
+    /*
+     * As write(int, int, I2CCommandCallback), sending the table's prebuilt packet for the
+     * frequency index and attenuation.
+     */
+    boolean write(CalibrationTable table, int frequencyIndex, int attenuation, I2CCommandCallback callback)
+    {
+        return write(table, frequencyIndex, attenuation, 0, 0, callback);
+    }
+
+    private boolean write(CalibrationTable table, int frequencyIndex, int attenuation, int reg10, int reg1, I2CCommandCallback callback)
+    {
+        if(!coalescing)
+            return enqueue(table, frequencyIndex, attenuation, reg10, reg1, callback);
+
+        boolean deferred;
+        I2CCommandCallback superseded = null;
+        synchronized(lock)
+        {
+            deferred = inFlight;
+            if(deferred)
+            {
+                if(hasPending)
+                    superseded = pendingCallback;
+                hasPending = true;
+                pendingTable = table;
+                pendingFrequencyIndex = frequencyIndex;
+                pendingAttenuation = attenuation;
+                pendingReg10 = reg10;
+                pendingReg1 = reg1;
+                pendingCallback = callback;
+            }else
+            {
+                inFlight = true;
+                inFlightCallback = callback;
+            }
+        }
+
+        if(deferred)
+        {
+            if(superseded != null)
+                superseded.onCommandComplete(RESULT_SUPERSEDED);
+            return true;
+        }
+
+        if(enqueue(table, frequencyIndex, attenuation, reg10, reg1, this))
+            return true;
+
+        // The caller learns about the failure from the return value, not the callback
+        synchronized(lock)
+        {
+            inFlightCallback = null;
+        }
+        onCommandComplete(RESULT_QUEUE_FULL);
+        return false;
+    }
+
+    /*
+     * Drops the pending coalesced write, if any, completing it with RESULT_SUPERSEDED. The write
+     * in flight is left to the link.
+     */
+    void cancelPending()
+    {
+        I2CCommandCallback superseded = null;
+        synchronized(lock)
+        {
+            if(hasPending)
+            {
+                superseded = pendingCallback;
+                hasPending = false;
+                pendingTable = null;
+                pendingCallback = null;
+            }
+        }
+        if(superseded != null)
+            superseded.onCommandComplete(RESULT_SUPERSEDED);
+    }
+
+    /*
+     * Completion of the in-flight coalesced write, called on the writer thread. Sends the pending
+     * write, if any.
+     */
+    @Override
+    public void onCommandComplete(int result)
+    {
+        while(true)
+        {
+            I2CCommandCallback done;
+            boolean sendNext;
+            CalibrationTable table = null;
+            int frequencyIndex = 0;
+            int attenuation = 0;
+            int reg10 = 0;
+            int reg1 = 0;
+            synchronized(lock)
+            {
+                done = inFlightCallback;
+                sendNext = hasPending;
+                if(sendNext)
+                {
+                    table = pendingTable;
+                    frequencyIndex = pendingFrequencyIndex;
+                    attenuation = pendingAttenuation;
+                    pendingTable = null;
+                    reg10 = pendingReg10;
+                    reg1 = pendingReg1;
+                    inFlightCallback = pendingCallback;
+                    hasPending = false;
+                    pendingCallback = null;
+                }else
+                {
+                    inFlight = false;
+                    inFlightCallback = null;
+                }
+            }
+
+            if(done != null)
+                done.onCommandComplete(result);
+            if(!sendNext || enqueue(table, frequencyIndex, attenuation, reg10, reg1, this))
+                return;
+
+            // The pending write could not be queued: complete it as failed and pick up anything newer
+            result = RESULT_QUEUE_FULL;
+        }
+    }
+
+    private boolean enqueue(CalibrationTable table, int frequencyIndex, int attenuation, int reg10, int reg1, I2CCommandCallback callback)
+    {
+        I2CCommand command = link.claimCommand();
+        if(command == null)
+        {
+            Log.w(TAG, "I2C command queue full, volume write dropped");
+            return false;
+        }
+        boolean encoded = table != null ? table.copyPacket(frequencyIndex, attenuation, command.frame)
+                : CP2615Commands.encodeVolume(command.frame, reg10, reg1);
+        if(!encoded)
+        {
+            Log.w(TAG, "Volume packet does not fit a command, write dropped");
+            link.abandonCommand(command);
+            return false;
+        }
+        command.blankLength = CP2615Commands.VOLUME_BLANK_LENGTH;
+        command.callback = callback;
+        link.submitCommand(command);
+        return true;
+    }
+}
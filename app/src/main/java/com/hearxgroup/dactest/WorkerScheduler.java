@@ -0,0 +1,154 @@
+package com.hearxgroup.dactest;
+
+import android.os.Process;
+import android.util.Log;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * The threads of the app's USB and timing work, shared by every device and reused across
+ * reconnects so the thread count stays bounded:
+ *  - io: long running per-device loops (command writer, response reader), at most MAX_IO_THREADS
+ *  - connection: opening devices, one at a time
+ *  - periodic: short delayed or repeated tasks such as status polling
+ *  - timing: a single high priority thread for work with deadlines (gain ramps)
+ *  - timer: a single urgent audio priority thread for short delayed tasks with deadlines, such as
+ *    a stimulus waiting for the previous tone to die away; the timing thread cannot take those,
+ *    a ramp worker keeps it
+ *  - audio: a single urgent audio priority thread rendering tones into an AudioTrack
+ *  - loader: a few background threads loading files, e.g. tone samples
+ * Idle threads time out, except the single thread of the periodic pool.
+ * The io pool has no queue: a worker that finds every io thread busy is rejected, see
+ * LocalAbstractWorker.start().
+ */
+final class WorkerScheduler {
+
+    private static final String TAG = WorkerScheduler.class.getSimpleName();
+
+    static final int MAX_IO_THREADS = 16;
+    static final int LOADER_THREADS = 4;
+    private static final long KEEP_ALIVE_SECONDS = 30;
+
+    private static WorkerScheduler instance;
+
+    private final ThreadPoolExecutor ioExecutor;
+    private final ThreadPoolExecutor connectionExecutor;
+    private final ScheduledThreadPoolExecutor periodicExecutor;
+    private final ThreadPoolExecutor timingExecutor;
+    private final ScheduledThreadPoolExecutor timerExecutor;
+    private final ThreadPoolExecutor audioExecutor;
+    private final ThreadPoolExecutor loaderExecutor;
+
+    static synchronized WorkerScheduler get() {
+        if (instance == null) {
+            instance = new WorkerScheduler();
+        }
+        return instance;
+    }
+
+    private WorkerScheduler() {
+        ioExecutor = new ThreadPoolExecutor(0, MAX_IO_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new SynchronousQueue<Runnable>(), new NamedThreadFactory("io", Process.THREAD_PRIORITY_DEFAULT));
+        connectionExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("connection", Process.THREAD_PRIORITY_DEFAULT));
+        connectionExecutor.allowCoreThreadTimeOut(true);
+        periodicExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("periodic", Process.THREAD_PRIORITY_BACKGROUND));
+        periodicExecutor.setRemoveOnCancelPolicy(true);
+        timingExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("timing", Process.THREAD_PRIORITY_URGENT_AUDIO));
+        timingExecutor.allowCoreThreadTimeOut(true);
+        timerExecutor = new ScheduledThreadPoolExecutor(1, new NamedThreadFactory("timer", Process.THREAD_PRIORITY_URGENT_AUDIO));
+        timerExecutor.setRemoveOnCancelPolicy(true);
+        timerExecutor.setKeepAliveTime(KEEP_ALIVE_SECONDS, TimeUnit.SECONDS);
+        timerExecutor.allowCoreThreadTimeOut(true);
+        audioExecutor = new ThreadPoolExecutor(1, 1, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("audio", Process.THREAD_PRIORITY_URGENT_AUDIO));
+        audioExecutor.allowCoreThreadTimeOut(true);
+        loaderExecutor = new ThreadPoolExecutor(LOADER_THREADS, LOADER_THREADS, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("loader", Process.THREAD_PRIORITY_BACKGROUND));
+        loaderExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    ExecutorService getIoExecutor() {
+        return ioExecutor;
+    }
+
+    ExecutorService getTimingExecutor() {
+        return timingExecutor;
+    }
+
+    ExecutorService getAudioExecutor() {
+        return audioExecutor;
+    }
+
+    ExecutorService getLoaderExecutor() {
+        return loaderExecutor;
+    }
+
+    ScheduledExecutorService getPeriodicExecutor() {
+        return periodicExecutor;
+    }
+
+    Future<?> submitConnection(Runnable task) {
+        return connectionExecutor.submit(task);
+    }
+
+    Future<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return periodicExecutor.schedule(task, delay, unit);
+    }
+
+    /*
+     * As schedule(), on the timer thread: for short tasks that must run on time.
+     */
+    Future<?> scheduleTimed(Runnable task, long delay, TimeUnit unit) {
+        return timerExecutor.schedule(task, delay, unit);
+    }
+
+    /*
+     * Threads currently alive in all pools, for diagnostics.
+     */
+    int getThreadCount() {
+        return ioExecutor.getPoolSize() + connectionExecutor.getPoolSize()
+                + periodicExecutor.getPoolSize() + timingExecutor.getPoolSize() + timerExecutor.getPoolSize()
+                + audioExecutor.getPoolSize() + loaderExecutor.getPoolSize();
+    }
+
+    private static class NamedThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final int priority;
+        private final AtomicInteger count = new AtomicInteger();
+
+        NamedThreadFactory(String prefix, int priority) {
+            this.prefix = prefix;
+            this.priority = priority;
+        }
+
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Process.setThreadPriority(priority);
+                    runnable.run();
+                }
+            }, "dactest-" + prefix + "-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setUncaughtExceptionHandler(new Thread.UncaughtExceptionHandler() {
+                @Override
+                public void uncaughtException(Thread t, Throwable e) {
+                    Log.e(TAG, "Uncaught exception in " + t.getName(), e);
+                }
+            });
+            return thread;
+        }
+    }
+}
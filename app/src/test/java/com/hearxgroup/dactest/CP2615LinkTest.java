@@ -0,0 +1,598 @@
+package com.hearxgroup.dactest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs the I2C command pipeline against SimulatedCP2615, on the development machine (host).
+ */
+public class CP2615LinkTest {
+
+    private SimulatedCP2615 device;
+    private CP2615Link link;
+
+    @Before
+    public void setUp() {
+        device = new SimulatedCP2615();
+        link = new CP2615Link(device);
+        link.start();
+    }
+
+    @After
+    public void tearDown() {
+        link.stop();
+    }
+
+    @Test
+    public void volumeWrite_reachesDacRegisters() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch result = new ResultLatch(1);
+        assertTrue(writer.write(230, 214, result));
+        result.await();
+
+        assertEquals(15, result.last.get());
+        assertArrayEquals(new int[]{230, 214}, device.getDacVolume());
+    }
+
+    @Test
+    public void calibratedWrite_sendsPrebuiltPacket() throws Exception {
+        CalibrationTable table = CalibrationTable.createDefault();
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch result = new ResultLatch(1);
+        assertTrue(writer.write(table, table.frequencyIndex(1000), 20, result));
+        result.await();
+
+        assertEquals(15, result.last.get());
+        assertArrayEquals(new int[]{DacAttenuation.reg10(20), DacAttenuation.reg1(20)}, device.getDacVolume());
+    }
+
+    @Test
+    public void ledWrite_thenRead_returnsColour() throws Exception {
+        I2CCommand command = link.claimCommand();
+        CP2615Commands.encodeLedColour(command.frame, CP2615Commands.LED_BLUE);
+        link.submitCommand(command);
+
+        final CountDownLatch done = new CountDownLatch(1);
+        final int[] read = new int[3];
+        byte[] register = {(byte) CP2615Commands.LED_COLOUR_REGISTER};
+        assertTrue(link.readI2C(CP2615Commands.LED_SLAVE, register, 0, 1, 2, new I2CReadCallback() {
+            @Override
+            public void onReadComplete(int status, byte[] data, int offset, int length) {
+                read[0] = status;
+                read[1] = data[offset] & 0xFF;
+                read[2] = data[offset + 1] & 0xFF;
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+
+        assertEquals(I2CReadCallback.STATUS_SUCCESS, read[0]);
+        assertEquals(CP2615Commands.LED_BLUE, read[1]);
+        assertEquals(23, read[2]);
+    }
+
+    @Test
+    public void readResponse_lost_timesOutAndFreesTag() throws Exception {
+        byte[] register = {(byte) CP2615Commands.LED_COLOUR_REGISTER};
+        // Enough round trips for the deadline to follow the simulator rather than the fixed timeout
+        for (int i = 0; i < TransferTimeoutPolicy.MIN_SAMPLES; i++)
+            assertEquals(I2CReadCallback.STATUS_SUCCESS, readStatus(register));
+
+        device.dropNextResponses(1);
+        long start = System.nanoTime();
+        assertEquals(I2CReadCallback.STATUS_TIMEOUT, readStatus(register));
+        long elapsedMs = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertTrue("timed out after " + elapsedMs + "ms", elapsedMs < TransferTimeoutPolicy.MAX_TIMEOUT_MS);
+
+        assertEquals(I2CReadCallback.STATUS_SUCCESS, readStatus(register));
+    }
+
+    @Test
+    public void readResponse_splitAcrossInPackets_isReassembled() throws Exception {
+        device.setInPacketSize(3);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger status = new AtomicInteger();
+        byte[] register = {(byte) CP2615Commands.DAC_VOLUME_REGISTER};
+        assertTrue(link.readI2C(CP2615Commands.DAC_SLAVE, register, 0, 1, 4, new I2CReadCallback() {
+            @Override
+            public void onReadComplete(int result, byte[] data, int offset, int length) {
+                status.set(length == 4 ? result : 0);
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(I2CReadCallback.STATUS_SUCCESS, status.get());
+    }
+
+    @Test
+    public void readFromUnknownSlave_reportsDeviceStatus() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger status = new AtomicInteger();
+        assertTrue(link.readI2C(0x42, new byte[]{0}, 0, 1, 1, new I2CReadCallback() {
+            @Override
+            public void onReadComplete(int result, byte[] data, int offset, int length) {
+                status.set(result);
+                done.countDown();
+            }
+        }));
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertEquals(SimulatedCP2615.STATUS_NACK, status.get());
+    }
+
+    @Test
+    public void failedWrite_isReported_andNotCached() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        device.failNextWrites(TransferTimeoutPolicy.MAX_ATTEMPTS);
+        ResultLatch failed = new ResultLatch(1);
+        writer.write(225, 211, failed);
+        failed.await();
+        assertTrue(failed.last.get() < 0);
+        assertNotEquals(225, device.getDacVolume()[0]);
+
+        // The shadow must not claim the failed value, so the retry goes out
+        ResultLatch retried = new ResultLatch(1);
+        writer.write(225, 211, retried);
+        retried.await();
+        assertEquals(15, retried.last.get());
+        assertArrayEquals(new int[]{225, 211}, device.getDacVolume());
+    }
+
+    @Test
+    public void failedWrite_isRetried() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        device.failNextWrites(TransferTimeoutPolicy.MAX_ATTEMPTS - 1);
+        ResultLatch result = new ResultLatch(1);
+        writer.write(227, 212, result);
+        result.await();
+
+        assertEquals(15, result.last.get());
+        assertArrayEquals(new int[]{227, 212}, device.getDacVolume());
+        assertEquals(TransferTimeoutPolicy.MAX_ATTEMPTS - 1, link.getTransferStats().getNegativeResultCount(TransferStats.TYPE_VOLUME));
+    }
+
+    @Test
+    public void timeout_followsObservedLatency() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch first = new ResultLatch(1);
+        writer.write(224, 208, first);
+        first.await();
+        assertEquals(TransferTimeoutPolicy.MAX_TIMEOUT_MS, device.getLastTimeoutMs());
+
+        for (int i = 1; i <= TransferTimeoutPolicy.MIN_SAMPLES + 32; i++) {
+            ResultLatch result = new ResultLatch(1);
+            writer.write(224 + i % 8, 208 + i % 10, result);
+            result.await();
+        }
+        // Sub-millisecond transfers end up on the floor
+        assertEquals(TransferTimeoutPolicy.MIN_TIMEOUT_MS, device.getLastTimeoutMs());
+        assertEquals(TransferTimeoutPolicy.MAX_TIMEOUT_MS, TransferTimeoutPolicy.timeoutFor(TimeUnit.SECONDS.toNanos(1)));
+        assertEquals(80, TransferTimeoutPolicy.timeoutFor(TimeUnit.MILLISECONDS.toNanos(10)));
+    }
+
+    @Test
+    public void timeout_recoversAfterSlowPeriod() {
+        TransferStats stats = new TransferStats();
+        TransferTimeoutPolicy policy = new TransferTimeoutPolicy(stats);
+        int type = TransferStats.TYPE_LED;
+        for (int i = 0; i < TransferTimeoutPolicy.MIN_SAMPLES * 2; i++) {
+            stats.record(type, TransferStats.STAGE_OUT, TimeUnit.MILLISECONDS.toNanos(20));
+            policy.getTimeoutMs(type);
+        }
+        assertEquals(TransferTimeoutPolicy.timeoutFor(TimeUnit.MILLISECONDS.toNanos(20)), policy.getTimeoutMs(type));
+
+        for (int i = 0; i < TransferTimeoutPolicy.DECAY_INTERVAL * 8; i++) {
+            stats.record(type, TransferStats.STAGE_OUT, TimeUnit.MICROSECONDS.toNanos(100));
+            policy.getTimeoutMs(type);
+        }
+        // The slow samples are still over 1% of the totals, but no longer of the recent ones
+        assertTrue(stats.getP99Nanos(type, TransferStats.STAGE_OUT) >= TimeUnit.MILLISECONDS.toNanos(20));
+        assertEquals(TransferTimeoutPolicy.MIN_TIMEOUT_MS, policy.getTimeoutMs(type));
+    }
+
+    @Test
+    public void cancelQueued_supersedesUnsentCommands() throws Exception {
+        device.setWriteLatency(5, TimeUnit.MILLISECONDS);
+        final AtomicInteger superseded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        I2CCommandCallback callback = new I2CCommandCallback() {
+            @Override
+            public void onCommandComplete(int result) {
+                if (result == RESULT_SUPERSEDED)
+                    superseded.incrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            I2CCommand command = link.claimCommand();
+            CP2615Commands.encodeLedColour(command.frame, i % 2 == 0 ? CP2615Commands.LED_RED : CP2615Commands.LED_GREEN);
+            command.callback = callback;
+            link.submitCommand(command);
+        }
+        link.cancelQueued();
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+
+        // At most the command on the bus when cancelQueued() was called went out
+        assertTrue("superseded " + superseded.get(), superseded.get() >= 9);
+        assertTrue("writes " + device.getWriteCount(), device.getWriteCount() <= 1);
+    }
+
+    @Test
+    public void stop_cancelsQueuedCommands() throws Exception {
+        device.setWriteLatency(5, TimeUnit.MILLISECONDS);
+        final AtomicInteger cancelled = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(10);
+        I2CCommandCallback callback = new I2CCommandCallback() {
+            @Override
+            public void onCommandComplete(int result) {
+                if (result == RESULT_CANCELLED)
+                    cancelled.incrementAndGet();
+                done.countDown();
+            }
+        };
+        for (int i = 0; i < 10; i++) {
+            I2CCommand command = link.claimCommand();
+            CP2615Commands.encodeLedColour(command.frame, i % 2 == 0 ? CP2615Commands.LED_RED : CP2615Commands.LED_GREEN);
+            command.callback = callback;
+            link.submitCommand(command);
+        }
+        link.stop();
+
+        // Every command completes, those not sent yet as cancelled
+        assertTrue(done.await(2, TimeUnit.SECONDS));
+        assertTrue("cancelled " + cancelled.get(), cancelled.get() >= 8);
+    }
+
+    @Test
+    public void submitAfterStop_isCancelled() throws Exception {
+        link.stop();
+        ResultLatch result = new ResultLatch(1);
+        I2CCommand command = link.claimCommand();
+        CP2615Commands.encodeLedColour(command.frame, CP2615Commands.LED_RED);
+        command.callback = result;
+        link.submitCommand(command);
+
+        result.await();
+        assertEquals(I2CCommandCallback.RESULT_CANCELLED, result.last.get());
+        assertEquals(0, device.getWriteCount());
+    }
+
+    @Test
+    public void start_withoutIoThreads_failsCleanly() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        Runnable blocker = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        CP2615Link other = new CP2615Link(new SimulatedCP2615());
+        try {
+            for (int i = 0; i < WorkerScheduler.MAX_IO_THREADS; i++) {
+                try {
+                    WorkerScheduler.get().getIoExecutor().execute(blocker);
+                } catch (RejectedExecutionException e) {
+                    break;
+                }
+            }
+            assertFalse(other.start());
+            assertFalse(other.readI2C(CP2615Commands.LED_SLAVE, new byte[]{1}, 0, 1, 1, null));
+        } finally {
+            release.countDown();
+        }
+        // The released threads take a moment to be ready for new work again
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        boolean started;
+        while (!(started = other.start()) && System.nanoTime() < deadline)
+            Thread.sleep(1);
+        assertTrue(started);
+        other.stop();
+    }
+
+    @Test
+    public void throwingCallback_writerRestarts() throws Exception {
+        I2CCommand command = link.claimCommand();
+        CP2615Commands.encodeLedColour(command.frame, CP2615Commands.LED_RED);
+        command.callback = new I2CCommandCallback() {
+            @Override
+            public void onCommandComplete(int result) {
+                throw new IllegalStateException("callback failed");
+            }
+        };
+        link.submitCommand(command);
+
+        ResultLatch result = new ResultLatch(1);
+        command = link.claimCommand();
+        CP2615Commands.encodeLedColour(command.frame, CP2615Commands.LED_GREEN);
+        command.callback = result;
+        link.submitCommand(command);
+        // The writer ended with the exception; start() runs it again once it is down
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (!result.latch.await(10, TimeUnit.MILLISECONDS) && System.nanoTime() < deadline)
+            assertTrue(link.start());
+        result.await();
+        assertEquals(CP2615Commands.LED_GREEN, device.getLedColour());
+    }
+
+    @Test
+    public void repeatedWrite_isAnsweredFromShadow() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch first = new ResultLatch(1);
+        writer.write(224, 208, first);
+        first.await();
+        int writes = device.getWriteCount();
+
+        ResultLatch second = new ResultLatch(1);
+        writer.write(224, 208, second);
+        second.await();
+        assertEquals(I2CCommandCallback.RESULT_CACHED, second.last.get());
+        assertEquals(writes, device.getWriteCount());
+    }
+
+    @Test
+    public void repeatedBatch_succeedsWithoutWriting() throws Exception {
+        I2CBatch batch = new I2CBatch();
+        CP2615Commands.encodeLedColour(batch.getEncoder(), CP2615Commands.LED_GREEN);
+        ResultLatch first = new ResultLatch(1);
+        assertTrue(batch.submit(link, first));
+        first.await();
+        int writes = device.getWriteCount();
+
+        ResultLatch second = new ResultLatch(1);
+        assertTrue(batch.submit(link, second));
+        second.await();
+        // A write skipped by the shadow is a success, not a failure of the batch
+        assertEquals(0, second.last.get());
+        assertEquals(writes, device.getWriteCount());
+    }
+
+    @Test
+    public void trace_recordsSentAndCachedWrites() throws Exception {
+        VolumeWriter writer = new VolumeWriter(link);
+        for (int i = 0; i < 2; i++) {
+            ResultLatch result = new ResultLatch(1);
+            writer.write(226, 212, result);
+            result.await();
+        }
+
+        String dump = link.getTrace().dump();
+        assertTrue(dump, dump.contains("sent    slave=0x88 reg=0x88 value=15"));
+        assertTrue(dump, dump.contains("blank   slave=0x88 reg=0x88 value=64"));
+        assertTrue(dump, dump.contains("cached  slave=0x88 reg=0x88"));
+    }
+
+    @Test
+    public void trace_keepsLastRecordsWhenWrittenConcurrently() throws Exception {
+        final TraceRing trace = new TraceRing(64);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int slave = t;
+            threads[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 10000; i++)
+                        trace.record(TraceRing.EVENT_SENT, slave, 0, i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+
+        assertEquals(40000, trace.getRecordCount());
+        String[] lines = trace.dump().split("\n");
+        assertEquals(64, lines.length);
+    }
+
+    @Test
+    public void writeLongerThanPacketLimit_isShort() throws Exception {
+        device.setMaxPacketSize(10);
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch result = new ResultLatch(1);
+        writer.write(231, 215, result);
+        result.await();
+
+        assertEquals(10, result.last.get());
+        // The command and its 64 byte flush packet
+        assertEquals(2, device.getShortWriteCount());
+        assertNotEquals(231, device.getDacVolume()[0]);
+
+        TransferStats stats = link.getTransferStats();
+        assertEquals(1, stats.getShortWriteCount(TransferStats.TYPE_VOLUME));
+        assertEquals(1, stats.getShortWriteCount(TransferStats.TYPE_BLANK));
+        assertEquals(0, stats.getNegativeResultCount(TransferStats.TYPE_VOLUME));
+    }
+
+    @Test
+    public void batch_isPackedToPacketLimit() throws Exception {
+        device.setMaxPacketSize(32);
+        I2CBatch batch = new I2CBatch();
+        CP2615Commands.encodeVolume(batch.getEncoder(), 226, 209);
+        CP2615Commands.encodeLedColour(batch.getEncoder(), CP2615Commands.LED_RED);
+        CP2615Commands.encodeVolume(batch.getEncoder(), 227, 210);
+        ResultLatch result = new ResultLatch(1);
+        assertTrue(batch.submit(link, result));
+        result.await();
+
+        // 15 + 13 bytes fit one 32 byte packet, the last volume write needs a second one
+        assertEquals(2, device.getWriteCount());
+        assertEquals(3, device.getMessageCount());
+        assertArrayEquals(new int[]{227, 210}, device.getDacVolume());
+        assertEquals(CP2615Commands.LED_RED, device.getLedColour());
+    }
+
+    @Test
+    public void batch_withOversizedMessage_queuesNothing() throws Exception {
+        device.setMaxPacketSize(14);
+        I2CBatch batch = new I2CBatch();
+        CP2615Commands.encodeLedColour(batch.getEncoder(), CP2615Commands.LED_RED);
+        CP2615Commands.encodeVolume(batch.getEncoder(), 226, 209);
+        ResultLatch result = new ResultLatch(1);
+        assertFalse(batch.submit(link, result));
+        result.await();
+
+        // The 13 byte LED write would fit, but the 15 byte volume write does not
+        assertEquals(I2CCommandCallback.RESULT_INVALID, result.last.get());
+        assertFalse(batch.isBusy());
+        assertEquals(0, device.getWriteCount());
+
+        device.setMaxPacketSize(64);
+        batch.reset();
+        CP2615Commands.encodeLedColour(batch.getEncoder(), CP2615Commands.LED_RED);
+        ResultLatch retry = new ResultLatch(1);
+        assertTrue(batch.submit(link, retry));
+        retry.await();
+        assertEquals(13, retry.last.get());
+    }
+
+    @Test
+    public void registerTemplates_encodeTheDeviceLayout() {
+        CP2615PacketEncoder encoder = new CP2615PacketEncoder();
+        assertTrue(CP2615Commands.encodeVolume(encoder, 226, 209));
+        assertTrue(CP2615Commands.encodeLedColour(encoder, CP2615Commands.LED_GREEN));
+
+        int[] expected = {
+                0x2A, 0x2A, 0, 15, 0xD4, 0, 1, 0x88, 0, 5, 0x88, 240, 116, 226, 209,
+                0x2A, 0x2A, 0, 13, 0xD4, 0, 1, 0x10, 0, 3, 1, 2, 23};
+        assertEquals(expected.length, encoder.getLength());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals("byte " + i, expected[i], encoder.getBuffer()[i] & 0xFF);
+    }
+
+    @Test
+    public void coalescedBurst_endsOnLastValue_withFewTransfers() throws Exception {
+        device.setWriteLatency(500, TimeUnit.MICROSECONDS);
+        VolumeWriter writer = new VolumeWriter(link);
+        ResultLatch result = new ResultLatch(1000);
+        for (int i = 0; i < 1000; i++)
+            assertTrue(writer.write(224 + i % 8, 208 + i % 10, result));
+        result.await();
+
+        assertArrayEquals(new int[]{224 + 999 % 8, 208 + 999 % 10}, device.getDacVolume());
+        assertTrue("transfers " + device.getWriteCount(), device.getWriteCount() < 100);
+    }
+
+    /*
+     * Throughput and latency guard: uncoalesced writes with 200us of simulated bus time each must
+     * stay well above the floor the hardware path needs. Bounds are loose so that slow build
+     * machines pass, a pipeline regression (lost wakeups, extra transfers) does not.
+     */
+    @Test
+    public void uncoalescedWrites_keepThroughputAndLatency() throws Exception {
+        device.setWriteLatency(200, TimeUnit.MICROSECONDS);
+        VolumeWriter writer = new VolumeWriter(link);
+        writer.setCoalescing(false);
+
+        final int count = 500;
+        final long[] latencies = new long[count];
+        final CountDownLatch done = new CountDownLatch(count);
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            final long issued = System.nanoTime();
+            I2CCommandCallback callback = new I2CCommandCallback() {
+                @Override
+                public void onCommandComplete(int result) {
+                    latencies[index] = System.nanoTime() - issued;
+                    done.countDown();
+                }
+            };
+            // Alternate values so the shadow never skips a write; wait while the queue is full
+            while (!writer.write(224 + i % 2, 208, callback))
+                Thread.yield();
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        long elapsed = System.nanoTime() - start;
+
+        // 2 transfers per write (command and blank packet) at 200us each bound the rate to 2500/s
+        double perSecond = count * 1e9 / elapsed;
+        assertTrue("writes/s " + perSecond, perSecond > 500);
+        assertEquals(count * 2, device.getWriteCount());
+
+        // A full queue of 32 commands ahead of a write is about 13ms of bus time
+        Arrays.sort(latencies);
+        long p99 = latencies[count * 99 / 100];
+        assertTrue("p99 " + p99 / 1000 + "us", p99 < TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void readRoundTrip_latencyTracksDevice() throws Exception {
+        device.setResponseLatency(1, TimeUnit.MILLISECONDS);
+        final int count = 50;
+        final long[] latencies = new long[count];
+        byte[] register = {(byte) CP2615Commands.LED_COLOUR_REGISTER};
+        for (int i = 0; i < count; i++) {
+            final CountDownLatch done = new CountDownLatch(1);
+            final long issued = System.nanoTime();
+            final int index = i;
+            assertTrue(link.readI2C(CP2615Commands.LED_SLAVE, register, 0, 1, 1, new I2CReadCallback() {
+                @Override
+                public void onReadComplete(int status, byte[] data, int offset, int length) {
+                    latencies[index] = System.nanoTime() - issued;
+                    done.countDown();
+                }
+            }));
+            assertTrue(done.await(2, TimeUnit.SECONDS));
+        }
+        Arrays.sort(latencies);
+        long median = latencies[count / 2];
+        assertTrue("median " + median / 1000 + "us", median >= TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue("median " + median / 1000 + "us", median < TimeUnit.MILLISECONDS.toNanos(20));
+
+        // The IN stage sees the device's response latency; the app side sees none of it
+        TransferStats stats = link.getTransferStats();
+        assertEquals(count, stats.getCount(TransferStats.TYPE_READ, TransferStats.STAGE_IN));
+        assertEquals(count, stats.getCount(TransferStats.TYPE_READ, TransferStats.STAGE_OUT));
+        assertTrue(stats.toString(), stats.getP50Nanos(TransferStats.TYPE_READ, TransferStats.STAGE_IN) >= TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(stats.toString(), stats.getP50Nanos(TransferStats.TYPE_READ, TransferStats.STAGE_QUEUE) < TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private int readStatus(byte[] register) throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicInteger status = new AtomicInteger();
+        assertTrue(link.readI2C(CP2615Commands.LED_SLAVE, register, 0, register.length, 1, new I2CReadCallback() {
+            @Override
+            public void onReadComplete(int result, byte[] data, int offset, int length) {
+                status.set(result);
+                done.countDown();
+            }
+        }));
+        assertTrue("timed out", done.await(10, TimeUnit.SECONDS));
+        return status.get();
+    }
+
+    private static class ResultLatch implements I2CCommandCallback {
+        final CountDownLatch latch;
+        final AtomicInteger last = new AtomicInteger(Integer.MIN_VALUE);
+
+        ResultLatch(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        @Override
+        public void onCommandComplete(int result) {
+            last.set(result);
+            latch.countDown();
+        }
+
+        void await() throws InterruptedException {
+            assertTrue("timed out", latch.await(5, TimeUnit.SECONDS));
+        }
+    }
+}
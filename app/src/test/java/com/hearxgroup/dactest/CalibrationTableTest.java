@@ -0,0 +1,158 @@
+package com.hearxgroup.dactest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Writes calibration tables to a temporary file and maps them back.
+ */
+public class CalibrationTableTest {
+
+    private static final int[] FREQUENCIES = {1000, 250, 4000};
+    private static final int LEVELS = 4;
+
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("calibration", ".cal");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void writeThenLoad_returnsEveryRegisterPair() throws IOException {
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        CalibrationTable table = CalibrationTable.load(file);
+
+        assertEquals(LEVELS, table.getLevelCount());
+        for (int f = 0; f < FREQUENCIES.length; f++) {
+            int index = table.frequencyIndex(FREQUENCIES[f]);
+            assertEquals(f, index);
+            for (int level = 0; level < LEVELS; level++) {
+                assertEquals(value(0, f, level), table.reg10(index, level));
+                assertEquals(value(100, f, level), table.reg1(index, level));
+            }
+        }
+    }
+
+    @Test
+    public void copyPacket_matchesEncodedVolumeWrite() throws IOException {
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        CalibrationTable table = CalibrationTable.load(file);
+
+        CP2615PacketEncoder copied = new CP2615PacketEncoder();
+        assertTrue(table.copyPacket(2, 3, copied));
+        CP2615PacketEncoder encoded = new CP2615PacketEncoder();
+        CP2615Commands.encodeVolume(encoded, value(0, 2, 3), value(100, 2, 3));
+
+        assertEquals(encoded.getLength(), copied.getLength());
+        for (int i = 0; i < encoded.getLength(); i++)
+            assertEquals("byte " + i, encoded.getBuffer()[i], copied.getBuffer()[i]);
+
+        // Attenuations beyond the table are clamped to its range
+        assertEquals(value(0, 2, LEVELS - 1), table.reg10(2, LEVELS + 10));
+        assertEquals(value(0, 2, 0), table.reg10(2, -1));
+        assertFalse(table.copyPacket(0, 0, new CP2615PacketEncoder(8)));
+    }
+
+    @Test
+    public void frequencyIndex_picksNearestCalibratedFrequency() throws IOException {
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        CalibrationTable table = CalibrationTable.load(file);
+
+        assertEquals(1, table.frequencyIndex(0));
+        assertEquals(1, table.frequencyIndex(-5));
+        assertEquals(1, table.frequencyIndex(600));
+        assertEquals(0, table.frequencyIndex(700));
+        assertEquals(0, table.frequencyIndex(2400));
+        assertEquals(2, table.frequencyIndex(2600));
+        assertEquals(2, table.frequencyIndex(CalibrationTable.MAX_LOOKUP_HZ + 1000));
+    }
+
+    @Test
+    public void frequencyIndex_aboveLookupRange_scans() throws IOException {
+        int[] frequencies = {1000, 30000};
+        CalibrationTable.write(file, frequencies, new int[2][LEVELS], new int[2][LEVELS]);
+        CalibrationTable table = CalibrationTable.load(file);
+
+        assertEquals(0, table.frequencyIndex(CalibrationTable.MAX_LOOKUP_HZ - 10000));
+        assertEquals(1, table.frequencyIndex(CalibrationTable.MAX_LOOKUP_HZ));
+        assertEquals(1, table.frequencyIndex(40000));
+    }
+
+    @Test
+    public void defaultTable_followsDacAttenuation() {
+        CalibrationTable table = CalibrationTable.createDefault();
+        int index = table.frequencyIndex(8000);
+        for (int level = 0; level <= DacAttenuation.MAX_ATTENUATION; level++) {
+            assertEquals(DacAttenuation.reg10(level), table.reg10(index, level));
+            assertEquals(DacAttenuation.reg1(level), table.reg1(index, level));
+        }
+    }
+
+    @Test
+    public void corruptFiles_areRejected() throws IOException {
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        long length = file.length();
+
+        // A record whose message length does not match a volume write
+        patch(CalibrationTable.HEADER_SIZE + FREQUENCIES.length * 4 + 3, 0);
+        assertRejected();
+
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        RandomAccessFile truncate = new RandomAccessFile(file, "rw");
+        truncate.setLength(length - 1);
+        truncate.close();
+        assertRejected();
+
+        CalibrationTable.write(file, FREQUENCIES, registers(0), registers(100));
+        patch(0, 'X');
+        assertRejected();
+    }
+
+    private void patch(long position, int value) throws IOException {
+        RandomAccessFile output = new RandomAccessFile(file, "rw");
+        try {
+            output.seek(position);
+            output.write(value);
+        } finally {
+            output.close();
+        }
+    }
+
+    private void assertRejected() {
+        try {
+            CalibrationTable.load(file);
+            fail("loaded a corrupt table");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static int[][] registers(int base) {
+        int[][] registers = new int[FREQUENCIES.length][LEVELS];
+        for (int f = 0; f < FREQUENCIES.length; f++) {
+            for (int level = 0; level < LEVELS; level++)
+                registers[f][level] = value(base, f, level);
+        }
+        return registers;
+    }
+
+    private static int value(int base, int frequency, int level) {
+        return base + frequency * 10 + level;
+    }
+}
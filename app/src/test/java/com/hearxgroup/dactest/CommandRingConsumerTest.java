@@ -0,0 +1,201 @@
+package com.hearxgroup.dactest;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Drives a CommandRingConsumer over a heap buffer against a recording target.
+ */
+public class CommandRingConsumerTest {
+
+    private static final int SLOT_COUNT = 4;
+
+    private final ByteBuffer slots = ByteBuffer.allocate(SLOT_COUNT * CommandRing.SLOT_SIZE);
+    private final RecordingTarget target = new RecordingTarget();
+    private final CommandRingConsumer consumer = new CommandRingConsumer(slots, SLOT_COUNT, target);
+
+    @Test
+    public void commit_sendsCommittedSlotsInOneBatch() {
+        put(0, 1);
+        put(1, 2);
+        assertTrue(consumer.commit(2));
+
+        assertEquals(1, target.batches.size());
+        assertEquals(listOf(1, 2), target.batches.get(0));
+        // Nothing is reported until the batch completes
+        assertTrue(target.completions.isEmpty());
+
+        target.finish(26);
+        assertEquals(listOf(2, 26), target.completions);
+        assertEquals(2, consumer.getConsumed());
+    }
+
+    @Test
+    public void commitsWhileInFlight_goInTheNextBatch() {
+        put(0, 1);
+        consumer.commit(1);
+        put(1, 2);
+        put(2, 3);
+        consumer.commit(3);
+        assertEquals(1, target.batches.size());
+
+        target.finish(13);
+        assertEquals(listOf(2, 3), target.batches.get(1));
+        target.finish(26);
+        assertEquals(listOf(1, 13, 3, 26), target.completions);
+    }
+
+    @Test
+    public void slotsWrap_onceReportedComplete() {
+        for (int sequence = 0; sequence < SLOT_COUNT * 3; sequence++) {
+            put(sequence, sequence);
+            assertTrue(consumer.commit(sequence + 1));
+            target.finish(13);
+        }
+        assertEquals(SLOT_COUNT * 3, target.batches.size());
+        for (int sequence = 0; sequence < SLOT_COUNT * 3; sequence++)
+            assertEquals(listOf(sequence), target.batches.get(sequence));
+        assertEquals(SLOT_COUNT * 3, consumer.getConsumed());
+    }
+
+    @Test
+    public void invalidCommits_areIgnored() {
+        // Past the slots not yet reported complete
+        assertFalse(consumer.commit(SLOT_COUNT + 1));
+        put(0, 1);
+        assertTrue(consumer.commit(1));
+        // Not forward
+        assertFalse(consumer.commit(1));
+        assertFalse(consumer.commit(0));
+        // Slot 0 is still in flight
+        assertFalse(consumer.commit(SLOT_COUNT + 1));
+        assertEquals(1, target.batches.size());
+    }
+
+    @Test
+    public void malformedSlot_isSkippedAndReported() {
+        put(0, 1);
+        slots.put(CommandRing.slotOffset(1, SLOT_COUNT) + 1, (byte) (CommandRing.MAX_WRITE_LENGTH + 1));
+        put(2, 3);
+        consumer.commit(3);
+
+        assertEquals(listOf(1, 3), target.batches.get(0));
+        target.finish(26);
+        assertEquals(listOf(3, I2CCommandCallback.RESULT_INVALID), target.completions);
+    }
+
+    @Test
+    public void refusedBatches_completeWithoutRecursing() {
+        int slotCount = CommandRing.MAX_SLOTS;
+        ByteBuffer large = ByteBuffer.allocate(slotCount * CommandRing.SLOT_SIZE);
+        CommandRingConsumer ring = new CommandRingConsumer(large, slotCount, target);
+        target.refuse = true;
+        byte[] data = new byte[CommandRing.MAX_WRITE_LENGTH];
+
+        CommandRing.putWrite(large, slotCount, 0, CP2615Commands.LED_SLAVE, data, 0, data.length);
+        assertTrue(ring.commit(1));
+        int depth = target.lastDepth;
+
+        // Each batch holds a handful of full slots, so this commit is refused hundreds of times over
+        for (int sequence = 1; sequence < slotCount; sequence++)
+            CommandRing.putWrite(large, slotCount, sequence, CP2615Commands.LED_SLAVE, data, 0, data.length);
+        assertTrue(ring.commit(slotCount));
+        assertTrue("batches " + target.batches.size(), target.batches.size() > 100);
+        assertEquals(slotCount, ring.getConsumed());
+        assertEquals(depth, target.lastDepth);
+        assertEquals(I2CCommandCallback.RESULT_CANCELLED, (int) target.completions.get(target.completions.size() - 1));
+    }
+
+    @Test
+    public void throwingTarget_completesAsInvalid() {
+        target.fail = new IllegalStateException("gone");
+        put(0, 1);
+        consumer.commit(1);
+        assertEquals(listOf(1, I2CCommandCallback.RESULT_INVALID), target.completions);
+
+        target.fail = null;
+        put(1, 2);
+        assertTrue(consumer.commit(2));
+        target.finish(13);
+        assertEquals(listOf(1, I2CCommandCallback.RESULT_INVALID, 2, 13), target.completions);
+    }
+
+    @Test
+    public void close_stopsReporting() {
+        put(0, 1);
+        put(1, 2);
+        consumer.commit(1);
+        assertTrue(consumer.close());
+        assertFalse(consumer.close());
+
+        target.finish(13);
+        consumer.commit(2);
+        assertTrue(target.completions.isEmpty());
+        assertEquals(1, target.batches.size());
+    }
+
+    /*
+     * Writes a one byte write of value to the LED slave into the slot of sequence.
+     */
+    private void put(int sequence, int value) {
+        CommandRing.putWrite(slots, SLOT_COUNT, sequence, CP2615Commands.LED_SLAVE, new byte[]{(byte) value}, 0, 1);
+    }
+
+    private static List<Integer> listOf(int... values) {
+        List<Integer> list = new ArrayList<>();
+        for (int value : values)
+            list.add(value);
+        return list;
+    }
+
+    private static class RecordingTarget implements CommandRingConsumer.Target {
+        // Per batch, the first data byte of each message
+        final List<List<Integer>> batches = new ArrayList<>();
+        // Pairs of sequence and result
+        final List<Integer> completions = new ArrayList<>();
+        boolean refuse;
+        RuntimeException fail;
+        int lastDepth;
+        private I2CCommandCallback pending;
+
+        @Override
+        public boolean submitBatch(I2CBatch batch, I2CCommandCallback callback) {
+            if (fail != null)
+                throw fail;
+            CP2615PacketEncoder encoder = batch.getEncoder();
+            List<Integer> values = new ArrayList<>();
+            int offset = 0;
+            while (offset < encoder.getLength()) {
+                values.add((int) encoder.getBuffer()[offset + CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH]);
+                offset += CP2615PacketEncoder.messageLength(encoder.getBuffer(), offset);
+            }
+            batches.add(values);
+            if (refuse) {
+                callback.onCommandComplete(I2CCommandCallback.RESULT_CANCELLED);
+                return false;
+            }
+            pending = callback;
+            return true;
+        }
+
+        @Override
+        public void onCommandsComplete(int sequence, int result) {
+            completions.add(sequence);
+            completions.add(result);
+            lastDepth = Thread.currentThread().getStackTrace().length;
+        }
+
+        void finish(int result) {
+            I2CCommandCallback callback = pending;
+            pending = null;
+            callback.onCommandComplete(result);
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package com.hearxgroup.dactest;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Runs gain ramps on the WorkerScheduler timing thread against a recording LevelWriter.
+ */
+public class GainRampSchedulerTest {
+
+    private final RecordingWriter writer = new RecordingWriter();
+    private final GainRampScheduler scheduler = new GainRampScheduler(writer);
+
+    @After
+    public void tearDown() {
+        scheduler.shutdown();
+    }
+
+    @Test
+    public void ramp_writesEveryLevelOnSchedule() throws Exception {
+        FinishLatch finished = new FinishLatch();
+        scheduler.start(10, 0, 50, finished);
+        assertTrue(finished.await());
+
+        assertEquals(Arrays.asList(10, 9, 8, 7, 6, 5, 4, 3, 2, 1, 0), writer.getLevels());
+        assertEquals(11, scheduler.getStepCount());
+        long interval = TimeUnit.MILLISECONDS.toNanos(5);
+        for (int step = 0; step < scheduler.getStepCount(); step++) {
+            assertEquals(10 - step, scheduler.getStepLevel(step));
+            // Never early; how late depends on the machine
+            assertTrue("step " + step, scheduler.getStepJitterNanos(step) >= 0);
+            if (step > 0)
+                assertTrue("step " + step, scheduler.getStepTimestamp(step) - scheduler.getStepTimestamp(0) >= step * interval);
+        }
+    }
+
+    @Test
+    public void shortRamp_keepsMinimumStepInterval() throws Exception {
+        FinishLatch finished = new FinishLatch();
+        scheduler.start(0, 40, 20, finished);
+        assertTrue(finished.await());
+
+        // 40 steps in 20ms would be 0.5ms apart; at 5ms apart only 4 fit
+        assertEquals(Arrays.asList(0, 10, 20, 30, 40), writer.getLevels());
+    }
+
+    @Test
+    public void zeroDuration_writesTargetAtOnce() throws Exception {
+        FinishLatch finished = new FinishLatch();
+        scheduler.start(30, 12, 0, finished);
+        assertTrue(finished.await());
+
+        assertEquals(Arrays.asList(30, 12), writer.getLevels());
+    }
+
+    @Test
+    public void cancel_stopsRunningRamp() throws Exception {
+        final CountDownLatch firstStep = new CountDownLatch(1);
+        writer.onWrite = new Runnable() {
+            @Override
+            public void run() {
+                firstStep.countDown();
+            }
+        };
+        FinishLatch finished = new FinishLatch();
+        scheduler.start(0, 100, 1000, finished);
+        assertTrue(firstStep.await(5, TimeUnit.SECONDS));
+        scheduler.cancel();
+
+        assertFalse(finished.await());
+        assertTrue("steps " + writer.getLevels().size(), writer.getLevels().size() < 101);
+    }
+
+    @Test
+    public void cancel_beforeRampBegins_dropsIt() throws Exception {
+        CountDownLatch release = blockTimingThread();
+        FinishLatch finished = new FinishLatch();
+        try {
+            scheduler.start(0, 10, 50, finished);
+            scheduler.cancel();
+            // Reported at once, on this thread
+            assertEquals(1, finished.calls.get());
+            assertFalse(finished.completed);
+        } finally {
+            release.countDown();
+        }
+
+        Thread.sleep(100);
+        assertTrue("levels " + writer.getLevels(), writer.getLevels().isEmpty());
+        assertEquals(1, finished.calls.get());
+    }
+
+    @Test
+    public void start_beforePreviousBegins_replacesIt() throws Exception {
+        CountDownLatch release = blockTimingThread();
+        FinishLatch replaced = new FinishLatch();
+        FinishLatch finished = new FinishLatch();
+        try {
+            scheduler.start(0, 10, 50, replaced);
+            scheduler.start(20, 22, 10, finished);
+            assertEquals(1, replaced.calls.get());
+            assertFalse(replaced.completed);
+        } finally {
+            release.countDown();
+        }
+
+        assertTrue(finished.await());
+        assertEquals(Arrays.asList(20, 21, 22), writer.getLevels());
+        assertEquals(1, replaced.calls.get());
+    }
+
+    /*
+     * Occupies the single timing thread until the returned latch is released, so that a ramp
+     * started meanwhile is still waiting to be picked up.
+     */
+    private static CountDownLatch blockTimingThread() throws InterruptedException {
+        final CountDownLatch running = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        WorkerScheduler.get().getTimingExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                running.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+        return release;
+    }
+
+    private static class RecordingWriter implements GainRampScheduler.LevelWriter {
+        private final List<Integer> levels = new ArrayList<>();
+        volatile Runnable onWrite;
+
+        @Override
+        public synchronized void writeLevel(int attenuation) {
+            levels.add(attenuation);
+            Runnable action = onWrite;
+            if (action != null)
+                action.run();
+        }
+
+        synchronized List<Integer> getLevels() {
+            return new ArrayList<>(levels);
+        }
+    }
+
+    private static class FinishLatch implements GainRampScheduler.Listener {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicInteger calls = new AtomicInteger();
+        volatile boolean completed;
+
+        @Override
+        public void onRampFinished(boolean completed) {
+            this.completed = completed;
+            calls.incrementAndGet();
+            latch.countDown();
+        }
+
+        boolean await() throws InterruptedException {
+            assertTrue("timed out", latch.await(5, TimeUnit.SECONDS));
+            return completed;
+        }
+    }
+}
@@ -0,0 +1,318 @@
+package com.hearxgroup.dactest;
+
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/*
+ * In-process stand-in for a CP2615 board, for running CP2615Link and everything above it on a
+ * plain JVM.
+ *
+ * Written bytes are parsed as IOP messages. I2C transfer requests to a known slave are applied to
+ * its register file: the first write byte is the register address and the following bytes are
+ * stored at consecutive registers from it. A read returns consecutive registers from the address
+ * just written. Every request is answered with an I2C transfer result, delivered on the
+ * simulator's own thread after the response latency and cut into IN packets of inPacketSize
+ * bytes, so responses also exercise frame reassembly.
+ *
+ * Writes longer than the packet size are cut short, as a device with a smaller endpoint would,
+ * and the partial message is discarded. Failures can be injected per write or at random, and
+ * responses can be dropped as if lost on the way back.
+ */
+class SimulatedCP2615 implements CP2615Transport
+{
+    static final int STATUS_SUCCESS = 1;
+    static final int STATUS_NACK = -2;
+
+    private final int[][] registers = new int[256][];
+    private final IOPFrameAssembler parser = new IOPFrameAssembler(new IOPFrameAssembler.FrameListener()
+    {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length)
+        {
+            apply(buffer, offset, length);
+        }
+    });
+    private final Random random = new Random(2615);
+
+    private volatile int maxPacketSize = CP2615PacketEncoder.PACKET_SIZE;
+    private volatile int inPacketSize = CP2615PacketEncoder.PACKET_SIZE;
+    private volatile long writeLatencyNanos;
+    private volatile long responseLatencyNanos;
+    private volatile double failureRate;
+    private final AtomicInteger failNextWrites = new AtomicInteger();
+    private final AtomicInteger dropNextResponses = new AtomicInteger();
+
+    private final AtomicInteger writeCount = new AtomicInteger();
+    private final AtomicInteger failedWriteCount = new AtomicInteger();
+    private final AtomicInteger shortWriteCount = new AtomicInteger();
+    private final AtomicInteger messageCount = new AtomicInteger();
+    private volatile int lastTimeoutMs;
+
+    private final DelayQueue<Response> responses = new DelayQueue<>();
+    private volatile Receiver receiver;
+    private Thread deliveryThread;
+
+    SimulatedCP2615()
+    {
+        addSlave(CP2615Commands.DAC_SLAVE);
+        addSlave(CP2615Commands.LED_SLAVE);
+    }
+
+    synchronized void addSlave(int slave)
+    {
+        if(registers[slave] == null)
+            registers[slave] = new int[256];
+    }
+
+    synchronized int getRegister(int slave, int address)
+    {
+        return registers[slave] != null ? registers[slave][address] : -1;
+    }
+
+    /*
+     * {reg10, reg1} as last written by a volume command.
+     */
+    int[] getDacVolume()
+    {
+        int base = CP2615Commands.DAC_VOLUME_REGISTER;
+        return new int[]{getRegister(CP2615Commands.DAC_SLAVE, base + 2), getRegister(CP2615Commands.DAC_SLAVE, base + 3)};
+    }
+
+    int getLedColour()
+    {
+        return getRegister(CP2615Commands.LED_SLAVE, CP2615Commands.LED_COLOUR_REGISTER);
+    }
+
+    void setMaxPacketSize(int maxPacketSize)
+    {
+        this.maxPacketSize = maxPacketSize;
+    }
+
+    void setInPacketSize(int inPacketSize)
+    {
+        this.inPacketSize = inPacketSize;
+    }
+
+    void setWriteLatency(long value, TimeUnit unit)
+    {
+        writeLatencyNanos = unit.toNanos(value);
+    }
+
+    void setResponseLatency(long value, TimeUnit unit)
+    {
+        responseLatencyNanos = unit.toNanos(value);
+    }
+
+    /*
+     * Probability, 0 to 1, of any write failing. The sequence is seeded, so runs repeat.
+     */
+    void setFailureRate(double failureRate)
+    {
+        this.failureRate = failureRate;
+    }
+
+    void failNextWrites(int count)
+    {
+        failNextWrites.set(count);
+    }
+
+    /*
+     * The next count requests are applied but never answered.
+     */
+    void dropNextResponses(int count)
+    {
+        dropNextResponses.set(count);
+    }
+
+    int getWriteCount()
+    {
+        return writeCount.get();
+    }
+
+    int getFailedWriteCount()
+    {
+        return failedWriteCount.get();
+    }
+
+    int getShortWriteCount()
+    {
+        return shortWriteCount.get();
+    }
+
+    /*
+     * Timeout passed to the last bulkWrite().
+     */
+    int getLastTimeoutMs()
+    {
+        return lastTimeoutMs;
+    }
+
+    /*
+     * I2C transfer requests applied, whether to a known slave or not.
+     */
+    int getMessageCount()
+    {
+        return messageCount.get();
+    }
+
+    @Override
+    public int getMaxPacketSize()
+    {
+        return maxPacketSize;
+    }
+
+    @Override
+    public synchronized int bulkWrite(byte[] buffer, int length, int timeoutMs)
+    {
+        writeCount.incrementAndGet();
+        lastTimeoutMs = timeoutMs;
+        long latency = writeLatencyNanos;
+        if(latency > 0)
+        {
+            long deadline = System.nanoTime() + latency;
+            for(long remaining = latency; remaining > 0; remaining = deadline - System.nanoTime())
+                LockSupport.parkNanos(remaining);
+        }
+
+        if(failNextWrites.get() > 0 && failNextWrites.getAndDecrement() > 0
+                || failureRate > 0 && random.nextDouble() < failureRate)
+        {
+            failedWriteCount.incrementAndGet();
+            return -1;
+        }
+
+        int accepted = Math.min(length, maxPacketSize);
+        parser.feed(buffer, 0, accepted);
+        if(accepted < length)
+        {
+            shortWriteCount.incrementAndGet();
+            parser.reset();
+        }
+        return accepted;
+    }
+
+    @Override
+    public synchronized boolean startReceiving(Receiver receiver)
+    {
+        this.receiver = receiver;
+        if(deliveryThread == null)
+        {
+            deliveryThread = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    deliver();
+                }
+            }, "SimulatedCP2615-in");
+            deliveryThread.setDaemon(true);
+            deliveryThread.start();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized void stopReceiving()
+    {
+        receiver = null;
+        if(deliveryThread != null)
+        {
+            deliveryThread.interrupt();
+            deliveryThread = null;
+        }
+        responses.clear();
+    }
+
+    // Called by bulkWrite() through the parser, with the lock held
+    private void apply(byte[] buffer, int offset, int length)
+    {
+        int type = (buffer[offset + 4] & 0xFF) << 8 | (buffer[offset + 5] & 0xFF);
+        if(type != CP2615PacketEncoder.IOP_I2C_TRANSFER || length < CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH)
+            return;
+        messageCount.incrementAndGet();
+
+        int tag = buffer[offset + 6] & 0xFF;
+        int slave = buffer[offset + 7] & 0xFF;
+        int readLength = buffer[offset + 8] & 0xFF;
+        int writeLength = buffer[offset + 9] & 0xFF;
+        int data = offset + CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH;
+
+        int[] file = registers[slave];
+        int status = file != null && data + writeLength <= offset + length ? STATUS_SUCCESS : STATUS_NACK;
+        int address = 0;
+        if(status == STATUS_SUCCESS && writeLength > 0)
+        {
+            address = buffer[data] & 0xFF;
+            for(int i=1; i<writeLength; i++)
+                file[(address + i - 1) & 0xFF] = buffer[data + i] & 0xFF;
+        }
+        if(status != STATUS_SUCCESS)
+            readLength = 0;
+        if(dropNextResponses.get() > 0 && dropNextResponses.getAndDecrement() > 0)
+            return;
+
+        CP2615PacketEncoder response = new CP2615PacketEncoder(CP2615PacketEncoder.IOP_HEADER_LENGTH + CP2615PacketEncoder.I2C_HEADER_LENGTH + readLength);
+        int total = response.getCapacity();
+        response.put(CP2615PacketEncoder.IOP_PREAMBLE >> 8);
+        response.put(CP2615PacketEncoder.IOP_PREAMBLE);
+        response.put(total >> 8);
+        response.put(total);
+        response.put(CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT >> 8);
+        response.put(CP2615PacketEncoder.IOP_I2C_TRANSFER_RESULT);
+        response.put(tag);
+        response.put(slave);
+        response.put(status);
+        response.put(readLength);
+        for(int i=0; i<readLength; i++)
+            response.put(file[(address + i) & 0xFF]);
+        responses.add(new Response(response.getBuffer(), System.nanoTime() + responseLatencyNanos));
+    }
+
+    private void deliver()
+    {
+        try
+        {
+            while(true)
+            {
+                Response response = responses.take();
+                Receiver target = receiver;
+                if(target == null)
+                    continue;
+                int chunk = Math.max(1, inPacketSize);
+                for(int offset = 0; offset < response.bytes.length; offset += chunk)
+                    target.onReceived(response.bytes, offset, Math.min(chunk, response.bytes.length - offset));
+            }
+        }catch(InterruptedException e)
+        {
+            // stopReceiving()
+        }
+    }
+
+    private static final class Response implements Delayed
+    {
+        final byte[] bytes;
+        final long dueNanos;
+
+        Response(byte[] bytes, long dueNanos)
+        {
+            this.bytes = bytes;
+            this.dueNanos = dueNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit)
+        {
+            return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other)
+        {
+            return Long.compare(dueNanos, ((Response) other).dueNanos);
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package com.hearxgroup.dactest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ToneRendererTest {
+
+    private static final int RATE = 48000;
+
+    @Test
+    public void stopped_rendersSilence() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 1f);
+        short[] buffer = new short[256];
+        buffer[10] = 123;
+        renderer.render(buffer, 0, buffer.length);
+        assertArrayEquals(new short[256], buffer);
+    }
+
+    @Test
+    public void tone_hasRequestedFrequencyAndAmplitude() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 0.5f);
+        renderer.start();
+        short[] buffer = new short[RATE];
+        renderer.render(buffer, 0, buffer.length);
+
+        int crossings = 0;
+        int peak = 0;
+        for (int i = 1; i < buffer.length; i++) {
+            if (buffer[i - 1] < 0 && buffer[i] >= 0)
+                crossings++;
+            peak = Math.max(peak, buffer[i]);
+        }
+        assertTrue("crossings " + crossings, Math.abs(crossings - 1000) <= 1);
+        assertTrue("peak " + peak, Math.abs(peak - Short.MAX_VALUE / 2) < 20);
+    }
+
+    @Test
+    public void onsetAndOffset_areRamped() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 1f);
+        renderer.start();
+        int rampFrames = RATE * ToneRenderer.RAMP_MS / 1000;
+        short[] buffer = new short[rampFrames * 2];
+        renderer.render(buffer, 0, buffer.length);
+        // A sample in the first 1 ms of the ramp is well below full scale
+        for (int i = 0; i < RATE / 1000; i++)
+            assertTrue(Math.abs(buffer[i]) < Short.MAX_VALUE / 4);
+
+        renderer.stop();
+        renderer.render(buffer, 0, buffer.length);
+        for (int i = rampFrames; i < buffer.length; i++)
+            assertEquals(0, buffer[i]);
+    }
+
+    @Test
+    public void renderInPieces_matchesRenderInOneGo() {
+        ToneRenderer whole = new ToneRenderer(RATE);
+        ToneRenderer pieces = new ToneRenderer(RATE);
+        whole.setTone(1500, 1f);
+        pieces.setTone(1500, 1f);
+        whole.start();
+        pieces.start();
+
+        short[] expected = new short[4096];
+        whole.render(expected, 0, expected.length);
+        short[] actual = new short[4096];
+        for (int offset = 0; offset < actual.length; offset += 37)
+            pieces.render(actual, offset, Math.min(37, actual.length - offset));
+        assertArrayEquals(expected, actual);
+    }
+
+    @Test
+    public void pulses_startEveryPeriod_andAreSilentWhenOff() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        int period = 4801; // an odd length, so drift would show
+        int on = 2400;
+        renderer.setTone(1000, 1f);
+        renderer.setPulse(period, on);
+        renderer.start();
+        short[] buffer = new short[period * 10];
+        // Render in uneven pieces like the audio thread
+        for (int offset = 0; offset < buffer.length; offset += 241)
+            renderer.render(buffer, offset, Math.min(241, buffer.length - offset));
+
+        int rise = RATE * ToneRenderer.PULSE_RAMP_MS / 1000;
+        for (int pulse = 0; pulse < 10; pulse++) {
+            int start = pulse * period;
+            for (int i = start + on; i < start + period; i++)
+                assertEquals("off sample " + i, 0, buffer[i]);
+            int peak = 0;
+            for (int i = start + rise; i < start + on - rise; i++)
+                peak = Math.max(peak, Math.abs(buffer[i]));
+            assertTrue("pulse " + pulse + " peak " + peak, peak > Short.MAX_VALUE - 100);
+            // The rise starts from silence
+            assertTrue(Math.abs(buffer[start + 1]) < 100);
+        }
+    }
+
+    @Test
+    public void pulseTooShortForTheRamps_isStillGated() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 1f);
+        renderer.setPulse(100, 10);
+        renderer.start();
+        short[] buffer = new short[1000];
+        renderer.render(buffer, 0, buffer.length);
+        for (int i = 0; i < buffer.length; i++) {
+            if (i % 100 >= 10)
+                assertEquals(0, buffer[i]);
+        }
+    }
+
+    @Test
+    public void startAt_beginsOnTheScheduledFrame() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 1f);
+        renderer.startAt(1000);
+        short[] buffer = new short[2048];
+        for (int offset = 0; offset < buffer.length; offset += 256)
+            renderer.render(buffer, offset, 256);
+
+        for (int i = 0; i < 1000; i++)
+            assertEquals("sample " + i, 0, buffer[i]);
+        int peak = 0;
+        for (int i = 1000 + renderer.getRampFrames(); i < buffer.length; i++)
+            peak = Math.max(peak, buffer[i]);
+        assertTrue("peak " + peak, peak > Short.MAX_VALUE - 100);
+        assertEquals(1000, renderer.getLastOnsetFrame());
+        assertEquals(2048, renderer.getFramesRendered());
+    }
+
+    @Test
+    public void stop_dropsAScheduledStart() {
+        ToneRenderer renderer = new ToneRenderer(RATE);
+        renderer.setTone(1000, 1f);
+        renderer.startAt(100);
+        renderer.stop();
+        short[] buffer = new short[256];
+        renderer.render(buffer, 0, buffer.length);
+        assertArrayEquals(new short[256], buffer);
+        assertEquals(ToneRenderer.NO_FRAME, renderer.getLastOnsetFrame());
+    }
+}